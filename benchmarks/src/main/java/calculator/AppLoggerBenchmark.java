@@ -0,0 +1,81 @@
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of AppLogger.info() and AppLogger.debug() with the level enabling or suppressing them.
+ * Enabled messages are written to the log file (./logs/calculator.log).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AppLoggerBenchmark {
+
+	/**
+	 * AppLogger level: "off" suppresses both, "info" enables info() only, "debug" enables both.
+	 * */
+	@Param({"off", "info", "debug"})
+	public String level;
+
+	/**
+	 * whether enabled messages start with the issuer's class, method, and line
+	 * */
+	@Param({"true", "false"})
+	public boolean issuerInfo;
+
+	private int counter;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		AppLogger.setLevel(level);
+		AppLogger.setIssuerInfo(issuerInfo);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		AppLogger.closeHandlers();
+	}
+
+	@Benchmark
+	public void info() {
+		AppLogger.info("Expression evaluated to " + counter++);
+	}
+
+	@Benchmark
+	public void infoFormat() {
+		AppLogger.info("Expression evaluated to %d", counter++);
+	}
+
+	@Benchmark
+	public void debug() {
+		AppLogger.debug("Expression evaluated to " + counter++);
+	}
+
+	@Benchmark
+	public void debugFormat() {
+		AppLogger.debug("Expression evaluated to %d", counter++);
+	}
+
+	@Benchmark
+	public void debugFormatGuarded() {
+		if (AppLogger.isDebugEnabled())
+			AppLogger.debug("Expression evaluated to %d", counter++);
+	}
+}
@@ -0,0 +1,149 @@
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Benchmarks of the phases of Calculator: tokenize, tree construction, tree evaluation, and end-to-end evaluation.
+ * Run with -prof gc to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CalculatorBenchmark {
+
+	/**
+	 * maximum number of operations in the expression body
+	 * */
+	@Param({"16", "1024"})
+	public int size;
+
+	/**
+	 * maximum nesting depth of the expression body
+	 * */
+	@Param({"4", "64"})
+	public int depth;
+
+	/**
+	 * number of let-bound variables
+	 * */
+	@Param({"0", "16"})
+	public int variables;
+
+	/**
+	 * arithmetic of the calculator
+	 * */
+	@Param({"DOUBLE", "LONG"})
+	public Calculator.Engine engine;
+
+	private Calculator calc;
+
+	private String expression;
+
+	private Calculator.TokenTree tree;
+
+	private CompiledExpression compiled;
+
+	private CompiledExpression generated;
+
+	@Setup(Level.Trial)
+	public void setUp() throws BadInputException {
+		AppLogger.setLevel("off");
+
+		calc = new Calculator();
+		calc.setEngine(engine);
+		expression = Expressions.generate(size, depth, variables);
+		tree = calc.new TokenTree(Lexer.of(expression));
+		tree.parse();
+		compiled = calc.compile(expression);
+
+		Calculator generating = new Calculator();
+		generating.setEngine(engine);
+		generating.setCodeGenerationEnabled(true);
+		generated = generating.compile(expression);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		AppLogger.closeHandlers();
+	}
+
+	/**
+	 * Calculator.tokenize(): split the expression into strings.
+	 * */
+	@Benchmark
+	public String[] tokenize() {
+		return calc.tokenize(expression);
+	}
+
+	/**
+	 * Lexer: scan and classify the tokens without creating strings.
+	 * */
+	@Benchmark
+	public int lex() {
+		Lexer lexer = Lexer.of(expression);
+		int sum = 0;
+		int type;
+		while ((type = lexer.next()) != Lexer.EOF)
+			sum += type;
+		return sum;
+	}
+
+	/**
+	 * TokenTree.makeTree(): build the token tree.
+	 * */
+	@Benchmark
+	public Node makeTree() throws BadInputException {
+		return calc.new TokenTree(Lexer.of(expression)).parse();
+	}
+
+	/**
+	 * TokenTree.evaluate(): evaluate a built token tree.
+	 * */
+	@Benchmark
+	public double evaluateTree() throws BadInputException {
+		return tree.evaluate();
+	}
+
+	/**
+	 * Evaluate a compiled expression.
+	 * */
+	@Benchmark
+	public int evaluateCompiled() throws BadInputException {
+		return compiled.evaluate();
+	}
+
+	/**
+	 * Evaluate a compiled expression turned into a class; the same as evaluateCompiled() if it is too big for code generation.
+	 * */
+	@Benchmark
+	public int evaluateGenerated() throws BadInputException {
+		return generated.evaluate();
+	}
+
+	/**
+	 * Calculator.evaluate(): all phases.
+	 * */
+	@Benchmark
+	public int evaluate() throws BadInputException {
+		return calc.evaluate(expression);
+	}
+}
@@ -0,0 +1,117 @@
+package calculator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Benchmarks of one compiled expression evaluated over many rows of variable values: row by row with a Map of bindings,
+ * and with columns. Scores are per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ColumnBenchmark {
+
+	private static final int ROWS = 1 << 16;
+
+	/**
+	 * the formula, with free variables x, y and z
+	 * */
+	private static final String FORMULA = "let(a, add(mult(x, y), z), sub(mult(a, a), div(mult(x, z), add(mult(y, y), 1))))";
+
+	/**
+	 * arithmetic of the calculator
+	 * */
+	@Param({"DOUBLE", "LONG"})
+	public Calculator.Engine engine;
+
+	private CompiledExpression compiled;
+
+	private List<String> variables;
+
+	private double[][] doubleColumns;
+	private long[][]   longColumns;
+
+	private double[] doubleResults = new double[ROWS];
+	private long[]   longResults   = new long[ROWS];
+
+	@Setup(Level.Trial)
+	public void setUp() throws BadInputException {
+		AppLogger.setLevel("off");
+
+		Calculator calc = new Calculator();
+		calc.setEngine(engine);
+		compiled  = calc.compile(FORMULA);
+		variables = compiled.getVariables();
+
+		Random random = new Random(1);
+		doubleColumns = new double[variables.size()][ROWS];
+		longColumns   = new long[variables.size()][ROWS];
+		for (int c = 0; c < variables.size(); c++) {
+			for (int i = 0; i < ROWS; i++) {
+				int value = random.nextInt(1000) + 1;
+				doubleColumns[c][i] = value;
+				longColumns[c][i]   = value;
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		AppLogger.closeHandlers();
+	}
+
+	/**
+	 * CompiledExpression.evaluate(Map) for each row.
+	 * */
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long rows() throws BadInputException {
+		Map<String, Number> bindings = new HashMap<>();
+		long sum = 0;
+		for (int i = 0; i < ROWS; i++) {
+			for (int c = 0; c < variables.size(); c++)
+				bindings.put(variables.get(c), longColumns[c][i]);
+			sum += compiled.evaluate(bindings);
+		}
+		return sum;
+	}
+
+	/**
+	 * CompiledExpression.evaluate(double[][], double[]) or evaluate(long[][], long[]) for all rows.
+	 * */
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public Object columns() throws BadInputException {
+		if (engine == Calculator.Engine.LONG) {
+			compiled.evaluate(longColumns, longResults);
+			return longResults;
+		}
+
+		compiled.evaluate(doubleColumns, doubleResults);
+		return doubleResults;
+	}
+}
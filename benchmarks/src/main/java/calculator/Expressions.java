@@ -0,0 +1,73 @@
+package calculator;
+
+/**
+ * Generates benchmark expressions.
+ */
+final class Expressions {
+
+	private static final String[] OPERATIONS = {
+			Calculator.OP_ADD, Calculator.OP_SUB, Calculator.OP_MUL, Calculator.OP_DIV };
+
+	private Expressions() {
+	}
+
+	/**
+	 * Variable name for an index: a, b, ..., z, ba, bb, ... (names may only contain letters).
+	 * @param index variable index
+	 * @return the name
+	 * */
+	static String variable(int index) {
+		StringBuilder name = new StringBuilder();
+		do {
+			name.insert(0, (char) ('a' + index % 26));
+			index /= 26;
+		} while (index > 0);
+		return name.toString();
+	}
+
+	/**
+	 * Generate an expression.
+	 * The body is a tree of at most size operations that is at most depth levels deep; it is wrapped in one let per variable,
+	 * and its leaves use the variables round-robin (or integers if there are no variables).
+	 * @param size maximum number of operations in the body
+	 * @param depth maximum nesting depth of the body
+	 * @param variables number of let-bound variables
+	 * @return the expression
+	 * */
+	static String generate(int size, int depth, int variables) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < variables; i++)
+			sb.append(Calculator.OP_LET).append('(').append(variable(i)).append(", ").append(i + 1).append(", ");
+
+		int[] leaf = {0};
+		body(sb, size, depth, variables, leaf);
+
+		for (int i = 0; i < variables; i++)
+			sb.append(')');
+
+		return sb.toString();
+	}
+
+	private static void body(StringBuilder sb, int size, int depth, int variables, int[] leaf) {
+		if (size == 0 || depth == 0) {
+			int n = leaf[0]++;
+			if (variables > 0)
+				sb.append(variable(n % variables));
+			else
+				sb.append(n % 9 + 1);
+			return;
+		}
+
+		// put as many operations as the depth allows on the left, the rest on the right
+		int rest = size - 1;
+		int left = Math.min(rest - rest / 2, (1 << Math.min(depth - 1, 30)) - 1);
+		int right = rest - left;
+
+		sb.append(OPERATIONS[(size + depth) % OPERATIONS.length]).append('(');
+		body(sb, left, depth - 1, variables, leaf);
+		sb.append(", ");
+		body(sb, right, depth - 1, variables, leaf);
+		sb.append(')');
+	}
+}
@@ -1,20 +1,50 @@
 package calculator;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.GregorianCalendar;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import java.util.logging.*;
 
 /**
- * Logging layer
+ * Logging layer.
+ * Handlers are created once and shared by all loggers obtained from this class. Getting the shared logger is a volatile read,
+ * and the logging methods check the level before doing any other work, so suppressed messages cost only that check,
+ * plus the arguments of the varargs methods, which hot paths avoid with {@link #isDebugEnabled()} and {@link #isErrorEnabled()}.
  * @author Tuhin Paul
  * */
 public class AppLogger {
 
 	/**
-	 * logger used by the logging methods in this class
+	 * logger used by the logging methods in this class. Null until the handler is attached (again).
 	 */
-	private static Logger logger;
+	private static volatile Logger logger;
+
+	/**
+	 * handler shared by all loggers of this class; guarded by AppLogger.class
+	 */
+	private static Handler handler;
+
+	/**
+	 * loggers that have the shared handler attached, by name
+	 */
+	private static final Map<String, Logger> attached = new ConcurrentHashMap<>();
+
+	/**
+	 * every logger configured by this class. java.util.logging only keeps weak references, so this keeps their levels alive.
+	 */
+	private static final Set<Logger> known = new HashSet<>();
 
 	/**
 	 * The log file directory
@@ -34,10 +64,50 @@ public class AppLogger {
 
 
 	/**
-	 * whether to log to console instead of filesystem.
+	 * ring buffer size of the asynchronous handler; 0 to log synchronously
 	 * */
-	public static void LogToConsoleOnly(boolean consoleOnly) {
-		shouldLogToConsoleOnly = consoleOnly;
+	private static int asyncCapacity = 0;
+
+	/**
+	 * what the asynchronous handler does when its buffer is full
+	 * */
+	private static AsyncLogHandler.OverflowPolicy asyncPolicy = AsyncLogHandler.OverflowPolicy.BLOCK;
+
+	/**
+	 * Log through a background thread: log calls put records into a ring buffer of the given capacity
+	 * and return without waiting for the console or the log file. closeHandlers() writes out all buffered records.
+	 * Closes the current handler; the next log call opens the new one.
+	 * @param capacity number of records buffered
+	 * @param policy what to do with records when the buffer is full
+	 * @see AsyncLogHandler
+	 * */
+	public static synchronized void setAsync(int capacity, AsyncLogHandler.OverflowPolicy policy) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+		closeHandlers();
+		asyncCapacity = capacity;
+		asyncPolicy   = policy;
+	}
+
+	/**
+	 * Log synchronously from the logging thread (the default).
+	 * Closes the current handler, which writes out the records buffered by an asynchronous handler.
+	 * */
+	public static synchronized void setSync() {
+		closeHandlers();
+		asyncCapacity = 0;
+	}
+
+	/**
+	 * whether to log to console instead of filesystem. Changing the destination closes the current handler;
+	 * the next log call opens the new destination.
+	 * */
+	public static synchronized void LogToConsoleOnly(boolean consoleOnly) {
+		if (shouldLogToConsoleOnly != consoleOnly) {
+			closeHandlers();
+			shouldLogToConsoleOnly = consoleOnly;
+		}
 	}
 
 
@@ -56,8 +126,8 @@ public class AppLogger {
 		public String format(final LogRecord record) {
 			// return YYYY-MM-dd hh::mm::ss.sss LogLevel message newline newline
 			// note assumption at the description of this class.
-			return String.format("%1$tF %1$tT.%1$tL %2$s %3$s%0$n%0$n",
-					new GregorianCalendar(),
+			return String.format("%1$tF %1$tT.%1$tL %2$s %3$s%n%n",
+					record.getMillis(),
 					record.getLevel().getName(),
 					formatMessage(record));
 		}
@@ -65,44 +135,95 @@ public class AppLogger {
 
 	/**
 	 * Get a logger for the name provided. If the name is the same as this class name, AppLogger.logger is returned.
+	 * The shared handler is attached on the first call for a name; later calls only look the logger up.
 	 * @param name logger name. Should not be null but don't raise error- use this class name as default.
 	 * @return the logger with the given name
 	 * */
 	public static Logger getAppLogger(String name) {
 
-		// name can't be null
-		if(name == null)
-			return AppLogger.getAppLogger(AppLogger.class.getName());
+		// name can't be null; this class name gives AppLogger.logger
+		if(name == null || name.equals(AppLogger.class.getName()))
+			return AppLogger.getAppLogger();
 
-//		LogManager.getLogManager().getLogger(name).setLevel(Level.ALL);
+		Logger logger = attached.get(name);
+		if (logger == null)
+			logger = attach(name);
+
+		return logger;
+	}
 
-		Logger logger;
+	/**
+	 * Logger with the name of this class's name - shared by logging methods (error(), info(), debug(), closeHandlers()) in this class.
+	 * */
+	public static Logger getAppLogger() {
+		Logger logger = AppLogger.logger;
+		if (logger == null)
+			logger = attach(AppLogger.class.getName());
 
-		// If the name is the same as this class name, return AppLogger.logger
-		if(name.equals(AppLogger.class.getName())) {
-			// instantiate AppLogger.logger if necessary
-			if (AppLogger.logger == null) {
-				AppLogger.logger = Logger.getLogger(name);
-			}
+		return logger;
+	}
 
-			logger = AppLogger.logger;
+	/**
+	 * Attach the shared handler to a logger, creating the handler if necessary.
+	 * @param name logger name
+	 * @return the logger
+	 * */
+	private static synchronized Logger attach(String name) {
+		Logger logger = attached.get(name);
+		if (logger != null)
+			return logger;
+
+		logger = Logger.getLogger(name);
+		known.add(logger);
+
+		// get rid of previous handlers
+		for(Handler h: logger.getHandlers()) {
+			logger.removeHandler(h);
+			h.close();
 		}
-		else // create/get logger for the other name provided
-			logger = Logger.getLogger(name);
 
-		// set file handler for logger
-		Handler logDestHandler = null;
+		if (handler == null)
+			handler = createHandler();
+
+		// add handler to logger
+		if (handler != null)
+			logger.addHandler(handler);
+
+		// don't log to console
+		logger.setUseParentHandlers(false);
+
+		attached.put(name, logger);
+		if (name.equals(AppLogger.class.getName()))
+			AppLogger.logger = logger;
+
+		return logger;
+	}
+
+	/**
+	 * @return a handler for the console or the log file, depending on shouldLogToConsoleOnly. Null if the log file can not be opened.
+	 * */
+	private static Handler createHandler() {
+		Handler logDestHandler;
 
 		try {
-			// get rid of previous handlers
-			Handler[] prevHandlers = logger.getHandlers();
-			for(Handler h: prevHandlers) {
-				logger.removeHandler(h);
-				h.close();
+			if (asyncCapacity > 0) {
+				// console or file written by a background thread
+				Writer out;
+				if (shouldLogToConsoleOnly) {
+					out = new BufferedWriter(new OutputStreamWriter(System.err));
+				}
+				else {
+					new File(logFileDir).mkdirs();
+					out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFileDir + "/" + logFileName, true)));
+				}
+				logDestHandler = new AsyncLogHandler(out, !shouldLogToConsoleOnly, asyncCapacity, asyncPolicy);
+
+				// same default level as ConsoleHandler
+				if (shouldLogToConsoleOnly)
+					logDestHandler.setLevel(Level.INFO);
 			}
-
 			// if logs should be sent to console OR file
-			if(shouldLogToConsoleOnly) {
+			else if(shouldLogToConsoleOnly) {
 				// send logs to console only
 				logDestHandler = new ConsoleHandler();
 			}
@@ -118,46 +239,36 @@ public class AppLogger {
 				// log to file
 				logDestHandler = new FileHandler(logFileRelativePath, true);
 			}
-
-
-			//custom log text formatter
-			Formatter formatter = new MyFormatter();
-			logDestHandler.setFormatter(formatter);
-
-			// add handler to logger
-			logger.addHandler(logDestHandler);
-
 		}
 		catch (IOException ex) {
 			ex.printStackTrace();
+			return null;
 		}
 
-		// don't log to console
-		logger.setUseParentHandlers(false);
+		//custom log text formatter
+		logDestHandler.setFormatter(new MyFormatter());
 
-		return logger;
-	}
-
-	/**
-	 * Logger with the name of this class's name - shared by logging methods (error(), info(), debug(), closeHandlers()) in this class.
-	 * */
-	public static Logger getAppLogger() {
-		return AppLogger.getAppLogger(AppLogger.class.getName());
+		return logDestHandler;
 	}
 
 
 
 	/**
-	 * close the handlers associated with AppLogger.logger
+	 * close the handler shared by the loggers of this class. A later log call opens it again.
+	 * An asynchronous handler first writes out all records logged before this call.
 	 * */
-	public static void closeHandlers() {
-		if (logger != null) {
-			// close handlers
-			Handler[] prevHandlers = logger.getHandlers();
-			for(Handler h: prevHandlers) {
-				logger.removeHandler(h);
-				h.close();
-			}
+	public static synchronized void closeHandlers() {
+		AppLogger.logger = null;
+
+		for (Logger logger : attached.values()) {
+			if (handler != null)
+				logger.removeHandler(handler);
+		}
+		attached.clear();
+
+		if (handler != null) {
+			handler.close();
+			handler = null;
 		}
 	}
 
@@ -203,37 +314,164 @@ public class AppLogger {
 	}
 
 	/**
-	 * Get the line number, classname, and method name of the method that issued the log request.
+	 * Get the line number, classname, and method name of the method that issued the log request,
+	 * i.e., the first caller outside this class.
+	 * Uses java.lang.StackWalker when the runtime has it, which only looks at the top frames; falls back to a full stack trace otherwise.
 	 * @return the line number, classname, and method name of the method that issued the log request.
 	 * */
 	public static String getLogIssuerInfo() {
+		if (STACK_WALKER != null) {
+			try {
+				return (String) STACK_WALKER_WALK.invoke(STACK_WALKER, FIND_ISSUER);
+			}
+			catch (ReflectiveOperationException ex) {
+				// fall back to the stack trace
+			}
+		}
 
-		int issuerIndex = 3;
-
-		StackTraceElement[] fullTrace = Thread.currentThread().getStackTrace();
-		StackTraceElement trace = fullTrace[issuerIndex];
+		for (StackTraceElement trace : new Throwable().getStackTrace()) {
+			if (!trace.getClassName().equals(AppLogger.class.getName()))
+				return issuer(trace.getClassName(), trace.getMethodName(), trace.getLineNumber());
+		}
 
-		String classNameFull = trace.getClassName();
-		String methodName    = trace.getMethodName();
-		int    lineNumber    = trace.getLineNumber();
+		return "";
+	}
 
+	/**
+	 * @return classname.methodName():lineNumber
+	 * */
+	private static String issuer(String classNameFull, String methodName, int lineNumber) {
 		return classNameFull + "." + methodName + "():" + lineNumber;
 	}
 
+	/* java.lang.StackWalker (Java 9+) accessed reflectively so that the code still runs on Java 8; null when not available. */
+	private static final Object STACK_WALKER;
+	private static final Method STACK_WALKER_WALK;
+	private static final Function<Stream<Object>, String> FIND_ISSUER;
+
+	static {
+		Object walker = null;
+		Method walk   = null;
+		Function<Stream<Object>, String> findIssuer = null;
+
+		try {
+			Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+			Class<?> frameClass  = Class.forName("java.lang.StackWalker$StackFrame");
+			final Method className  = frameClass.getMethod("getClassName");
+			final Method methodName = frameClass.getMethod("getMethodName");
+			final Method lineNumber = frameClass.getMethod("getLineNumber");
+
+			walker = walkerClass.getMethod("getInstance").invoke(null);
+			walk   = walkerClass.getMethod("walk", Function.class);
+			findIssuer = new Function<Stream<Object>, String>() {
+				@Override
+				public String apply(Stream<Object> frames) {
+					try {
+						for (Iterator<Object> it = frames.iterator(); it.hasNext(); ) {
+							Object frame = it.next();
+							String frameClassName = (String) className.invoke(frame);
+							if (!frameClassName.equals(AppLogger.class.getName()))
+								return issuer(frameClassName, (String) methodName.invoke(frame), (Integer) lineNumber.invoke(frame));
+						}
+					}
+					catch (ReflectiveOperationException ex) {
+						// no caller info
+					}
+					return "";
+				}
+			};
+		}
+		catch (ReflectiveOperationException ex) {
+			// Java 8: use stack traces
+			walker = null;
+		}
+
+		STACK_WALKER      = walker;
+		STACK_WALKER_WALK = walk;
+		FIND_ISSUER       = findIssuer;
+	}
 
 	/**
-	 * Log using Level.INFO and default logger name. You may instead call AppLogger.getAppLogger(String name) to get a java.util.Logger instance with the name of the class where you are logging. Then you may use any of the java.util.logging.Level levels.
-	 * @param info message to log
+	 * whether log messages start with the class, method, and line that issued them
 	 * */
-	public static void info(String info) {
+	private static volatile boolean includeIssuerInfo = true;
 
-		String msg = String.format( "%1$s%0$n%2$s", getLogIssuerInfo(), info);
+	/**
+	 * Whether messages logged by info(), error(), and debug() start with the class, method, and line that issued them (default true).
+	 * Finding the issuer walks the stack, so turning it off makes enabled log calls cheaper.
+	 * It only affects the logger shared by the methods of this class.
+	 * @param include whether to include issuer info
+	 * */
+	public static void setIssuerInfo(boolean include) {
+		includeIssuerInfo = include;
+	}
 
+	/**
+	 * Log a message with the shared logger. Nothing is computed unless the level is enabled.
+	 * @param level log level
+	 * @param message supplies the message to log
+	 * */
+	private static void log(Level level, Supplier<String> message) {
 		// use the default logger name
 		Logger logger = getAppLogger();
 
+		if (!logger.isLoggable(level))
+			return;
+
+		logger.log(level, withIssuerInfo(message.get()));
+	}
+
+	/**
+	 * Log a String.format() message with the shared logger. The message is only formatted if the level is enabled.
+	 * @param level log level
+	 * @param format format string
+	 * @param args format arguments
+	 * */
+	private static void log(Level level, String format, Object... args) {
+		// use the default logger name
+		Logger logger = getAppLogger();
+
+		if (!logger.isLoggable(level))
+			return;
+
+		logger.log(level, withIssuerInfo(args.length == 0 ? format : String.format(format, args)));
+	}
+
+	/**
+	 * @return the message, preceded by issuer info and a newline if issuer info is enabled
+	 * */
+	private static String withIssuerInfo(String message) {
+		if (!includeIssuerInfo)
+			return message;
+
+		return getLogIssuerInfo() + System.lineSeparator() + message;
+	}
+
+
+	/**
+	 * Log using Level.INFO and default logger name. You may instead call AppLogger.getAppLogger(String name) to get a java.util.Logger instance with the name of the class where you are logging. Then you may use any of the java.util.logging.Level levels.
+	 * @param info message to log
+	 * */
+	public static void info(String info) {
 		// level.INFO for information
-		logger.log(Level.INFO, msg);
+		log(Level.INFO, info);
+	}
+
+	/**
+	 * Log using Level.INFO and default logger name. The message is formatted by String.format() only if INFO is enabled.
+	 * @param format message format
+	 * @param args format arguments
+	 * */
+	public static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	/**
+	 * Log using Level.INFO and default logger name. The supplier is called only if INFO is enabled.
+	 * @param info supplies the message to log
+	 * */
+	public static void info(Supplier<String> info) {
+		log(Level.INFO, info);
 	}
 
 	/**
@@ -241,14 +479,25 @@ public class AppLogger {
 	 * @param err message to log
 	 * */
 	public static void error(String err) {
+		// use SEVERE level for errors
+		log(Level.SEVERE, err);
+	}
 
-		String msg = String.format( "%1$s%0$n%2$s", getLogIssuerInfo(), err);
-
-		// use the default logger name
-		Logger logger = getAppLogger();
+	/**
+	 * Log using Level.SEVERE and default logger name. The message is formatted by String.format() only if SEVERE is enabled.
+	 * @param format message format
+	 * @param args format arguments
+	 * */
+	public static void error(String format, Object... args) {
+		log(Level.SEVERE, format, args);
+	}
 
-		// use SEVERE level for errors
-		logger.log(Level.SEVERE, msg);
+	/**
+	 * Log using Level.SEVERE and default logger name. The supplier is called only if SEVERE is enabled.
+	 * @param err supplies the message to log
+	 * */
+	public static void error(Supplier<String> err) {
+		log(Level.SEVERE, err);
 	}
 
 	/**
@@ -256,13 +505,42 @@ public class AppLogger {
 	 * @param debugInfo message to log
 	 * */
 	public static void debug(String debugInfo) {
+		// use Level.FINEST for debug information
+		log(Level.FINEST, debugInfo);
+	}
 
-		String msg = String.format( "%1$s%0$n%2$s", getLogIssuerInfo(), debugInfo);
+	/**
+	 * Log using Level.FINEST and default logger name. The message is formatted by String.format() only if FINEST is enabled.
+	 * @param format message format
+	 * @param args format arguments
+	 * */
+	public static void debug(String format, Object... args) {
+		log(Level.FINEST, format, args);
+	}
 
-		// use the default logger name
-		Logger logger = getAppLogger();
+	/**
+	 * Log using Level.FINEST and default logger name. The supplier is called only if FINEST is enabled.
+	 * @param debugInfo supplies the message to log
+	 * */
+	public static void debug(Supplier<String> debugInfo) {
+		log(Level.FINEST, debugInfo);
+	}
 
-		// use Level.FINEST for debug information
-		logger.log(Level.FINEST, msg);
+	/**
+	 * Whether debug() logs anything. A suppressed debug(format, args) call still boxes its arguments into an array,
+	 * so calls on hot paths test this first.
+	 * @return whether Level.FINEST is enabled for the shared logger
+	 * */
+	public static boolean isDebugEnabled() {
+		return getAppLogger().isLoggable(Level.FINEST);
+	}
+
+	/**
+	 * Whether error() logs anything.
+	 * @return whether Level.SEVERE is enabled for the shared logger
+	 * @see #isDebugEnabled()
+	 * */
+	public static boolean isErrorEnabled() {
+		return getAppLogger().isLoggable(Level.SEVERE);
 	}
 }
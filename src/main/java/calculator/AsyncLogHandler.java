@@ -0,0 +1,318 @@
+package calculator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler that hands records to a background thread.
+ * Logging threads put records into a bounded lock-free ring buffer; one writer thread takes them out in batches,
+ * formats them, and writes them to a buffered writer that is flushed once per batch. So logging threads never wait for disk I/O
+ * unless the buffer is full and the overflow policy is {@link OverflowPolicy#BLOCK}.
+ * @see AppLogger#setAsync(int, OverflowPolicy)
+ */
+public class AsyncLogHandler extends Handler {
+
+	/**
+	 * What to do with a record when the ring buffer can not take it.
+	 * */
+	public enum OverflowPolicy {
+		/**
+		 * wait until the writer thread makes room
+		 * */
+		BLOCK,
+
+		/**
+		 * drop records while the buffer is full
+		 * */
+		DROP,
+
+		/**
+		 * once the buffer is half full, keep only one in {@value AsyncLogHandler#SAMPLE_RATE} records; drop records while it is full
+		 * */
+		SAMPLE
+	}
+
+	/**
+	 * one in how many records is kept by {@link OverflowPolicy#SAMPLE} when the buffer is half full
+	 * */
+	public static final int SAMPLE_RATE = 16;
+
+	/**
+	 * maximum number of records written before a flush
+	 * */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * how long the writer thread sleeps when there is nothing to write
+	 * */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/* Ring buffer: slot i holds a record when sequences[i] == position + 1, and is free for position p when sequences[i] == p. */
+	private final LogRecord[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	/**
+	 * next position to be claimed by a logging thread
+	 * */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * next position to be taken by the writer thread; written only by the writer thread
+	 * */
+	private volatile long head;
+
+	/**
+	 * positions before this one are written and flushed; written only by the writer thread
+	 * */
+	private volatile long flushed;
+
+	private final OverflowPolicy policy;
+
+	/**
+	 * records offered while the buffer was half full; used by {@link OverflowPolicy#SAMPLE}
+	 * */
+	private final AtomicLong crowded = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Writer out;
+
+	/**
+	 * whether out is closed by close()
+	 * */
+	private final boolean closeOut;
+
+	private final Thread writer;
+
+	/**
+	 * set while the writer thread is parked with nothing to write
+	 * */
+	private volatile boolean idle;
+
+	private volatile boolean closed;
+
+	/**
+	 * Start a handler and its writer thread.
+	 * @param out destination of formatted records. Should be buffered; it is flushed after every batch.
+	 * @param closeOut whether close() closes out (false for System.err)
+	 * @param capacity ring buffer size; rounded up to a power of two
+	 * @param policy what to do when the buffer is full
+	 * */
+	public AsyncLogHandler(Writer out, boolean closeOut, int capacity, OverflowPolicy policy) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.buffer    = new LogRecord[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask      = size - 1;
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+
+		this.out      = out;
+		this.closeOut = closeOut;
+		this.policy   = policy;
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "calculator-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @return number of records dropped because the buffer was full (or sampled out)
+	 * */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record))
+			return;
+
+		if (policy == OverflowPolicy.SAMPLE && size() >= buffer.length / 2
+				&& crowded.getAndIncrement() % SAMPLE_RATE != 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		while (!offer(record)) {
+			if (policy != OverflowPolicy.BLOCK || closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+
+			// full: let the writer catch up
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * @return approximate number of records in the buffer
+	 * */
+	private long size() {
+		return tail.get() - head;
+	}
+
+	/**
+	 * Put a record into the ring buffer.
+	 * @return false if the buffer is full
+	 * */
+	private boolean offer(LogRecord record) {
+		long position = tail.get();
+
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				// slot is free for this position: claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					buffer[index] = record;
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			}
+			else if (difference < 0) {
+				// the writer has not taken the record from the previous round yet
+				return false;
+			}
+			else {
+				// another thread claimed this position
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Take the next record out of the ring buffer. Only called by the writer thread.
+	 * @return the record or null if there is none
+	 * */
+	private LogRecord poll() {
+		long position = head;
+		int index = (int) position & mask;
+
+		if (sequences.get(index) != position + 1)
+			return null;
+
+		LogRecord record = buffer[index];
+		buffer[index] = null;
+		sequences.lazySet(index, position + buffer.length);
+		head = position + 1;
+		return record;
+	}
+
+	/**
+	 * Body of the writer thread: write batches until closed and empty.
+	 * */
+	private void drainLoop() {
+		while (true) {
+			int written = 0;
+			LogRecord record;
+
+			while (written < BATCH_SIZE && (record = poll()) != null) {
+				write(record);
+				written++;
+			}
+
+			if (written > 0) {
+				flushOut();
+				flushed = head;
+				continue;
+			}
+
+			if (closed && tail.get() == head)
+				break;
+
+			idle = true;
+			// re-check after announcing idleness so that a record published meanwhile is not left waiting
+			if (tail.get() == head && !closed)
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			idle = false;
+		}
+	}
+
+	private void write(LogRecord record) {
+		try {
+			out.write(getFormatter() != null ? getFormatter().format(record) : record.getMessage());
+		}
+		catch (Exception ex) {
+			reportError(null, ex, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+	private void flushOut() {
+		try {
+			out.flush();
+		}
+		catch (IOException ex) {
+			reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+		}
+	}
+
+	/**
+	 * Wait until the records published so far are written and flushed.
+	 * */
+	@Override
+	public void flush() {
+		long target = tail.get();
+
+		while (flushed < target && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+	}
+
+	/**
+	 * Stop accepting records, wait until the writer thread has written all buffered records, and close the destination.
+	 * */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			}
+			catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+
+		try {
+			if (closeOut)
+				out.close();
+			else
+				out.flush();
+		}
+		catch (IOException ex) {
+			reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,167 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Evaluates newline-delimited expressions one line at a time and writes one output line per input line, in the same order.
+ * Only the current line is held in memory. A line that fails to evaluate produces an error line and does not stop the batch.
+ */
+class BatchEvaluator {
+
+	/**
+	 * prefix of the output line written for an expression that fails to evaluate
+	 * */
+	static final String ERROR_PREFIX = "ERROR: ";
+
+	/**
+	 * calculator reused for every line
+	 * */
+	private final Calculator calc;
+
+	/**
+	 * @param calc calculator used for all lines
+	 * */
+	BatchEvaluator(Calculator calc) {
+		this.calc = calc;
+	}
+
+	/**
+	 * Evaluate each line of in and write its result (or {@value #ERROR_PREFIX} and the error message) as a line to out.
+	 * @param in expressions, one per line
+	 * @param out results, one per line. Not flushed.
+	 * @return number of lines that failed to evaluate
+	 * @throws IOException if reading or writing fails
+	 * */
+	long run(BufferedReader in, Writer out) throws IOException {
+		long lineNumber = 0;
+		long errors = 0;
+		String line;
+
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+
+			String result = this.evaluateLine(line, lineNumber);
+			if (result.startsWith(ERROR_PREFIX))
+				errors++;
+
+			out.write(result);
+			out.write('\n');
+		}
+
+		AppLogger.info("Batch of %d expressions evaluated, %d failed", lineNumber, errors);
+		return errors;
+	}
+
+	/**
+	 * Evaluate each line of a mapped file, as {@link #run(BufferedReader, Writer)} does, without decoding it: each line is lexed from
+	 * the mapped bytes and evaluated in one pass as it is lexed (see {@link StreamEvaluator}), without the cache of the calculator.
+	 * Lines end with \n, \r\n or \r. Offsets in the log are byte offsets.
+	 * @param in the mapped file
+	 * @param out results, one per line. Not flushed.
+	 * @return number of lines that failed to evaluate
+	 * @throws IOException if writing fails
+	 * */
+	long run(MappedFile in, Writer out) throws IOException {
+		long size = in.size();
+		Calculator.Engine engine = calc.getEngine();
+		long lineNumber = 0;
+		long errors = 0;
+		long start = 0;
+
+		while (start < size) {
+			long end = start;
+			char c = 0;
+			while (end < size && (c = in.charAt(end)) != '\n' && c != '\r')
+				end++;
+
+			lineNumber++;
+
+			String result;
+			try {
+				result = Integer.toString(new StreamEvaluator(Lexer.of(in, start, end), engine).evaluate(Collections.<String, Number>emptyMap()));
+			}
+			catch (BadInputException ex) {
+				result = this.errorLine(ex, lineNumber);
+			}
+			if (result.startsWith(ERROR_PREFIX))
+				errors++;
+
+			out.write(result);
+			out.write('\n');
+
+			// skip the line break:
+			start = end + 1;
+			if (c == '\r' && start < size && in.charAt(start) == '\n')
+				start++;
+		}
+
+		AppLogger.info("Batch of %d expressions evaluated, %d failed", lineNumber, errors);
+		return errors;
+	}
+
+	/**
+	 * Evaluate each expression of an archive, as {@link #run(BufferedReader, Writer)} does for the lines it was compiled from,
+	 * without parsing them. An expression that failed to compile gives its error line.
+	 * @param in the archive
+	 * @param out results, one per expression. Not flushed.
+	 * @return number of expressions that failed to compile or evaluate
+	 * @throws IOException if the archive is damaged or writing fails
+	 * */
+	long run(ExpressionArchive in, Writer out) throws IOException {
+		long errors = 0;
+
+		for (int i = 0; i < in.size(); i++) {
+			String result;
+			try {
+				result = Integer.toString(in.get(i).evaluate());
+			}
+			catch (BadInputException ex) {
+				result = this.errorLine(ex, i + 1);
+			}
+			if (result.startsWith(ERROR_PREFIX))
+				errors++;
+
+			out.write(result);
+			out.write('\n');
+		}
+
+		AppLogger.info("Archive of %d expressions evaluated, %d failed", in.size(), errors);
+		return errors;
+	}
+
+	/**
+	 * Evaluate one line.
+	 * @param line the expression
+	 * @param lineNumber 1-based line number, for the log
+	 * @return the result or the error line
+	 * */
+	String evaluateLine(String line, long lineNumber) {
+		try {
+			return Integer.toString(calc.evaluate(line));
+		}
+		catch (BadInputException ex) {
+			return this.errorLine(ex, lineNumber);
+		}
+	}
+
+	/**
+	 * Log the error of a line.
+	 * @return the error line
+	 * */
+	private String errorLine(BadInputException ex, long lineNumber) {
+		// batches may have many failing lines:
+		if (!AppLogger.isErrorEnabled())
+			return ERROR_PREFIX + ex.getMessage();
+
+		if (ex.getOffset() >= 0)
+			AppLogger.error("Line %d, offset %d: %s", lineNumber, ex.getOffset(), ex.getMessage());
+		else
+			AppLogger.error("Line %d: %s", lineNumber, ex.getMessage());
+		return ERROR_PREFIX + ex.getMessage();
+	}
+}
@@ -1,12 +1,21 @@
 package calculator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  *
@@ -61,22 +70,241 @@ public class Calculator {
 	public static final String UNREACHABLE_CODE_REACHED = "This code should not have been reached.";
 	public static final String BAD_EXPRESSION = "Bad expression (empty/malformed).";
 	public static final String INVALID_INPUT = "Invalid input.";
+	public static final String DIVISION_BY_ZERO = "Division by zero";
+	public static final String INTEGER_OVERFLOW = "Integer overflow";
+
+
+	/**
+	 * Arithmetic used to evaluate expressions.
+	 * */
+	public enum Engine {
+		/**
+		 * double arithmetic, converted to int at the end: fractions of divisions are kept until then,
+		 * division by zero gives infinity (converted to Integer.MAX_VALUE or MIN_VALUE), and overflow is not detected
+		 * */
+		DOUBLE,
+
+		/**
+		 * exact long arithmetic: each division truncates toward zero, as the conversion to int does,
+		 * and division by zero or overflow (of long, or of the int result) is an error.
+		 * Operations that can not overflow are found by range analysis and are not checked.
+		 * */
+		LONG
+	}
 
 
 	/**
 	 * Exception showing bad input in expression provided to Calculator.
+	 * It carries the position of the fault in the expression when it is known, so callers do not have to parse again to find it.
+	 * Capturing the stack trace, the expensive part of creating an exception, can be turned off for inputs that are often malformed.
 	 * @author Tuhin Paul
 	 */
 	@SuppressWarnings("serial")
-	public class BadInputException extends Exception {
+	public static class BadInputException extends Exception {
+
+		/**
+		 * whether new exceptions capture the stack trace
+		 * */
+		private static volatile boolean stackTraceCapture = true;
+
+		/**
+		 * 0-based index of the token at fault; -1 if unknown
+		 * */
+		private final int tokenIndex;
+
+		/**
+		 * character offset of the token at fault in the expression; -1 if unknown
+		 * */
+		private final int offset;
 
 		public BadInputException(String message) {
-			super(message);
+			this(message, -1, -1);
+		}
+
+		/**
+		 * @param message the error message
+		 * @param tokenIndex 0-based index of the token at fault; -1 if unknown
+		 * @param offset character offset of the token at fault in the expression; -1 if unknown
+		 * */
+		public BadInputException(String message, int tokenIndex, int offset) {
+			super(message, null, true, stackTraceCapture);
+			this.tokenIndex = tokenIndex;
+			this.offset     = offset;
+		}
+
+		/**
+		 * @return 0-based index of the token at fault (the number of tokens if the expression ended too early); -1 if unknown
+		 * */
+		public int getTokenIndex() {
+			return tokenIndex;
 		}
+
+		/**
+		 * @return character offset of the token at fault in the expression (its length if it ended too early);
+		 * -1 if unknown, e.g., for tokens given as an array
+		 * */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Turn capturing of stack traces in new exceptions on (the default) or off.
+		 * Without a stack trace, creating an exception is much cheaper; messages and positions are not affected.
+		 * @param capture whether to capture stack traces
+		 * */
+		public static void setStackTraceCapture(boolean capture) {
+			stackTraceCapture = capture;
+		}
+
+		/**
+		 * @return whether new exceptions capture the stack trace
+		 * */
+		public static boolean isStackTraceCapture() {
+			return stackTraceCapture;
+		}
+	}
+
+	/**
+	 * Cache of compiled expressions. Null unless enabled.
+	 * */
+	private volatile ExpressionCache cache;
+
+	/**
+	 * Arithmetic of compiled expressions.
+	 * */
+	private volatile Engine engine = Engine.DOUBLE;
+
+	/**
+	 * Choose the arithmetic of this calculator. The default is {@link Engine#DOUBLE}.
+	 * Cached expressions are dropped, so that later evaluations use the new engine.
+	 * @param engine the engine
+	 */
+	public void setEngine(Engine engine) {
+		if (engine == null)
+			throw new IllegalArgumentException("Engine must not be null");
+
+		this.engine = engine;
+
+		ExpressionCache cache = this.cache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * @return the arithmetic of this calculator
+	 */
+	public Engine getEngine() {
+		return this.engine;
+	}
+
+	/**
+	 * Whether token trees are simplified by the {@link Optimizer} before they are lowered.
+	 * */
+	private volatile boolean optimizationEnabled = true;
+
+	/**
+	 * Turn the optimizer (constant folding, identities, inlining of constant let variables) on or off, e.g., to debug it.
+	 * It is on by default. Cached expressions are dropped, so that later evaluations use the new setting.
+	 * @param enabled whether to optimize expressions
+	 */
+	public void setOptimizationEnabled(boolean enabled) {
+		this.optimizationEnabled = enabled;
+
+		ExpressionCache cache = this.cache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * @return whether expressions are optimized before they are lowered
+	 */
+	public boolean isOptimizationEnabled() {
+		return this.optimizationEnabled;
+	}
+
+	/**
+	 * Whether structurally identical subtrees are shared while the token tree is built.
+	 * */
+	private volatile boolean sharingEnabled;
+
+	/**
+	 * Turn sharing of common subexpressions on or off. With sharing, structurally identical subtrees with the same variable bindings
+	 * are parsed into one node of a DAG, and the compiled expression evaluates each shared subtree once per evaluation.
+	 * It is off by default. Cached expressions are dropped, so that later evaluations use the new setting.
+	 * @param enabled whether to share common subexpressions
+	 * @see CompiledExpression#getDedupRatio()
+	 */
+	public void setSharingEnabled(boolean enabled) {
+		this.sharingEnabled = enabled;
+
+		ExpressionCache cache = this.cache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * @return whether common subexpressions are shared
+	 */
+	public boolean isSharingEnabled() {
+		return this.sharingEnabled;
+	}
+
+	/**
+	 * Whether compiled expressions are turned into generated classes.
+	 * */
+	private volatile boolean codeGenerationEnabled;
+
+	/**
+	 * Turn code generation on or off. With code generation, each compiled expression becomes a JVM class whose evaluate method
+	 * is straight-line code, which the JIT compiles to machine code with values in registers. This pays off for expressions that are
+	 * evaluated many times; generating a class costs much more than one evaluation. Expressions too big for the JIT run in the interpreter.
+	 * Generated classes are unloaded with their expressions.
+	 * It is off by default. Cached expressions are dropped, so that later evaluations use the new setting.
+	 * @param enabled whether to generate classes
+	 * @see CompiledExpression#isGenerated()
+	 */
+	public void setCodeGenerationEnabled(boolean enabled) {
+		this.codeGenerationEnabled = enabled;
+
+		ExpressionCache cache = this.cache;
+		if (cache != null)
+			cache.clear();
 	}
 
 	/**
-	 * Tokenize a string. Empty strings are not tokens.
+	 * @return whether compiled expressions are turned into generated classes
+	 */
+	public boolean isCodeGenerationEnabled() {
+		return this.codeGenerationEnabled;
+	}
+
+	/**
+	 * Keep up to maxSize compiled expressions (and their values when they have no free variables) so that
+	 * evaluating or compiling the same expression text again does not tokenize or build the token tree.
+	 * Replaces any previously enabled cache.
+	 * @param maxSize maximum number of expressions to keep. Must be positive.
+	 */
+	public void enableCache(int maxSize) {
+		this.cache = new ExpressionCache(maxSize);
+	}
+
+	/**
+	 * Stop caching compiled expressions.
+	 */
+	public void disableCache() {
+		this.cache = null;
+	}
+
+	/**
+	 * @return the expression cache with its hit, miss, and eviction counters, or null if caching is not enabled.
+	 */
+	public ExpressionCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Tokenize a string. Empty strings are not tokens, except the first one when the string starts with delimiters,
+	 * as with {@link String#split(String)}.
 	 * @param inStr the input string to tokenize.
 	 * @return the tokens using delimiters: whitespace, comma, and parentheses.
 	 */
@@ -88,15 +316,31 @@ public class Calculator {
 			AppLogger.debug("Calculator.tokenize() called on null.");
 			return tokens;
 		}
-		
-		if(inStr.trim().length() == 0) {
-			// TODO: consider throwing exception?
-			return tokens;
+
+		// single scan over the characters; no regex
+		List<String> list = new ArrayList<>();
+		int length = inStr.length();
+		int i = 0;
+
+		// as String.split(), leading delimiters give an empty first token unless the string is only delimiters:
+		while (i < length && Lexer.isDelimiter(inStr.charAt(i)))
+			i++;
+		if (i > 0 && i < length)
+			list.add("");
+		while (i < length) {
+			// skip delimiters
+			while (i < length && Lexer.isDelimiter(inStr.charAt(i)))
+				i++;
+
+			int start = i;
+			while (i < length && !Lexer.isDelimiter(inStr.charAt(i)))
+				i++;
+
+			if (i > start)
+				list.add(inStr.substring(start, i));
 		}
-		
-		tokens = inStr.split("[\\s,\\(\\)]+");
 
-		return tokens;
+		return list.toArray(tokens);
 	}
 
 	/**
@@ -107,31 +351,143 @@ public class Calculator {
 	 * @throws Calculator.BadInputException
 	 */
 	public int evaluate(String expr) throws BadInputException {
-		// tokenize input expression:
-		String[] tokens = this.tokenize(expr);
+		ExpressionCache cache = this.cache;
+		if (cache == null || expr == null)
+			return this.parse(expr).evaluate();
 
-		// token tree object:
-		TokenTree tree = new TokenTree(tokens);
+		return this.cached(cache, expr).evaluate();
+	}
 
-		// evaluate the expression by traversing the token tree:
-		double result = tree.evaluate();
-		
-		// TODO: cleanup tree?
-		
-		return (int)result;
+	/**
+	 * Evaluate an expression read from a reader in one streaming pass, e.g., an expression too large for a String.
+	 * The expression is read in chunks and evaluated as its tokens are read, without a token tree, so memory grows with the nesting depth
+	 * (and the longest token), not with the length of the expression. The expression is not cached, compiled or optimized;
+	 * results and errors are those of {@link #compile(String)} without the optimizer.
+	 *
+	 * @param in the expression; read to its end or to the first error, and not closed
+	 * @return the evaluated value
+	 * @throws Calculator.BadInputException if the expression can not be evaluated; positions past the int range are -1
+	 * @throws IOException if reading fails
+	 */
+	public int evaluateStream(Reader in) throws BadInputException, IOException {
+		return this.evaluateStream(in, Collections.<String, Number>emptyMap());
+	}
+
+	/**
+	 * Evaluate an expression read from a reader in one streaming pass, binding its free variables.
+	 * @see #evaluateStream(Reader)
+	 * @param in the expression; read to its end or to the first error, and not closed
+	 * @param bindings values of the variables not defined by a let in the expression
+	 * @return the evaluated value
+	 * @throws Calculator.BadInputException if the expression can not be evaluated, e.g., a free variable has no value
+	 * @throws IOException if reading fails
+	 */
+	public int evaluateStream(Reader in, Map<String, ? extends Number> bindings) throws BadInputException, IOException {
+		try {
+			return new StreamEvaluator(Lexer.of(in), this.engine).evaluate(bindings);
+		}
+		catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/**
+	 * Evaluate a UTF-8 expression read from a stream in one streaming pass.
+	 * @see #evaluateStream(Reader)
+	 * @param in the expression; not closed
+	 * @return the evaluated value
+	 * @throws Calculator.BadInputException if the expression can not be evaluated
+	 * @throws IOException if reading fails
+	 */
+	public int evaluateStream(InputStream in) throws BadInputException, IOException {
+		return this.evaluateStream(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Evaluate a UTF-8 expression read from a channel in one streaming pass.
+	 * @see #evaluateStream(Reader)
+	 * @param in the expression; not closed
+	 * @return the evaluated value
+	 * @throws Calculator.BadInputException if the expression can not be evaluated
+	 * @throws IOException if reading fails
+	 */
+	public int evaluateStream(ReadableByteChannel in) throws BadInputException, IOException {
+		return this.evaluateStream(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(), Lexer.CHUNK_SIZE));
+	}
+
+	/**
+	 * Evaluate the expression in a file in one streaming pass over the file mapped into memory, e.g., an expression of several GB.
+	 * The bytes are lexed as they are, without decoding them to chars; offsets in errors are byte offsets.
+	 * @see #evaluateStream(Reader)
+	 * @param file the file holding the expression
+	 * @return the evaluated value
+	 * @throws Calculator.BadInputException if the expression can not be evaluated
+	 * @throws IOException if the file can not be mapped
+	 */
+	public int evaluateFile(Path file) throws BadInputException, IOException {
+		MappedFile mapped = MappedFile.map(file);
+		return new StreamEvaluator(Lexer.of(mapped, 0, mapped.size()), this.engine).evaluate(Collections.<String, Number>emptyMap());
+	}
+
+	/**
+	 * Parse the expression once. The returned expression can be evaluated any number of times, from any thread,
+	 * without tokenizing or building the token tree again.
+	 *
+	 * @param expr the expression to compile.
+	 * @return the compiled expression.
+	 * @throws Calculator.BadInputException if the expression can not be parsed
+	 */
+	public CompiledExpression compile(String expr) throws BadInputException {
+		ExpressionCache cache = this.cache;
+		if (cache == null || expr == null)
+			return this.parse(expr);
+
+		return this.cached(cache, expr).expression;
+	}
+
+	/**
+	 * Find the expression in the cache, compiling and adding it on a miss.
+	 * */
+	private ExpressionCache.CacheEntry cached(ExpressionCache cache, String expr) throws BadInputException {
+		ExpressionCache.CacheEntry entry = cache.get(expr);
+		if (entry == null)
+			entry = cache.put(expr, this.parse(expr));
+
+		return entry;
+	}
+
+	/**
+	 * Tokenize the expression, build its token tree, optimize and lower it.
+	 * */
+	private CompiledExpression parse(String expr) throws BadInputException {
+		// token tree object reading tokens straight from the expression:
+		TokenTree tree = new TokenTree(Lexer.of(expr), this.sharingEnabled);
+		Node root = tree.parse();
+		Engine engine = this.engine;
+
+		if (this.optimizationEnabled)
+			root = Optimizer.optimize(root, tree.isShared(), engine);
+
+		// lower the tree to a flat program; the tree itself is not kept:
+		Program program = Program.compile(root, tree.isShared(), engine);
+		ClassGenerator.Evaluator evaluator = this.codeGenerationEnabled ? ClassGenerator.generate(program) : null;
+
+		return new CompiledExpression(program, tree.getDedupRatio(), evaluator);
 	}
 
 	
 	/**
 	 * This class constructs a token tree from an array of tokens.
 	 * The tree is evaluated using a post order-traversal.
+	 * While the tree is built, every variable is resolved to a slot of a double[] frame following the lexical scope of let:
+	 * the variable of a let is visible in its body only, and an inner let of the same name shadows the outer one.
 	 * @author Tuhin Paul
 	 */
 	class TokenTree {
 		/**
-		 * Store the tokens in a queue to process them in FCFS manner:
+		 * Source of tokens, consumed in FCFS manner:
  		 * */
-		private Queue<String> tokens;
+		private Lexer tokens;
 
 		/**
 		 * Tree root
@@ -139,9 +495,44 @@ public class Calculator {
 		private Node root;
 
 		/**
-		 * While post-order traversing the tree, save values of resolved variables in a Hashtable.
+		 * While the tree is built: slot of each variable name in scope, ~i for the i-th free variable.
+		 */
+		private Map<String, Integer> scope = new HashMap<>();
+
+		/**
+		 * While the tree is built: slot a name had before the let variable in the slot (the index) shadowed it, null if none.
 		 */
-		private Hashtable<String, Double> varMap;
+		private Integer[] shadowed = new Integer[16];
+
+		/**
+		 * While the tree is built: number of let variables in scope.
+		 */
+		private int numBound;
+
+		/**
+		 * Let slots of the frame: the deepest nesting of let bodies.
+		 */
+		private int numSlots;
+
+		/**
+		 * First use of each variable not defined by an enclosing let, in order.
+		 */
+		private List<Node> freeVariables = new ArrayList<>();
+
+		/**
+		 * While the tree is built in shared mode: interns complete subtrees. Null if sharing is off.
+		 */
+		private NodeInterner interner;
+
+		/**
+		 * While the tree is built in shared mode: value of the let variable in each slot in scope.
+		 */
+		private Node[] bindings;
+
+		/**
+		 * Nodes parsed per node kept: 1 for a tree, more if identical subtrees are shared.
+		 */
+		private double dedupRatio = 1;
 
 		/**
 		 * Constructor must take the tokens to initialize the internal queue of tokens.
@@ -152,152 +543,341 @@ public class Calculator {
 			if(tokenArr == null)
 				throw new BadInputException(Calculator.INVALID_INPUT + " The array of tokes can not be null.");
 
-			this.tokens = new LinkedList<String>();
-
 			// assign tokens:
-			this.tokens.addAll(Arrays.asList(tokenArr));
+			this.tokens = Lexer.of(tokenArr);
+			this.tokens.next();
 			
 			// initialize root:
 			root = new Node();
 		}
 
+		/**
+		 * Constructor reading the tokens from a lexer.
+		 * @param lexer the lexer positioned before the first token
+		 * */
+		TokenTree(Lexer lexer) {
+			this(lexer, false);
+		}
 
 		/**
-		 * Check if a literal is a valid variable name where variable name is /[a-zA-Z]+/.
-		 * @param literal the string to check
-		 * @return whether or not the argument literal is a valid variable name (/[a-zA-Z]+/).
+		 * Constructor reading the tokens from a lexer, optionally sharing identical subtrees.
+		 * @param lexer the lexer positioned before the first token
+		 * @param sharing whether to build a DAG in which structurally identical subtrees with the same variable bindings are one node
 		 * */
-		public boolean isLiteral(String literal) {
+		TokenTree(Lexer lexer, boolean sharing) {
+			this.tokens = lexer;
+			this.tokens.next();
 
-			if(literal == null)
-				return false;
+			if (sharing) {
+				this.interner = new NodeInterner();
+				this.bindings = new Node[16];
+			}
 
-			String regex = "^[a-zA-Z]+$";
+			// initialize root:
+			root = new Node();
+		}
 
-			// compile the regex
-			Pattern pattern = Pattern.compile(regex);
 
-			// applying the regex on the input string:
-			Matcher matcher = pattern.matcher(literal);
+		/**
+		 * Check if a literal is a valid variable name where variable name is /[a-zA-Z]+/.
+		 * Uses the classification of the lexer: one scan, no regex.
+		 * @param literal the string to check
+		 * @return whether or not the argument literal is a valid variable name (/[a-zA-Z]+/).
+		 * */
+		public boolean isLiteral(String literal) {
+			int type = Lexer.typeOf(literal);
 
-			return matcher.find();
+			// operator names are made of letters as well:
+			return type == Lexer.IDENT || (type >= Lexer.LET && type <= Lexer.DIV);
 		}
 
 
 		/**
 		 * Checks if a string represent a valid java integer
+		 * Uses the classification of the lexer: one scan, no exception for strings that are not integers.
 		 * @param literal the string to check.
 		 * @return whether or not the argument represents a valid java integer.
 		 * */
 		public boolean isNumeric(String literal) {
-
-			/* avoiding Regex check because the specification says that the value should be an int in [Integer.MIN_VALUE, Integer.MAX_VALUE] */
-			try {
-				int intVal = Integer.parseInt(literal);
-				return true;
-			}
-			catch (NumberFormatException ex) {
-				//ex.printStackTrace();
-				return false;
-			}
+			// integers out of the int range are Lexer.OVERFLOW:
+			return Lexer.typeOf(literal) == Lexer.INT;
 		}
 
 		/**
-		 * construct tree from token queue using pre-order traversal
+		 * construct tree from token queue using pre-order traversal.
+		 * Uses an explicit stack of unfinished operation nodes instead of recursion, so the nesting depth is only limited by the heap.
 		 * @param n the root node of current subtree
 		 * */
 		private void makeTree(Node n) throws BadInputException {
-			String topToken = this.tokens.peek();
+			// operation nodes that still need children; top is the innermost:
+			ArrayDeque<Node> open = new ArrayDeque<>();
 
-			// next token:
-			if (topToken == null) {
-				// It can happen if: 1) empty expression is provided or 2) malformed expression is provided:
-				throw new BadInputException(Calculator.BAD_EXPRESSION); // TODO: add other info to the exception
-			}
+			Node current = n;
 
-			switch(topToken) {
-				// let operation starts:
-				case OP_LET:
-				// add operation starts:
-				case OP_ADD:
-				// sub operation starts:
-				case OP_SUB:
-				// mult operation starts:
-				case OP_MUL:
-				// div operation starts:
-				case OP_DIV:
-					// Number of children for all operations except "let":
-					int numArms = 2;
-					if(topToken.equals(OP_LET))
-						numArms = 3;
+			while (true) {
+				int topToken = this.tokens.type();
+
+				// next token:
+				if (topToken == Lexer.EOF) {
+					// It can happen if: 1) empty expression is provided or 2) malformed expression is provided:
+					throw this.error(Calculator.BAD_EXPRESSION);
+				}
 
-					// if this is first time this node is accessed [as arg of this recursive fn]:
-					if(n.getOpName() == null) {
+				// position of the token, for errors found later:
+				current.setPosition(this.tokens.tokenIndex(), this.tokens.offset());
+
+				switch(topToken) {
+					// let operation starts:
+					case Lexer.LET:
+					// add operation starts:
+					case Lexer.ADD:
+					// sub operation starts:
+					case Lexer.SUB:
+					// mult operation starts:
+					case Lexer.MUL:
+					// div operation starts:
+					case Lexer.DIV:
 						// assign operation name
-						n.setOpName(topToken);
-						
+						current.setOpName(opName(topToken));
+
+						// the number of children is known; size the list for it:
+						current.setChildren(new ArrayList<Node>(numArms(current)));
+
 						// consume top token
-						this.tokens.poll();
-						
-						// append a child
-						Node child = new Node();
-						n.appendChild(child);
-						child.setParent(n);
-						
-						// process child:
-						this.makeTree(child);
-					}
-					
-					while(n.getChildren().size() < numArms) {						
-						// append next child
-						Node child = new Node();
-						n.appendChild(child);
-						child.setParent(n);
-
-						this.makeTree(child);
-					}
-					
-					break;
-				
-				// others (including numbers):
-				default:
+						this.tokens.next();
+
+						// children follow:
+						open.push(current);
+						break;
 
-					boolean isVariable = this.isLiteral(topToken);
-					boolean isNumber   = this.isNumeric(topToken);
-					
-					if (isVariable) {
+					case Lexer.IDENT:
 						// a variable needs a parent:
-						if(n.getParent() == null) {
-							throw new BadInputException(Calculator.WRONG_VARIABLE_POSITION); // TODO: add other info to the exception
+						if(current.getParent() == null) {
+							throw this.error(Calculator.WRONG_VARIABLE_POSITION);
+						}
+
+						// add a variable child:
+						current.setOpName(OP_VAR);
+						current.setVarName(this.tokens.identifier());
+
+						// the variable of a let gets its slot when the body starts; others are resolved now:
+						if (!this.isLetVariable(current)) {
+							current.setSlot(this.resolve(current));
+							this.share(current);
 						}
-						
-						// add a variable child:						
-						n.setOpName(OP_VAR);
-						n.setVarName(topToken);
-						
+
 						// consume top token
-						this.tokens.poll();
-					}
-					else if (isNumber) {
+						this.tokens.next();
+						break;
+
+					case Lexer.INT:
 						// add a numeric child:
-						n.setOpName(OP_INT);
-						n.setValue(Double.parseDouble(topToken));
-						
+						current.setOpName(OP_INT);
+						current.setValue((double) this.tokens.intValue());
+						this.share(current);
+
 						// consume top token
-						this.tokens.poll();
-					}
-					else {
-						// TODO: add other info to the exception:
-						throw new BadInputException(Calculator.UNKNOWN_LITERAL_TYPE);
-					}
+						this.tokens.next();
+						break;
+
+					// integer out of the int range:
+					case Lexer.OVERFLOW:
+						throw this.error(Calculator.INTEGER_OVERFLOW + ": " + this.tokens.text());
+
+					// others:
+					default:
+						throw this.error(Calculator.UNKNOWN_LITERAL_TYPE);
+				}
 
+				// close the operations that have all their children:
+				while (!open.isEmpty() && open.peek().getChildren().size() == numArms(open.peek())) {
+					Node done = open.pop();
+
+					// the variable of a let goes out of scope after the body:
+					if (OP_LET.equals(done.getOpName()))
+						this.unbind(done);
+
+					this.share(done);
+				}
+
+				if (open.isEmpty())
 					break;
+
+				// append next child to the innermost open operation:
+				Node parent = open.peek();
+
+				// the variable of a let is in scope in the body (the third child) only:
+				if (OP_LET.equals(parent.getOpName()) && parent.getChildren().size() == 2)
+					this.bind(parent);
+
+				current = new Node();
+				parent.appendChild(current);
+				current.setParent(parent);
 			}
 
 			// If tree constructed or there are more nodes in the tokens queue:
 			// throw bad input exception
-			if(n == this.root && this.tokens.size() > 0)
-				throw new BadInputException(Calculator.BAD_EXPRESSION);
+			if(n == this.root && this.tokens.type() != Lexer.EOF)
+				throw this.error(Calculator.BAD_EXPRESSION);
+		}
+
+		/**
+		 * @param message the error message
+		 * @return an exception at the position of the current token
+		 * */
+		private BadInputException error(String message) {
+			return new BadInputException(message, this.tokens.tokenIndex(), this.tokens.offset());
+		}
+
+		/**
+		 * @param n a variable node
+		 * @return whether n is the leftmost operand of a let, i.e., the variable being defined
+		 * */
+		private boolean isLetVariable(Node n) {
+			Node parent = n.getParent();
+			return OP_LET.equals(parent.getOpName()) && parent.getChildren().get(0) == n;
+		}
+
+		/**
+		 * Bring the variable of a let into scope before its body is parsed. The variable gets the slot of its nesting level.
+		 * @param let the let node with its first two children
+		 * @throws BadInputException if the first child is not a variable
+		 * */
+		private void bind(Node let) throws BadInputException {
+			Node var = let.getChildren().get(0);
+			if (!OP_VAR.equals(var.getOpName()))
+				throw new BadInputException(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE, var.getTokenIndex(), var.getOffset());
+
+			int slot = this.numBound++;
+			if (this.numBound > this.numSlots)
+				this.numSlots = this.numBound;
+
+			if (slot == this.shadowed.length)
+				this.shadowed = Arrays.copyOf(this.shadowed, slot * 2);
+
+			this.shadowed[slot] = this.scope.put(var.getVarName(), slot);
+			var.setSlot(slot);
+
+			if (this.interner != null) {
+				if (slot == this.bindings.length)
+					this.bindings = Arrays.copyOf(this.bindings, slot * 2);
+				this.bindings[slot] = let.getChildren().get(1);
+			}
+		}
+
+		/**
+		 * Take the variable of a let out of scope after its body, making visible what it shadowed.
+		 * @param let the complete let node
+		 * */
+		private void unbind(Node let) {
+			Node var = let.getChildren().get(0);
+			Integer previous = this.shadowed[var.getSlot()];
+			this.shadowed[var.getSlot()] = null;
+
+			if (previous == null)
+				this.scope.remove(var.getVarName());
+			else
+				this.scope.put(var.getVarName(), previous);
+
+			this.numBound--;
+		}
+
+		/**
+		 * In shared mode, replace a complete node by the shared node with the same structure, if there is one.
+		 * @param n a complete node; the last child of its parent
+		 * */
+		private void share(Node n) {
+			if (this.interner == null)
+				return;
+
+			int slot = n.getSlot();
+			Node binding = OP_VAR.equals(n.getOpName()) && slot >= 0 ? this.bindings[slot] : null;
+
+			Node shared = this.interner.intern(n, binding);
+			if (shared != n && n.getParent() != null) {
+				List<Node> siblings = n.getParent().getChildren();
+				siblings.set(siblings.size() - 1, shared);
+			}
+		}
+
+		/**
+		 * @param var use of a variable in the expression
+		 * @return the slot of the innermost let defining the variable, or ~i if it is the i-th free variable
+		 * */
+		private int resolve(Node var) {
+			String name = var.getVarName();
+			Integer slot = this.scope.get(name);
+			if (slot == null) {
+				slot = ~this.freeVariables.size();
+				this.freeVariables.add(var);
+				this.scope.put(name, slot);
+			}
+			return slot;
+		}
+
+		/**
+		 * @param n an operation node
+		 * @return number of children of the operation: 3 for let, 2 for the others.
+		 * */
+		private int numArms(Node n) {
+			return OP_LET.equals(n.getOpName()) ? 3 : 2;
+		}
+
+		/**
+		 * @param token operator token type
+		 * @return the operation name for the token
+		 * */
+		private String opName(int token) {
+			switch (token) {
+				case Lexer.LET: return OP_LET;
+				case Lexer.ADD: return OP_ADD;
+				case Lexer.SUB: return OP_SUB;
+				case Lexer.MUL: return OP_MUL;
+				default:        return OP_DIV;
+			}
+		}
+
+		/**
+		 * Construct the tree from the tokens. Only the first call consumes tokens; later calls return the same tree.
+		 * @return the root of the tree
+		 * @throws BadInputException if the tokens do not form an expression
+		 * */
+		Node parse() throws BadInputException {
+			if (this.tokens != null) {
+				this.makeTree(this.root);
+
+				// the tree is complete, the token source and scopes are not needed anymore:
+				this.tokens   = null;
+				this.scope    = null;
+				this.shadowed = null;
+
+				if (this.interner != null) {
+					long parsed = this.interner.getInterned();
+					long kept   = this.interner.getShared();
+					this.dedupRatio = (double) parsed / kept;
+					if (AppLogger.isDebugEnabled())
+						AppLogger.debug("Shared DAG keeps %d of %d nodes", kept, parsed);
+
+					this.interner = null;
+					this.bindings = null;
+				}
+			}
+
+			return this.root;
+		}
+
+		/**
+		 * @return nodes parsed per node kept; more than 1 if identical subtrees were shared
+		 * */
+		double getDedupRatio() {
+			return this.dedupRatio;
+		}
+
+		/**
+		 * @return whether the tree is a DAG, i.e., some nodes have more than one parent
+		 * */
+		boolean isShared() {
+			return this.dedupRatio > 1;
 		}
 
 		/**
@@ -324,106 +904,149 @@ public class Calculator {
 			}
 
 			// construct the tree from the queue of tokens:
-			this.makeTree(this.root);
-			
-			if(varMap == null)
-				varMap = new Hashtable<>();
-			else {
-				// cleanup required:
-				varMap.clear();
+			this.parse();
+
+			// there are no values for free variables:
+			if (!this.freeVariables.isEmpty()) {
+				Node var = this.freeVariables.get(0);
+				throw new BadInputException(Calculator.UNDEFINED_VARIABLE + ": " + var.getVarName(), var.getTokenIndex(), var.getOffset());
 			}
+
 			// evaluate the tree
-			return this.evaluate(this.root);
+			return this.evaluate(this.root, new double[this.numSlots]);
 		}
 
 		/**
 		 * Evaluates the tree/subtree rooted at the node provided as the argument.
-		 * Note that this method is not called on the leftmost child of a "let" node because that is a L-value.
+		 * Note that this method does not evaluate the leftmost child of a "let" node because that is a L-value.
+		 * The tree is only read, so several threads may evaluate the same tree with their own frames.
+		 * The post-order traversal keeps its pending nodes and intermediate values on explicit stacks instead of recursion,
+		 * so the nesting depth is only limited by the heap.
 		 * @param n the root of the tree/subtree being evaluated.
+		 * @param frame values of variables by slot: let slots first, then the values of the free variables.
 		 * @return the evaluated result of the tree rooted at n.
 		 * */
-		private double evaluate(Node n) throws BadInputException {
+		double evaluate(Node n, double[] frame) throws BadInputException {
 
-			// operator name or type of the subtree root
-			String opName = n.getOpName();
+			// nodes being visited and the index of the child to visit next:
+			Node[] nodes = new Node[16];
+			int[]  next  = new int[16];
+			int top = 0;
+			nodes[0] = n;
 
-			// root children
-			List<Node> children;
+			// values of evaluated subtrees:
+			double[] values = new double[16];
+			int numValues = 0;
 
-			// child 1 if present
-			Node child1;
-			// child 2 if present
-			Node child2;
-			// child 3 if present
-			Node child3;
+			while (top >= 0) {
+				Node node = nodes[top];
 
-			// number of children this root node should have:
-			int numDesiredChildren;
-			
-			switch(opName) {
-			case OP_LET:
-			case OP_ADD:
-			case OP_SUB:
-			case OP_MUL:
-			case OP_DIV:
-
-				// let has 3 children, other binary operations have 2:
-				if (opName.equals(OP_LET))
-					numDesiredChildren = 3;
-				else
-					numDesiredChildren = 2;
-
-				// validate number of children
-				children = n.getChildren();
-				if(children.size() != numDesiredChildren)
-					throw new BadInputException(Calculator.WRONG_NUM_OF_OPERANDS + " for " + opName);
-				
-				child1 = children.get(0);
-				child2 = children.get(1);
-
-
-				// recursively evaluate children nodes and compute the result:
-				if(opName.equals(OP_ADD))
-					return this.evaluate(child1) + this.evaluate(child2);
-				else if(opName.equals(OP_SUB))
-					return this.evaluate(child1) - this.evaluate(child2);
-				else if(opName.equals(OP_MUL))
-					return this.evaluate(child1) * this.evaluate(child2);
-				else if(opName.equals(OP_DIV))
-					return 1.0 * this.evaluate(child1) / this.evaluate(child2);
-				else if(opName.equals(OP_LET)) {
-					// child1 should be a variable
-					if(! child1.getOpName().equals(OP_VAR))
-						throw new BadInputException(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE);
-					
-					// assign variable value to hash:
-					this.varMap.put(child1.getVarName(), this.evaluate(child2));
-
-					// return the value of child 3 for let:
-					child3 = children.get(2);
-					return this.evaluate(child3);
+				// operator name or type of the subtree root
+				String opName = node.getOpName();
+
+				// child to visit next, if any:
+				Node child = null;
+
+				switch(opName) {
+				case OP_LET:
+				case OP_ADD:
+				case OP_SUB:
+				case OP_MUL:
+				case OP_DIV:
+
+					// let has 3 children, other binary operations have 2:
+					int numDesiredChildren = this.numArms(node);
+
+					// validate number of children
+					List<Node> children = node.getChildren();
+					if(children.size() != numDesiredChildren)
+						throw new BadInputException(Calculator.WRONG_NUM_OF_OPERANDS + " for " + opName, node.getTokenIndex(), node.getOffset());
+
+					int index = next[top];
+
+					if(opName.equals(OP_LET)) {
+						Node var = children.get(0);
+
+						if (index == 0) {
+							// child1 should be a variable
+							if(! var.getOpName().equals(OP_VAR))
+								throw new BadInputException(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE, var.getTokenIndex(), var.getOffset());
+
+							// evaluate the value of the variable:
+							child = children.get(1);
+							next[top] = 2;
+						}
+						else if (index == 2) {
+							// assign variable value to its slot:
+							frame[var.getSlot()] = values[--numValues];
+
+							// the value of child 3 is the value of let:
+							child = children.get(2);
+							next[top] = 3;
+						}
+						else {
+							// value of child 3 is on the value stack already
+							top--;
+						}
+					}
+					else if (index < 2) {
+						// evaluate the operands first:
+						child = children.get(index);
+						next[top] = index + 1;
+					}
+					else {
+						// compute the result from the operand values:
+						double b = values[--numValues];
+						double a = values[numValues - 1];
+
+						if(opName.equals(OP_ADD))
+							values[numValues - 1] = a + b;
+						else if(opName.equals(OP_SUB))
+							values[numValues - 1] = a - b;
+						else if(opName.equals(OP_MUL))
+							values[numValues - 1] = a * b;
+						else
+							values[numValues - 1] = 1.0 * a / b;
+
+						top--;
+					}
+					break;
+
+				case OP_VAR: {
+					// free variables follow the let slots:
+					int slot = node.getSlot();
+					if (numValues == values.length)
+						values = Arrays.copyOf(values, numValues * 2);
+					values[numValues++] = frame[slot >= 0 ? slot : this.numSlots + ~slot];
+					top--;
+					break;
+				}
+
+				case OP_INT:
+					// if this is a number, push it
+					if (numValues == values.length)
+						values = Arrays.copyOf(values, numValues * 2);
+					values[numValues++] = node.getValue();
+					top--;
+					break;
+
+				default:
+					// contol here means: unknown literal/operator:
+					throw new BadInputException(Calculator.UNKNOWN_LITERAL_TYPE + ": " + opName, node.getTokenIndex(), node.getOffset());
 				}
-				
-				break;
 
-			case OP_VAR:
-				// if this variable is not found in the variable hashtable:
-				if(! this.varMap.containsKey(n.getVarName()) ) {
-					throw new BadInputException(Calculator.UNDEFINED_VARIABLE + ": " + n.getVarName()); // TODO: Add more info
+				if (child != null) {
+					// visit the child next:
+					if (++top == nodes.length) {
+						nodes = Arrays.copyOf(nodes, top * 2);
+						next  = Arrays.copyOf(next, top * 2);
+					}
+					nodes[top] = child;
+					next[top]  = 0;
 				}
-				return this.varMap.get(n.getVarName());
-				
-			case OP_INT:
-				// if this is a number, return it
-				return n.getValue();
-
-			default:
-				// contol here means: unknown literal/operator:
-				throw new BadInputException(Calculator.UNKNOWN_LITERAL_TYPE + ": " + opName);
 			}
-			
-			// control of execution should not reach following line:
-			throw new BadInputException(UNREACHABLE_CODE_REACHED);
+
+			return values[0];
 		}
 
 	}
@@ -0,0 +1,481 @@
+package calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates a JVM class for a {@link Program}. The operand stack of the program becomes the JVM operand stack and its slots become local variables,
+ * so the generated evaluate() is straight-line code that the JIT compiles like a hand-written method: no dispatch, no arrays, values in registers.
+ * Class files are written by a small writer in this class, without a bytecode library.
+ * Each class is defined by a class loader of its own, so it is unloaded once its expression is no longer referenced.
+ * Programs whose method would be too big for the JIT are not generated; they keep running in the interpreter.
+ */
+final class ClassGenerator {
+
+	/**
+	 * Generated code of a program. Public, because classes of other class loaders implement it.
+	 * */
+	public interface Evaluator {
+		/**
+		 * @param vars values of the free variables, in the order of {@link Program#names}. For the long engine, they must be ints.
+		 * @return the result; for the long engine, the long result converted to double
+		 * @throws ArithmeticException with the long engine, on overflow or division by zero
+		 * */
+		double evaluate(double[] vars);
+	}
+
+	/**
+	 * largest method that HotSpot compiles (its HugeMethodLimit); bigger programs are not generated
+	 * */
+	static final int MAX_CODE_LENGTH = 8000;
+
+	/**
+	 * package of the generated classes
+	 * */
+	private static final String PACKAGE = "calculator/generated/";
+
+	private static final String EVALUATOR = Evaluator.class.getName().replace('.', '/');
+
+	/**
+	 * numbers the generated classes, for stack traces and profilers
+	 * */
+	private static final AtomicLong COUNTER = new AtomicLong();
+
+	/* JVM opcodes */
+	private static final int ICONST_0 = 0x03;
+	private static final int LCONST_0 = 0x09;
+	private static final int LCONST_1 = 0x0a;
+	private static final int DCONST_0 = 0x0e;
+	private static final int DCONST_1 = 0x0f;
+	private static final int BIPUSH   = 0x10;
+	private static final int SIPUSH   = 0x11;
+	private static final int LDC2_W   = 0x14;
+	private static final int LLOAD    = 0x16;
+	private static final int DLOAD    = 0x18;
+	private static final int ALOAD_0  = 0x2a;
+	private static final int ALOAD_1  = 0x2b;
+	private static final int DALOAD   = 0x31;
+	private static final int LSTORE   = 0x37;
+	private static final int DSTORE   = 0x39;
+	private static final int POP2     = 0x58;
+	private static final int DUP2     = 0x5c;
+	private static final int LADD     = 0x61;
+	private static final int DADD     = 0x63;
+	private static final int LSUB     = 0x65;
+	private static final int DSUB     = 0x67;
+	private static final int LMUL     = 0x69;
+	private static final int DMUL     = 0x6b;
+	private static final int LDIV     = 0x6d;
+	private static final int DDIV     = 0x6f;
+	private static final int L2D      = 0x8a;
+	private static final int D2L      = 0x8f;
+	private static final int DRETURN  = 0xaf;
+	private static final int RETURN   = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC  = 0xb8;
+	private static final int WIDE     = 0xc4;
+
+	private ClassGenerator() {
+	}
+
+	/**
+	 * Generate and load a class for a program.
+	 * @param program the program
+	 * @return an instance of the class, or null if the program is too big
+	 * */
+	static Evaluator generate(Program program) {
+		String name = PACKAGE + "Expression" + COUNTER.incrementAndGet();
+
+		byte[] classFile;
+		try {
+			classFile = new Writer(program).write(name);
+		}
+		catch (IOException ex) {
+			// written to memory; can not happen
+			throw new IllegalStateException(ex);
+		}
+
+		if (classFile == null) {
+			if (AppLogger.isDebugEnabled())
+				AppLogger.debug("Program of %d opcodes is too big for code generation", program.code.length);
+			return null;
+		}
+
+		try {
+			Loader loader = new Loader(ClassGenerator.class.getClassLoader());
+			Class<?> generated = loader.define(name.replace('/', '.'), classFile);
+			return (Evaluator) generated.getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError ex) {
+			// the interpreter still works:
+			AppLogger.error("Code generation failed: %s", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Class loader of one generated class.
+	 * */
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+
+	/**
+	 * Constant pool of a class file.
+	 * */
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		/**
+		 * index of each entry, by tag and value
+		 * */
+		private final Map<String, Integer> indexes = new HashMap<>();
+
+		/**
+		 * index of the next entry; longs and doubles take two
+		 * */
+		private int next = 1;
+
+		int utf8(String value) throws IOException {
+			Integer index = indexes.get("U" + value);
+			if (index != null)
+				return index;
+
+			out.writeByte(1);
+			out.writeUTF(value);
+			return add("U" + value, 1);
+		}
+
+		int classRef(String internalName) throws IOException {
+			Integer index = indexes.get("C" + internalName);
+			if (index != null)
+				return index;
+
+			int nameIndex = utf8(internalName);
+			out.writeByte(7);
+			out.writeShort(nameIndex);
+			return add("C" + internalName, 1);
+		}
+
+		int methodRef(String owner, String name, String descriptor, boolean isInterface) throws IOException {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer index = indexes.get(key);
+			if (index != null)
+				return index;
+
+			int classIndex = classRef(owner);
+			int nameIndex  = utf8(name);
+			int typeIndex  = utf8(descriptor);
+
+			out.writeByte(12);
+			out.writeShort(nameIndex);
+			out.writeShort(typeIndex);
+			int nameAndType = add("N" + name + descriptor, 1);
+
+			out.writeByte(isInterface ? 11 : 10);
+			out.writeShort(classIndex);
+			out.writeShort(nameAndType);
+			return add(key, 1);
+		}
+
+		int longConstant(long value) throws IOException {
+			Integer index = indexes.get("J" + value);
+			if (index != null)
+				return index;
+
+			out.writeByte(5);
+			out.writeLong(value);
+			return add("J" + value, 2);
+		}
+
+		int doubleConstant(double value) throws IOException {
+			long bits = Double.doubleToRawLongBits(value);
+			Integer index = indexes.get("D" + bits);
+			if (index != null)
+				return index;
+
+			out.writeByte(6);
+			out.writeLong(bits);
+			return add("D" + bits, 2);
+		}
+
+		private int add(String key, int size) {
+			int index = next;
+			indexes.put(key, index);
+			next += size;
+			return index;
+		}
+
+		/**
+		 * @return the number of entries plus one, as in constant_pool_count
+		 * */
+		int count() {
+			return next;
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Writes the class file of one program.
+	 * */
+	private static final class Writer {
+		private final Program program;
+		private final boolean exact;
+		private final ConstantPool pool = new ConstantPool();
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+		/**
+		 * first local variable of the program slots; 0 is this and 1 is vars
+		 * */
+		private static final int FIRST_LOCAL = 2;
+
+		Writer(Program program) {
+			this.program = program;
+			this.exact   = program.exact;
+		}
+
+		/**
+		 * @param name internal name of the class
+		 * @return the class file, or null if evaluate() would be too big
+		 * */
+		byte[] write(String name) throws IOException {
+			int frameSize = program.numLocals + program.names.length;
+			// two longs for the operands of checked divisions:
+			int dividend = FIRST_LOCAL + 2 * frameSize;
+			int divisor  = dividend + 2;
+
+			writeEvaluate(dividend, divisor);
+			if (code.size() > MAX_CODE_LENGTH)
+				return null;
+
+			int thisClass    = pool.classRef(name);
+			int superClass   = pool.classRef("java/lang/Object");
+			int evaluator    = pool.classRef(EVALUATOR);
+			int objectInit   = pool.methodRef("java/lang/Object", "<init>", "()V", false);
+			int initName     = pool.utf8("<init>");
+			int initType     = pool.utf8("()V");
+			int evaluateName = pool.utf8("evaluate");
+			int evaluateType = pool.utf8("([D)D");
+			int codeName     = pool.utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.size() + 512);
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			// Java 8; straight-line code needs no stack map frames:
+			out.writeShort(52);
+
+			out.writeShort(pool.count());
+			out.write(pool.toByteArray());
+
+			// public final super:
+			out.writeShort(0x0031);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(evaluator);
+
+			// no fields, two methods:
+			out.writeShort(0);
+			out.writeShort(2);
+
+			// public constructor:
+			byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+			writeMethod(out, 0x0001, initName, initType, codeName, 1, 1, init);
+
+			// public final double evaluate(double[] vars):
+			writeMethod(out, 0x0011, evaluateName, evaluateType, codeName, 2 * program.maxStack + 4, divisor + 2, code.toByteArray());
+
+			// no attributes:
+			out.writeShort(0);
+			return bytes.toByteArray();
+		}
+
+		private static void writeMethod(DataOutputStream out, int access, int name, int type, int codeName, int maxStack, int maxLocals,
+				byte[] code) throws IOException {
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(type);
+			out.writeShort(1);
+
+			out.writeShort(codeName);
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			// no exception table and no attributes:
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+
+		/**
+		 * Translate the opcodes of the program into the body of evaluate().
+		 * */
+		private void writeEvaluate(int dividend, int divisor) throws IOException {
+			int[] opcodes = program.code;
+			int numLocals = program.numLocals;
+
+			// free variables into locals:
+			for (int i = 0; i < program.names.length; i++) {
+				op(ALOAD_1);
+				pushInt(i);
+				op(DALOAD);
+				if (exact)
+					op(D2L);
+				local(exact ? LSTORE : DSTORE, FIRST_LOCAL + 2 * (numLocals + i));
+			}
+
+			int pc = 0;
+			while (pc < opcodes.length) {
+				// give up as soon as the method is too big:
+				if (code.size() > MAX_CODE_LENGTH)
+					return;
+
+				switch (opcodes[pc++]) {
+					case Program.CONST:
+						pushConstant(program.constants[opcodes[pc++]]);
+						break;
+
+					case Program.LOAD:
+						local(exact ? LLOAD : DLOAD, FIRST_LOCAL + 2 * opcodes[pc++]);
+						break;
+
+					case Program.STORE:
+						local(exact ? LSTORE : DSTORE, FIRST_LOCAL + 2 * opcodes[pc++]);
+						break;
+
+					case Program.TEE:
+						op(DUP2);
+						local(exact ? LSTORE : DSTORE, FIRST_LOCAL + 2 * opcodes[pc++]);
+						break;
+
+					case Program.ADD:
+						op(exact ? LADD : DADD);
+						break;
+
+					case Program.SUB:
+						op(exact ? LSUB : DSUB);
+						break;
+
+					case Program.MUL:
+						op(exact ? LMUL : DMUL);
+						break;
+
+					case Program.DIV:
+						op(exact ? LDIV : DDIV);
+						break;
+
+					case Program.ADD_EXACT:
+						invokeMath("addExact");
+						break;
+
+					case Program.SUB_EXACT:
+						invokeMath("subtractExact");
+						break;
+
+					case Program.MUL_EXACT:
+						invokeMath("multiplyExact");
+						break;
+
+					case Program.DIV_EXACT:
+						// ldiv throws on division by zero; Long.MIN_VALUE / -1 is caught by multiplying the quotient back, which overflows only then:
+						local(LSTORE, divisor);
+						local(LSTORE, dividend);
+						local(LLOAD, dividend);
+						local(LLOAD, divisor);
+						op(LDIV);
+						op(DUP2);
+						local(LLOAD, divisor);
+						invokeMath("multiplyExact");
+						op(POP2);
+						break;
+
+					default:
+						throw new IllegalStateException(Calculator.UNREACHABLE_CODE_REACHED);
+				}
+			}
+
+			if (exact)
+				op(L2D);
+			op(DRETURN);
+		}
+
+		private void op(int opcode) {
+			code.write(opcode);
+		}
+
+		private void u2(int value) {
+			code.write(value >> 8);
+			code.write(value);
+		}
+
+		/**
+		 * Load or store a local variable.
+		 * */
+		private void local(int opcode, int index) {
+			if (index > 255) {
+				op(WIDE);
+				op(opcode);
+				u2(index);
+			}
+			else {
+				op(opcode);
+				op(index);
+			}
+		}
+
+		private void pushInt(int value) {
+			if (value <= 5)
+				op(ICONST_0 + value);
+			else if (value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				op(value);
+			}
+			else {
+				op(SIPUSH);
+				u2(value);
+			}
+		}
+
+		private void pushConstant(double value) throws IOException {
+			if (exact) {
+				long v = (long) value;
+				if (v == 0 || v == 1) {
+					op(v == 0 ? LCONST_0 : LCONST_1);
+				}
+				else {
+					op(LDC2_W);
+					u2(pool.longConstant(v));
+				}
+			}
+			else if (Double.doubleToRawLongBits(value) == 0 || value == 1) {
+				op(value == 1 ? DCONST_1 : DCONST_0);
+			}
+			else {
+				op(LDC2_W);
+				u2(pool.doubleConstant(value));
+			}
+		}
+
+		private void invokeMath(String name) throws IOException {
+			op(INVOKESTATIC);
+			u2(pool.methodRef("java/lang/Math", name, "(JJ)J", false));
+		}
+	}
+}
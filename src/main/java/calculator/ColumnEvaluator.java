@@ -0,0 +1,379 @@
+package calculator;
+
+import java.util.Arrays;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Runs a {@link Program} over columns of variable values, one block of rows at a time.
+ * Each instruction is executed for the whole block before the next one, so the interpreter dispatches once per block instead of once per row,
+ * and each operation is a simple loop over arrays that the JIT can unroll and vectorize.
+ * The loops neither branch nor allocate: for the long engine, overflow and division by zero are collected into sign bits while the block is computed,
+ * and only a block with such a bit is scanned again to find the row at fault.
+ */
+final class ColumnEvaluator {
+
+	/**
+	 * rows per block; the scratch columns of a block should fit in the L1/L2 cache
+	 * */
+	private static final int BLOCK = 256;
+
+	/**
+	 * maximum number of longs or doubles in the scratch columns of a block
+	 * */
+	private static final int MAX_BLOCK_VALUES = 1 << 16;
+
+	/**
+	 * bit pattern of 2^62 as a double; products below it in magnitude can not overflow a long
+	 * */
+	private static final long SAFE_PRODUCT_BITS = Double.doubleToRawLongBits(0x1p62);
+
+	private ColumnEvaluator() {
+	}
+
+	/**
+	 * @return rows per block for a program; fewer for programs with many slots
+	 * */
+	private static int blockSize(Program program) {
+		int columns = program.maxStack + program.numLocals;
+		return Math.max(8, Math.min(BLOCK, MAX_BLOCK_VALUES / Math.max(1, columns)));
+	}
+
+	/**
+	 * Check the shapes of the columns.
+	 * */
+	private static void checkColumns(Program program, int numColumns, int[] lengths, int rows) {
+		if (numColumns != program.names.length)
+			throw new IllegalArgumentException("Expected " + program.names.length + " columns, got " + numColumns);
+		for (int i = 0; i < lengths.length; i++) {
+			if (lengths[i] < rows)
+				throw new IllegalArgumentException("Column " + program.names[i] + " has " + lengths[i] + " rows, expected " + rows);
+		}
+	}
+
+	/**
+	 * Evaluate a double program for each row.
+	 * @param program a program for the double engine
+	 * @param columns values of free variable i in columns[i]
+	 * @param results receives the result of each row; its length is the number of rows
+	 * */
+	static void run(Program program, double[][] columns, double[] results) {
+		if (program.exact)
+			throw new IllegalArgumentException("The expression is compiled for the long engine; use long columns");
+
+		int[] lengths = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			lengths[i] = columns[i].length;
+		checkColumns(program, columns.length, lengths, results.length);
+
+		int[] code = program.code;
+		double[] constants = program.constants;
+		int numLocals = program.numLocals;
+		int block = blockSize(program);
+		double[][] stack = new double[Math.max(1, program.maxStack)][block];
+		double[][] frame = new double[numLocals][block];
+
+		for (int base = 0; base < results.length; base += block) {
+			int n = Math.min(block, results.length - base);
+			int sp = -1;
+			int pc = 0;
+
+			while (pc < code.length) {
+				switch (code[pc++]) {
+					case Program.CONST:
+						Arrays.fill(stack[++sp], 0, n, constants[code[pc++]]);
+						break;
+
+					case Program.LOAD: {
+						int slot = code[pc++];
+						if (slot < numLocals)
+							System.arraycopy(frame[slot], 0, stack[++sp], 0, n);
+						else
+							System.arraycopy(columns[slot - numLocals], base, stack[++sp], 0, n);
+						break;
+					}
+
+					case Program.STORE:
+						System.arraycopy(stack[sp--], 0, frame[code[pc++]], 0, n);
+						break;
+
+					case Program.TEE:
+						System.arraycopy(stack[sp], 0, frame[code[pc++]], 0, n);
+						break;
+
+					case Program.ADD: {
+						double[] a = stack[--sp];
+						double[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] += b[i];
+						break;
+					}
+
+					case Program.SUB: {
+						double[] a = stack[--sp];
+						double[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] -= b[i];
+						break;
+					}
+
+					case Program.MUL: {
+						double[] a = stack[--sp];
+						double[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] *= b[i];
+						break;
+					}
+
+					case Program.DIV: {
+						double[] a = stack[--sp];
+						double[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] /= b[i];
+						break;
+					}
+
+					default:
+						throw new IllegalStateException(Calculator.UNREACHABLE_CODE_REACHED);
+				}
+			}
+
+			System.arraycopy(stack[0], 0, results, base, n);
+		}
+	}
+
+	/**
+	 * Evaluate a long program for each row.
+	 * @param program a program for the long engine
+	 * @param columns values of free variable i in columns[i]; each value must fit in an int
+	 * @param results receives the result of each row; its length is the number of rows
+	 * @throws BadInputException on overflow (of long, of a variable value, or of the int result) or division by zero in any row
+	 * */
+	static void runExact(Program program, long[][] columns, long[] results) throws BadInputException {
+		if (!program.exact)
+			throw new IllegalArgumentException("The expression is compiled for the double engine; use double columns");
+
+		int[] lengths = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			lengths[i] = columns[i].length;
+		checkColumns(program, columns.length, lengths, results.length);
+
+		// as for single evaluations, variable values must be ints:
+		for (int c = 0; c < columns.length; c++) {
+			long[] column = columns[c];
+			long bad = 0;
+			for (int i = 0; i < results.length; i++)
+				bad |= notInt(column[i]);
+			if (bad < 0) {
+				int row = firstNotInt(column, 0, results.length);
+				throw program.nameError(Calculator.INTEGER_OVERFLOW + ": " + program.names[c] + " = " + column[row] + inRow(row), c);
+			}
+		}
+
+		int[] code = program.code;
+		double[] constants = program.constants;
+		int numLocals = program.numLocals;
+		int block = blockSize(program);
+		long[][] stack = new long[Math.max(1, program.maxStack)][block];
+		long[][] frame = new long[numLocals][block];
+
+		for (int base = 0; base < results.length; base += block) {
+			int n = Math.min(block, results.length - base);
+			int sp = -1;
+			int pc = 0;
+
+			while (pc < code.length) {
+				int opcode = code[pc++];
+				switch (opcode) {
+					case Program.CONST:
+						Arrays.fill(stack[++sp], 0, n, (long) constants[code[pc++]]);
+						break;
+
+					case Program.LOAD: {
+						int slot = code[pc++];
+						if (slot < numLocals)
+							System.arraycopy(frame[slot], 0, stack[++sp], 0, n);
+						else
+							System.arraycopy(columns[slot - numLocals], base, stack[++sp], 0, n);
+						break;
+					}
+
+					case Program.STORE:
+						System.arraycopy(stack[sp--], 0, frame[code[pc++]], 0, n);
+						break;
+
+					case Program.TEE:
+						System.arraycopy(stack[sp], 0, frame[code[pc++]], 0, n);
+						break;
+
+					case Program.ADD: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] += b[i];
+						break;
+					}
+
+					case Program.SUB: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] -= b[i];
+						break;
+					}
+
+					case Program.MUL: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] *= b[i];
+						break;
+					}
+
+					case Program.DIV: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						for (int i = 0; i < n; i++)
+							a[i] /= b[i];
+						break;
+					}
+
+					case Program.ADD_EXACT: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						long overflow = 0;
+						for (int i = 0; i < n; i++) {
+							long x = a[i];
+							long y = b[i];
+							long r = x + y;
+							// the sign of the result differs from the signs of both operands:
+							overflow |= (x ^ r) & (y ^ r);
+							a[i] = r;
+						}
+						if (overflow < 0)
+							throw program.fault(Calculator.INTEGER_OVERFLOW + inRow(base + firstOverflow(opcode, a, b, n)), pc - 1);
+						break;
+					}
+
+					case Program.SUB_EXACT: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						long overflow = 0;
+						for (int i = 0; i < n; i++) {
+							long x = a[i];
+							long y = b[i];
+							long r = x - y;
+							// the operands have different signs, and the result has the sign of y:
+							overflow |= (x ^ y) & (x ^ r);
+							a[i] = r;
+						}
+						if (overflow < 0)
+							throw program.fault(Calculator.INTEGER_OVERFLOW + inRow(base + firstOverflow(opcode, a, b, n)), pc - 1);
+						break;
+					}
+
+					case Program.MUL_EXACT: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						long suspect = 0;
+						for (int i = 0; i < n; i++) {
+							// the double product is close enough to tell products far from the long range:
+							double p = (double) a[i] * (double) b[i];
+							suspect |= ~(Double.doubleToRawLongBits(Math.abs(p)) - SAFE_PRODUCT_BITS);
+						}
+						if (suspect < 0) {
+							// some products are large: multiply exactly
+							for (int i = 0; i < n; i++) {
+								try {
+									a[i] = Math.multiplyExact(a[i], b[i]);
+								}
+								catch (ArithmeticException ex) {
+									throw program.fault(Calculator.INTEGER_OVERFLOW + inRow(base + i), pc - 1);
+								}
+							}
+						}
+						else {
+							for (int i = 0; i < n; i++)
+								a[i] *= b[i];
+						}
+						break;
+					}
+
+					case Program.DIV_EXACT: {
+						long[] a = stack[--sp];
+						long[] b = stack[sp + 1];
+						long bad = 0;
+						for (int i = 0; i < n; i++) {
+							long y = b[i];
+							// y == 0, or a[i] == Long.MIN_VALUE and y == -1:
+							long m = (a[i] ^ Long.MIN_VALUE) | (y + 1);
+							bad |= ~(y | -y) | ~(m | -m);
+						}
+						if (bad < 0) {
+							for (int i = 0; i < n; i++) {
+								if (b[i] == 0)
+									throw program.fault(Calculator.DIVISION_BY_ZERO + inRow(base + i), pc - 1);
+								if (b[i] == -1 && a[i] == Long.MIN_VALUE)
+									throw program.fault(Calculator.INTEGER_OVERFLOW + inRow(base + i), pc - 1);
+							}
+						}
+						for (int i = 0; i < n; i++)
+							a[i] /= b[i];
+						break;
+					}
+
+					default:
+						throw new IllegalStateException(Calculator.UNREACHABLE_CODE_REACHED);
+				}
+			}
+
+			// as for single evaluations, results must be ints:
+			long[] result = stack[0];
+			long bad = 0;
+			for (int i = 0; i < n; i++)
+				bad |= notInt(result[i]);
+			if (bad < 0) {
+				int row = firstNotInt(result, 0, n);
+				throw program.fault(Calculator.INTEGER_OVERFLOW + ": " + result[row] + inRow(base + row), code.length);
+			}
+
+			System.arraycopy(result, 0, results, base, n);
+		}
+	}
+
+	/**
+	 * @return a negative number if v does not fit in an int, 0 or a positive number otherwise
+	 * */
+	private static long notInt(long v) {
+		long d = v ^ (int) v;
+		return d | -d;
+	}
+
+	private static int firstNotInt(long[] column, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (column[i] != (int) column[i])
+				return i;
+		}
+		return from;
+	}
+
+	/**
+	 * Find the first overflowing row of an addition or subtraction whose results are in a and operands were a and b.
+	 * */
+	private static int firstOverflow(int opcode, long[] a, long[] b, int n) {
+		for (int i = 0; i < n; i++) {
+			long r = a[i];
+			long y = b[i];
+			// recover x from the wrapped result:
+			long x = opcode == Program.ADD_EXACT ? r - y : r + y;
+			long overflow = opcode == Program.ADD_EXACT ? (x ^ r) & (y ^ r) : (x ^ y) & (x ^ r);
+			if (overflow < 0)
+				return i;
+		}
+		return 0;
+	}
+
+	private static String inRow(int row) {
+		return " (row " + row + ")";
+	}
+}
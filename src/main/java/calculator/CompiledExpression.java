@@ -0,0 +1,143 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * An expression parsed once by {@link Calculator#compile(String)}.
+ * The token tree is lowered to a {@link Program}, a flat opcode stream run by a stack machine.
+ * Instances are immutable and may be shared between threads: every evaluation uses its own variable values.
+ */
+public final class CompiledExpression {
+
+	/**
+	 * the lowered expression
+	 * */
+	private final Program program;
+
+	/**
+	 * nodes parsed per node kept when common subexpressions are shared
+	 * */
+	private final double dedupRatio;
+
+	/**
+	 * code generated for the program; null if it runs in the interpreter
+	 * */
+	private final ClassGenerator.Evaluator evaluator;
+
+	/**
+	 * @param program the lowered expression
+	 * */
+	CompiledExpression(Program program) {
+		this(program, 1, null);
+	}
+
+	/**
+	 * @param program the lowered expression
+	 * @param dedupRatio nodes parsed per node kept when common subexpressions are shared
+	 * @param evaluator code generated for the program, or null to run it in the interpreter
+	 * */
+	CompiledExpression(Program program, double dedupRatio, ClassGenerator.Evaluator evaluator) {
+		this.program    = program;
+		this.dedupRatio = dedupRatio;
+		this.evaluator  = evaluator;
+	}
+
+	/**
+	 * @return the lowered expression
+	 * */
+	Program getProgram() {
+		return program;
+	}
+
+	/**
+	 * @return names of the variables that are not defined by a let around their use, in order of first use.
+	 * {@link #evaluate(Map)} needs a value for each of them.
+	 * */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(Arrays.asList(this.program.names));
+	}
+
+	/**
+	 * @return whether the expression runs as a generated class rather than in the interpreter
+	 * @see Calculator#setCodeGenerationEnabled(boolean)
+	 * */
+	public boolean isGenerated() {
+		return this.evaluator != null;
+	}
+
+	/**
+	 * @return the number of nodes of the expression tree per node of the shared DAG, i.e., how many times smaller sharing made it.
+	 * 1 if sharing was off or nothing was shared.
+	 * @see Calculator#setSharingEnabled(boolean)
+	 * */
+	public double getDedupRatio() {
+		return this.dedupRatio;
+	}
+
+	/**
+	 * Evaluate the expression. As with {@link Calculator#evaluate(String)}, the result is converted to integer.
+	 * @return the evaluated value of the expression.
+	 * @throws BadInputException if the expression is not valid, e.g., uses an undefined variable
+	 * */
+	public int evaluate() throws BadInputException {
+		return this.evaluate(Collections.<String, Number>emptyMap());
+	}
+
+	/**
+	 * Evaluate the expression with values for variables that are not defined by a let in the expression.
+	 * @param bindings variable name to value. Values must not be null.
+	 * @return the evaluated value of the expression.
+	 * @throws BadInputException if the expression is not valid, e.g., uses an undefined variable
+	 * */
+	public int evaluate(Map<String, ? extends Number> bindings) throws BadInputException {
+		if (this.evaluator != null)
+			return this.program.evaluate(this.evaluator, this.program.values(bindings));
+
+		return this.program.evaluate(bindings);
+	}
+
+	/**
+	 * Evaluate the expression with the values of the variables in the order of {@link #getVariables()}.
+	 * This skips looking up the variables by name.
+	 * @param values one value per variable. With {@link Calculator.Engine#LONG}, values are truncated and must fit in an int.
+	 * @return the evaluated value of the expression.
+	 * @throws BadInputException with the long engine, on overflow or division by zero
+	 * @throws IllegalArgumentException if the number of values is not the number of variables
+	 * */
+	public int evaluate(double[] values) throws BadInputException {
+		if (this.evaluator != null)
+			return this.program.evaluate(this.evaluator, values);
+
+		return this.program.evaluate(values);
+	}
+
+	/**
+	 * Evaluate the expression for many rows of variable values, e.g., for a column store.
+	 * Instructions run over blocks of rows in tight loops, which is much faster than evaluating row by row.
+	 * The expression must be compiled for {@link Calculator.Engine#DOUBLE}.
+	 * @param columns values of the i-th variable of {@link #getVariables()} in columns[i], at least one per row
+	 * @param results receives the result of each row; its length is the number of rows.
+	 * The values are not converted to integer: {@link #evaluate(Map)} returns (int) of them.
+	 * @throws IllegalArgumentException if the number of columns or their lengths do not match, or the engine is not DOUBLE
+	 * */
+	public void evaluate(double[][] columns, double[] results) {
+		ColumnEvaluator.run(this.program, columns, results);
+	}
+
+	/**
+	 * Evaluate the expression for many rows of variable values with exact arithmetic.
+	 * The expression must be compiled for {@link Calculator.Engine#LONG}.
+	 * @param columns values of the i-th variable of {@link #getVariables()} in columns[i], at least one per row. Values must fit in an int.
+	 * @param results receives the result of each row; its length is the number of rows. Every result fits in an int.
+	 * @throws BadInputException on overflow or division by zero in any row; the message names the row
+	 * @throws IllegalArgumentException if the number of columns or their lengths do not match, or the engine is not LONG
+	 * */
+	public void evaluate(long[][] columns, long[] results) throws BadInputException {
+		ColumnEvaluator.runExact(this.program, columns, results);
+	}
+}
@@ -0,0 +1,383 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Long-running HTTP server that evaluates expressions, built on the JDK's own HTTP server:
+ * <ul>
+ * <li>POST /evaluate: the body is one expression; the response is its value, or status 400 and {@value BatchEvaluator#ERROR_PREFIX} with the error.
+ * The offset of the error in the expression, if known, is in the {@value #OFFSET_HEADER} header.</li>
+ * <li>POST /batch: the body holds one expression per line; the response holds one result or error line per line, as in batch mode.
+ * The {@value #ERRORS_HEADER} header counts the errors.</li>
+ * <li>GET /health: OK.</li>
+ * </ul>
+ * All requests share one calculator, so expressions compiled for one request are reused from its cache by the next.
+ * Bodies larger than the limit are refused with status 413.
+ * Requests are handled on virtual threads where the JDK has them (21 and later); otherwise on a bounded pool. When its queue is full,
+ * requests are answered with status 503 and a Retry-After header on the accepting thread, without being evaluated,
+ * so a burst does not stall accepting.
+ * <p>
+ * Responses are small, so callers should set the JVM-wide system property {@code sun.net.httpserver.nodelay} to true
+ * before the first server is created, as {@link Main} does; it is read once by the JDK.
+ */
+class EvaluationServer {
+
+	/**
+	 * response header with the offset of an error in the expression
+	 * */
+	static final String OFFSET_HEADER = "X-Error-Offset";
+
+	/**
+	 * response header with the number of lines of a batch that failed
+	 * */
+	static final String ERRORS_HEADER = "X-Errors";
+
+	/**
+	 * queued requests per pool thread, before requests are refused
+	 * */
+	private static final int QUEUE_PER_THREAD = 64;
+
+	/**
+	 * seconds a refused client is asked to wait
+	 * */
+	static final int RETRY_AFTER_SECONDS = 1;
+
+	/**
+	 * set on the accepting thread while it answers a request the executor refused
+	 * */
+	private static final ThreadLocal<Boolean> REFUSED = new ThreadLocal<>();
+
+	/**
+	 * connections waiting to be accepted
+	 * */
+	private static final int BACKLOG = 1024;
+
+	/**
+	 * calculator shared by all requests
+	 * */
+	private final Calculator calc;
+
+	/**
+	 * evaluates the lines of /batch requests
+	 * */
+	private final BatchEvaluator batch;
+
+	/**
+	 * largest request body accepted, in bytes
+	 * */
+	private final int maxRequestBytes;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param calc calculator shared by all requests; should have a cache enabled
+	 * @param maxRequestBytes largest request body accepted, in bytes
+	 * */
+	EvaluationServer(Calculator calc, int maxRequestBytes) {
+		if (maxRequestBytes <= 0)
+			throw new IllegalArgumentException("Request size limit must be positive: " + maxRequestBytes);
+
+		this.calc  = calc;
+		this.batch = new BatchEvaluator(calc);
+		this.maxRequestBytes = maxRequestBytes;
+	}
+
+	/**
+	 * Start serving.
+	 * @param address address and port to listen on; port 0 picks a free port
+	 * @param threads size of the pool if the JDK has no virtual threads
+	 * @throws IOException if the server can not listen on the address
+	 * */
+	void start(InetSocketAddress address, int threads) throws IOException {
+		this.start(address, newExecutor(threads));
+	}
+
+	/**
+	 * Start serving on an executor.
+	 * @param address address and port to listen on; port 0 picks a free port
+	 * @param pool runs the requests; shut down by {@link #stop(int)}. Requests it rejects are answered with status 503.
+	 * @throws IOException if the server can not listen on the address
+	 * */
+	synchronized void start(InetSocketAddress address, final ExecutorService pool) throws IOException {
+		if (server != null)
+			throw new IllegalStateException("Server already started");
+
+		server = HttpServer.create(address, BACKLOG);
+		executor = pool;
+		server.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable exchange) {
+				try {
+					pool.execute(exchange);
+				}
+				catch (RejectedExecutionException ex) {
+					// reads the request headers and answers 503 without evaluating anything:
+					REFUSED.set(Boolean.TRUE);
+					try {
+						exchange.run();
+					}
+					finally {
+						REFUSED.remove();
+					}
+				}
+			}
+		});
+
+		Filter refuse = new Filter() {
+			@Override
+			public void doFilter(HttpExchange exchange, Filter.Chain chain) throws IOException {
+				if (REFUSED.get() == null) {
+					chain.doFilter(exchange);
+					return;
+				}
+
+				try {
+					exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+					respond(exchange, 503, "Server busy\n");
+				}
+				finally {
+					exchange.close();
+				}
+			}
+
+			@Override
+			public String description() {
+				return "Answers 503 to requests the executor refused";
+			}
+		};
+
+		HttpContext context = server.createContext("/evaluate", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				evaluate(exchange);
+			}
+		});
+		context.getFilters().add(refuse);
+
+		context = server.createContext("/batch", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				evaluateBatch(exchange);
+			}
+		});
+		context.getFilters().add(refuse);
+
+		context = server.createContext("/health", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange, 200, "OK\n");
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+		context.getFilters().add(refuse);
+
+		server.start();
+		AppLogger.info("Server listening on %s", server.getAddress());
+	}
+
+	/**
+	 * @return the port the server listens on
+	 * */
+	synchronized int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop accepting requests, let the requests being handled finish, and flush the log.
+	 * @param delaySeconds how long to wait for requests being handled
+	 * */
+	synchronized void stop(int delaySeconds) {
+		if (server == null)
+			return;
+
+		server.stop(delaySeconds);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(delaySeconds, TimeUnit.SECONDS))
+				executor.shutdownNow();
+		}
+		catch (InterruptedException ex) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		server = null;
+		AppLogger.info("Server stopped");
+		AppLogger.closeHandlers();
+	}
+
+	/**
+	 * @param threads size of the pool if the JDK has no virtual threads
+	 * @return an executor with a virtual thread per task (JDK 21 and later) or a bounded pool, which throws
+	 * {@link RejectedExecutionException} when its queue is full
+	 * */
+	static ExecutorService newExecutor(int threads) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) factory.invoke(null);
+			AppLogger.info("Handling requests on virtual threads");
+			return executor;
+		}
+		catch (NoSuchMethodException ex) {
+			// JDK before 21
+		}
+		catch (ReflectiveOperationException ex) {
+			// e.g., a preview API that is not enabled
+			AppLogger.debug("Virtual threads not available: %s", ex);
+		}
+
+		AppLogger.info("Handling requests on %d threads", threads);
+
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable task) {
+						return new Thread(task, "calculator-http-" + count.incrementAndGet());
+					}
+				});
+	}
+
+	/**
+	 * POST /evaluate
+	 * */
+	private void evaluate(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = readBody(exchange);
+			if (body == null)
+				return;
+
+			String expr = new String(body, StandardCharsets.UTF_8);
+			try {
+				respond(exchange, 200, calc.evaluate(expr) + "\n");
+			}
+			catch (BadInputException ex) {
+				if (AppLogger.isDebugEnabled())
+					AppLogger.debug("Request failed: %s", ex.getMessage());
+				if (ex.getOffset() >= 0)
+					exchange.getResponseHeaders().set(OFFSET_HEADER, Integer.toString(ex.getOffset()));
+				respond(exchange, 400, BatchEvaluator.ERROR_PREFIX + ex.getMessage() + "\n");
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * POST /batch
+	 * */
+	private void evaluateBatch(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = readBody(exchange);
+			if (body == null)
+				return;
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+			ByteArrayOutputStream results = new ByteArrayOutputStream(body.length);
+			Writer out = new OutputStreamWriter(results, StandardCharsets.UTF_8);
+
+			long errors = batch.run(in, out);
+			out.flush();
+
+			exchange.getResponseHeaders().set(ERRORS_HEADER, Long.toString(errors));
+			respond(exchange, 200, results.toByteArray());
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Read the body of a POST request.
+	 * @return the body, or null if the request was refused and answered
+	 * */
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "Use POST\n");
+			return null;
+		}
+
+		long declared = -1;
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null) {
+			try {
+				declared = Long.parseLong(length.trim());
+			}
+			catch (NumberFormatException ex) {
+				respond(exchange, 400, "Bad Content-Length\n");
+				return null;
+			}
+		}
+
+		if (declared > maxRequestBytes) {
+			respond(exchange, 413, "Request larger than " + maxRequestBytes + " bytes\n");
+			return null;
+		}
+
+		// the length may be unknown (chunked): read one byte more than allowed to notice a body that is too large
+		ByteArrayOutputStream body = new ByteArrayOutputStream(declared >= 0 ? (int) declared : 1024);
+		byte[] buffer = new byte[8192];
+		InputStream in = exchange.getRequestBody();
+		int n;
+		while (body.size() <= maxRequestBytes
+				&& (n = in.read(buffer, 0, (int) Math.min(buffer.length, maxRequestBytes + 1L - body.size()))) > 0)
+			body.write(buffer, 0, n);
+
+		if (body.size() > maxRequestBytes) {
+			respond(exchange, 413, "Request larger than " + maxRequestBytes + " bytes\n");
+			return null;
+		}
+		return body.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+		respond(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package calculator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Compiled expressions saved in a compact binary file, so that a library of formulas is parsed once, not at every start.
+ * <p>
+ * The file starts with the magic number "CALC" and the {@link #VERSION} of the format, followed by one record per expression:
+ * its length in bytes, then either the lowered program (opcodes, constant pool, names and positions of the free variables,
+ * positions of the operations that can fail) or the error that kept the expression from compiling, so a file of expressions and its
+ * archive give the same lines in batch mode. Numbers are big-endian.
+ * <p>
+ * Loading maps the file and only reads the record lengths; a program is copied out of the mapping in bulk, and checked,
+ * the first time it is asked for. Archives of another version are refused: the opcodes are stored as they are.
+ * Loaded expressions run in the interpreter.
+ */
+public final class ExpressionArchive {
+
+	/**
+	 * first int of an archive: "CALC"
+	 * */
+	public static final int MAGIC = 0x43414C43;
+
+	/**
+	 * version of the format; increased whenever the format or the opcodes change
+	 * */
+	public static final int VERSION = 1;
+
+	/* kinds of records */
+	private static final byte PROGRAM = 0;
+	private static final byte ERROR   = 1;
+
+	/**
+	 * the records, after the header
+	 * */
+	private final ByteBuffer buffer;
+
+	/**
+	 * start of each record's content in the buffer, and its length
+	 * */
+	private final int[] starts;
+	private final int[] lengths;
+
+	/**
+	 * expressions decoded so far, by index
+	 * */
+	private final CompiledExpression[] loaded;
+
+	private ExpressionArchive(ByteBuffer buffer, int[] starts, int[] lengths) {
+		this.buffer  = buffer;
+		this.starts  = starts;
+		this.lengths = lengths;
+		this.loaded  = new CompiledExpression[starts.length];
+	}
+
+	/**
+	 * Writes an archive one expression at a time.
+	 * */
+	public static final class Output implements AutoCloseable {
+
+		private final DataOutputStream out;
+
+		/**
+		 * the record being written, before its length is known
+		 * */
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+		private final DataOutputStream recordOut = new DataOutputStream(record);
+
+		private long count;
+
+		/**
+		 * Write the header.
+		 * @param out where to write the archive; closed by {@link #close()}
+		 * @throws IOException if writing fails
+		 * */
+		public Output(OutputStream out) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+		}
+
+		/**
+		 * Add a compiled expression.
+		 * @param expression the expression
+		 * @throws IOException if writing fails
+		 * */
+		public void write(CompiledExpression expression) throws IOException {
+			record.reset();
+			recordOut.writeByte(PROGRAM);
+			recordOut.writeDouble(expression.getDedupRatio());
+			expression.getProgram().write(recordOut);
+			this.flushRecord();
+		}
+
+		/**
+		 * Add an expression that could not be compiled; reading it throws the same error.
+		 * @param error why it could not be compiled
+		 * @throws IOException if writing fails
+		 * */
+		public void write(BadInputException error) throws IOException {
+			record.reset();
+			recordOut.writeByte(ERROR);
+			recordOut.writeInt(error.getTokenIndex());
+			recordOut.writeInt(error.getOffset());
+			byte[] message = error.getMessage().getBytes(StandardCharsets.UTF_8);
+			recordOut.writeInt(message.length);
+			recordOut.write(message);
+			this.flushRecord();
+		}
+
+		private void flushRecord() throws IOException {
+			recordOut.flush();
+			out.writeInt(record.size());
+			record.writeTo(out);
+			count++;
+		}
+
+		/**
+		 * @return number of expressions written
+		 * */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Compile each line of in and write it, or its error, to an archive.
+	 * @param calc compiles the lines
+	 * @param in expressions, one per line
+	 * @param out where to write the archive; closed
+	 * @return number of lines that failed to compile
+	 * @throws IOException if reading or writing fails
+	 * */
+	static long precompile(Calculator calc, BufferedReader in, OutputStream out) throws IOException {
+		long errors = 0;
+
+		try (Output archive = new Output(out)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				try {
+					archive.write(calc.compile(line));
+				}
+				catch (BadInputException ex) {
+					archive.write(ex);
+					errors++;
+				}
+			}
+
+			AppLogger.info("Archive of %d expressions written, %d failed to compile", archive.getCount(), errors);
+		}
+		return errors;
+	}
+
+	/**
+	 * Map an archive file. The file should not change while the archive is used.
+	 * @param file the archive
+	 * @return the archive
+	 * @throws IOException if the file can not be mapped, is larger than 2 GB, or is not an archive of this version
+	 * */
+	public static ExpressionArchive load(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Archive larger than 2 GB: " + file);
+
+			return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * Read an archive from a buffer, e.g., a mapped file, without copying it. Only the record lengths are read now.
+	 * @param buffer the archive, from its position to its limit; not modified
+	 * @return the archive
+	 * @throws IOException if the buffer does not hold an archive of this version
+	 * */
+	public static ExpressionArchive load(ByteBuffer buffer) throws IOException {
+		ByteBuffer in = buffer.slice();
+
+		try {
+			if (in.getInt() != MAGIC)
+				throw new StreamCorruptedException("Not an expression archive");
+
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported archive version " + version + ", expected " + VERSION);
+
+			int[] starts  = new int[16];
+			int[] lengths = new int[16];
+			int count = 0;
+			while (in.hasRemaining()) {
+				int length = in.getInt();
+				if (length < 1 || length > in.remaining())
+					throw new StreamCorruptedException("Bad record length " + length + " at " + (in.position() - 4));
+
+				if (count == starts.length) {
+					starts  = Arrays.copyOf(starts, count * 2);
+					lengths = Arrays.copyOf(lengths, count * 2);
+				}
+				starts[count]  = in.position();
+				lengths[count] = length;
+				count++;
+				in.position(in.position() + length);
+			}
+
+			return new ExpressionArchive(in, Arrays.copyOf(starts, count), Arrays.copyOf(lengths, count));
+		}
+		catch (BufferUnderflowException ex) {
+			throw new StreamCorruptedException("Truncated archive");
+		}
+	}
+
+	/**
+	 * Save expressions in an archive.
+	 * @param expressions the expressions
+	 * @param out where to write; closed
+	 * @throws IOException if writing fails
+	 * */
+	public static void save(Iterable<CompiledExpression> expressions, OutputStream out) throws IOException {
+		try (Output archive = new Output(out)) {
+			for (CompiledExpression expression : expressions)
+				archive.write(expression);
+		}
+	}
+
+	/**
+	 * @return number of expressions in the archive
+	 * */
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * @param index index of the expression, in the order they were written
+	 * @return the compiled expression
+	 * @throws BadInputException the error of an expression that could not be compiled
+	 * @throws StreamCorruptedException if the record is damaged
+	 * */
+	public synchronized CompiledExpression get(int index) throws BadInputException, StreamCorruptedException {
+		CompiledExpression expression = loaded[index];
+		if (expression != null)
+			return expression;
+
+		ByteBuffer in = buffer.duplicate();
+		in.position(starts[index]);
+		in.limit(starts[index] + lengths[index]);
+
+		try {
+			byte kind = in.get();
+			if (kind == ERROR) {
+				int tokenIndex = in.getInt();
+				int offset = in.getInt();
+				int length = in.getInt();
+				if (length < 0 || length > in.remaining())
+					throw new StreamCorruptedException("Bad message length of expression " + index);
+				byte[] message = new byte[length];
+				in.get(message);
+				throw new BadInputException(new String(message, StandardCharsets.UTF_8), tokenIndex, offset);
+			}
+			if (kind != PROGRAM)
+				throw new StreamCorruptedException("Bad record kind " + kind + " of expression " + index);
+
+			double dedupRatio = in.getDouble();
+			expression = new CompiledExpression(Program.read(in), dedupRatio, null);
+		}
+		catch (BufferUnderflowException ex) {
+			throw new StreamCorruptedException("Truncated expression " + index);
+		}
+
+		if (in.hasRemaining())
+			throw new StreamCorruptedException("Bad length of expression " + index);
+
+		loaded[index] = expression;
+		return expression;
+	}
+}
@@ -0,0 +1,242 @@
+package calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Size bounded cache of compiled expressions keyed by the expression text. The least recently used expression is evicted first.
+ * When an expression evaluates without any bound variables, its value is kept as well so that repeated evaluations do no work.
+ * All methods are safe for concurrent callers.
+ * <p>
+ * Parallel batches and the server share one cache, so it is split into up to {@value #MAX_SEGMENTS} segments by the hash of the text,
+ * each with its own lock and its share of the capacity. The least recently used order is kept per segment: a large cache may evict
+ * an expression slightly before the least recently used one of the whole cache. Caches of fewer than 2 * {@value #MIN_SEGMENT_CAPACITY}
+ * expressions have a single segment.
+ * @see Calculator#enableCache(int)
+ */
+public final class ExpressionCache {
+
+	/**
+	 * A compiled expression and, once known, its value.
+	 * */
+	static final class CacheEntry {
+
+		final CompiledExpression expression;
+
+		/**
+		 * whether value holds the result of expression.evaluate()
+		 * */
+		private volatile boolean hasValue;
+
+		private int value;
+
+		CacheEntry(CompiledExpression expression) {
+			this.expression = expression;
+		}
+
+		/**
+		 * Evaluate the expression without bindings, or return the value of an earlier evaluation.
+		 * @return the evaluated value of the expression
+		 * @throws BadInputException if the expression is not valid, e.g., uses an undefined variable
+		 * */
+		int evaluate() throws BadInputException {
+			if (hasValue)
+				return value;
+
+			// racing threads compute the same value, so no lock is needed:
+			int result = expression.evaluate();
+			value    = result;
+			hasValue = true;
+			return result;
+		}
+	}
+
+	/**
+	 * One lock and one access-ordered map for part of the expressions, so that threads looking up different expressions
+	 * rarely wait for each other.
+	 * */
+	private static final class Segment {
+
+		/**
+		 * entries in access order; guarded by this
+		 * */
+		private final LinkedHashMap<String, CacheEntry> entries;
+
+		/* counters; guarded by this */
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		Segment(final int capacity) {
+			this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+					if (size() > capacity) {
+						evictions++;
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+	}
+
+	/**
+	 * at most this many segments, a power of 2
+	 * */
+	static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * at least this many expressions per segment, so small caches keep an exact least recently used order
+	 * */
+	static final int MIN_SEGMENT_CAPACITY = 64;
+
+	/**
+	 * maximum number of entries
+	 * */
+	private final int capacity;
+
+	/**
+	 * segments by the high bits of the hash of the expression text
+	 * */
+	private final Segment[] segments;
+
+	/**
+	 * @param capacity maximum number of expressions to keep. Must be positive.
+	 * */
+	ExpressionCache(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+
+		this.capacity = capacity;
+
+		int count = 1;
+		while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY)
+			count *= 2;
+
+		// the segment capacities add up to the capacity:
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+	}
+
+	private Segment segment(String expr) {
+		// the high bits of the product depend on all bits of the hash; the low bits of the hash pick the bucket within the segment:
+		return segments[(expr.hashCode() * 0x9E3779B9) >>> 28 & (segments.length - 1)];
+	}
+
+	/**
+	 * Look up an expression and count a hit or a miss.
+	 * @param expr the expression text
+	 * @return the cached entry or null
+	 * */
+	CacheEntry get(String expr) {
+		Segment segment = segment(expr);
+		synchronized (segment) {
+			CacheEntry entry = segment.entries.get(expr);
+			if (entry == null)
+				segment.misses++;
+			else
+				segment.hits++;
+			return entry;
+		}
+	}
+
+	/**
+	 * Add an expression unless another thread added it first.
+	 * @param expr the expression text
+	 * @param expression the compiled expression
+	 * @return the entry now cached for expr
+	 * */
+	CacheEntry put(String expr, CompiledExpression expression) {
+		Segment segment = segment(expr);
+		synchronized (segment) {
+			CacheEntry entry = segment.entries.get(expr);
+			if (entry == null) {
+				entry = new CacheEntry(expression);
+				segment.entries.put(expr, entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Remove all expressions. Counters are not reset.
+	 * */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return maximum number of expressions kept
+	 * */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of expressions currently kept
+	 * */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of lookups that found the expression
+	 * */
+	public long getHits() {
+		long hits = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				hits += segment.hits;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups that did not find the expression
+	 * */
+	public long getMisses() {
+		long misses = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				misses += segment.misses;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * @return number of expressions removed to stay within capacity
+	 * */
+	public long getEvictions() {
+		long evictions = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "ExpressionCache[size=" + size() + ", capacity=" + capacity + ", segments=" + segments.length
+				+ ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
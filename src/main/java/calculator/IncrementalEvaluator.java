@@ -0,0 +1,591 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Keeps many formulas up to date while their variables change a few at a time.
+ * <p>
+ * The programs of the formulas are turned into one graph of cells: a cell is a constant, a variable, or an operation on two cells,
+ * and identical cells are shared, also between formulas. Let variables disappear: their uses refer to the cell of their value.
+ * A formula also depends on the values of its let variables and on its free variables, used or not, so that, as in the interpreter,
+ * an undefined variable or a failing let value leaves it without result.
+ * Every cell keeps its value and the cells that use it. When variables are set, only the cells depending on them are computed again,
+ * level by level (a cell's level is one more than its operands'), so each cell is computed at most once, after its operands.
+ * A cell whose value does not change stops the propagation.
+ * <p>
+ * Not thread-safe.
+ */
+public final class IncrementalEvaluator {
+
+	/* states of a cell */
+	private static final int DEFINED   = 0;
+	private static final int UNDEFINED = 1;
+	private static final int FAILED    = 2;
+
+	/**
+	 * A constant, a variable, or an operation.
+	 * */
+	private static final class Cell {
+		/**
+		 * {@link Program#CONST}, {@link Program#LOAD} for a variable, or the opcode of the operation
+		 * */
+		final int op;
+		final Cell a;
+		final Cell b;
+		final String name;
+		final int level;
+
+		/**
+		 * identity of the cell in the map of shared cells
+		 * */
+		final Key key;
+
+		/**
+		 * cells using this cell
+		 * */
+		final List<Cell> dependents = new ArrayList<>(2);
+
+		/**
+		 * formulas whose value or guard this cell is
+		 * */
+		List<Formula> formulas;
+
+		/**
+		 * number of dependents plus formulas; the cell is dropped when it reaches 0
+		 * */
+		int references;
+
+		int state;
+		double value;
+		long exact;
+
+		/**
+		 * whether the cell waits to be computed again
+		 * */
+		boolean dirty;
+
+		Cell(int op, Cell a, Cell b, String name, Key key) {
+			this.op   = op;
+			this.a    = a;
+			this.b    = b;
+			this.name = name;
+			this.key  = key;
+			this.level = a == null ? 0 : 1 + Math.max(a.level, b.level);
+		}
+	}
+
+	/**
+	 * Structure of a cell.
+	 * */
+	private static final class Key {
+		final int op;
+		final long constant;
+		final String name;
+		final Cell a;
+		final Cell b;
+
+		Key(int op, long constant, String name, Cell a, Cell b) {
+			this.op       = op;
+			this.constant = constant;
+			this.name     = name;
+			this.a        = a;
+			this.b        = b;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = op;
+			h = 31 * h + Long.hashCode(constant);
+			h = 31 * h + (name == null ? 0 : name.hashCode());
+			h = 31 * h + System.identityHashCode(a);
+			h = 31 * h + System.identityHashCode(b);
+			return h;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return op == other.op && constant == other.constant && a == other.a && b == other.b
+					&& (name == null ? other.name == null : name.equals(other.name));
+		}
+	}
+
+	/**
+	 * A formula and the last result reported for it.
+	 * */
+	private static final class Formula {
+		final String name;
+		final CompiledExpression expression;
+		final Cell root;
+
+		/**
+		 * cells that must be defined for the formula to have a result: values of let variables and free variables
+		 * */
+		final Cell[] guards;
+
+		Integer result;
+
+		Formula(String name, CompiledExpression expression, Cell root, Cell[] guards) {
+			this.name       = name;
+			this.expression = expression;
+			this.root       = root;
+			this.guards     = guards;
+		}
+	}
+
+	private final Calculator calc;
+
+	/**
+	 * whether cells compute with the long engine
+	 * */
+	private final boolean exact;
+
+	private final Map<Key, Cell> cells = new HashMap<>();
+
+	private final Map<String, Formula> formulas = new LinkedHashMap<>();
+
+	/**
+	 * current values of the variables, including variables no formula uses yet
+	 * */
+	private final Map<String, Number> bindings = new HashMap<>();
+
+	/**
+	 * cells waiting to be computed again, by level
+	 * */
+	private final List<List<Cell>> dirty = new ArrayList<>();
+
+	/**
+	 * formulas whose value cell or guards changed during the current update
+	 * */
+	private final List<Formula> touched = new ArrayList<>();
+
+	/**
+	 * number of operations computed since this evaluator was created
+	 * */
+	private long computed;
+
+	/**
+	 * @param calc compiles the formulas. The engine of the calculator when this evaluator is created is the engine of all formulas.
+	 * */
+	public IncrementalEvaluator(Calculator calc) {
+		this.calc  = calc;
+		this.exact = calc.getEngine() == Calculator.Engine.LONG;
+	}
+
+	/**
+	 * Add a formula, or replace the formula of the same name.
+	 * @param name name of the formula
+	 * @param expression the expression; its free variables take the values set by {@link #set(Map)}
+	 * @return its value, or null if it can not be evaluated with the current variables (see {@link #get(String)})
+	 * @throws BadInputException if the expression can not be parsed
+	 * */
+	public Integer define(String name, String expression) throws BadInputException {
+		CompiledExpression compiled = calc.compile(expression);
+		if (compiled.getProgram().exact != exact)
+			throw new IllegalStateException("The engine of the calculator changed");
+
+		List<Cell> guards = new ArrayList<>();
+		Cell root = this.build(compiled.getProgram(), guards);
+
+		// referenced before the old formula goes, which may share its cells:
+		Formula formula = new Formula(name, compiled, root, guards.toArray(new Cell[guards.size()]));
+		this.attach(root, formula);
+		for (Cell guard : formula.guards)
+			this.attach(guard, formula);
+
+		this.remove(name);
+
+		formula.result = this.result(formula);
+		formulas.put(name, formula);
+		return formula.result;
+	}
+
+	/**
+	 * Remove a formula and the cells only it used.
+	 * @param name name of the formula
+	 * @return whether there was such a formula
+	 * */
+	public boolean remove(String name) {
+		Formula formula = formulas.remove(name);
+		if (formula == null)
+			return false;
+
+		this.detach(formula.root, formula);
+		for (Cell guard : formula.guards)
+			this.detach(guard, formula);
+		return true;
+	}
+
+	/**
+	 * Set one variable.
+	 * @see #set(Map)
+	 * */
+	public Map<String, Integer> set(String variable, Number value) {
+		return this.set(Collections.singletonMap(variable, value));
+	}
+
+	/**
+	 * Set variables and bring the formulas using them up to date.
+	 * @param values new values by variable name; null makes a variable undefined. With the long engine, values must fit in an int.
+	 * @return the formulas whose result changed, by name, with their new result, or null if they can not be evaluated now
+	 * */
+	public Map<String, Integer> set(Map<String, ? extends Number> values) {
+		for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+			String variable = entry.getKey();
+			Number value = entry.getValue();
+
+			if (value == null)
+				bindings.remove(variable);
+			else
+				bindings.put(variable, value);
+
+			Cell cell = cells.get(new Key(Program.LOAD, 0, variable, null, null));
+			if (cell != null && this.assign(cell, value))
+				this.invalidate(cell);
+		}
+
+		Map<String, Integer> changed = new LinkedHashMap<>();
+
+		// levels in increasing order; operands are always computed before the cells using them:
+		for (int level = 0; level < dirty.size(); level++) {
+			List<Cell> bucket = dirty.get(level);
+			for (int i = 0; i < bucket.size(); i++) {
+				Cell cell = bucket.get(i);
+				cell.dirty = false;
+
+				// a cell dropped meanwhile has no references:
+				if (cell.references > 0 && this.compute(cell))
+					this.invalidate(cell);
+			}
+			bucket.clear();
+		}
+
+		for (Formula formula : touched) {
+			// a value cell may change and change back, e.g. through different paths:
+			Integer result = this.result(formula);
+			if (result == null ? formula.result != null : !result.equals(formula.result)) {
+				formula.result = result;
+				changed.put(formula.name, result);
+			}
+		}
+		touched.clear();
+
+		return changed;
+	}
+
+	/**
+	 * @param name name of a formula
+	 * @return its current result
+	 * @throws BadInputException why it can not be evaluated with the current variables, e.g., an undefined variable
+	 * @throws IllegalArgumentException if there is no such formula
+	 * */
+	public int get(String name) throws BadInputException {
+		Formula formula = formulas.get(name);
+		if (formula == null)
+			throw new IllegalArgumentException("No formula " + name);
+
+		if (formula.result != null)
+			return formula.result;
+
+		// the interpreter reports the error with its position:
+		return formula.expression.evaluate(bindings);
+	}
+
+	/**
+	 * @return the number of cells of the graph, i.e., distinct constants, variables and operations of all formulas
+	 * */
+	public int getCellCount() {
+		return cells.size();
+	}
+
+	/**
+	 * @return the number of operations computed since this evaluator was created
+	 * */
+	public long getComputedCount() {
+		return computed;
+	}
+
+	/**
+	 * Turn a program into cells by running it on a stack of cells.
+	 * @param guards receives the cells of the values of let variables and of the free variables, once each
+	 * @return the cell of its result
+	 * */
+	private Cell build(Program program, List<Cell> guards) {
+		int[] code = program.code;
+		Cell[] stack = new Cell[Math.max(1, program.maxStack)];
+		Cell[] frame = new Cell[program.numLocals];
+		int sp = -1;
+		int pc = 0;
+
+		// the interpreter needs all free variables, even those an optimization removed:
+		for (String name : program.names)
+			guards.add(this.cell(Program.LOAD, 0, name, null, null));
+
+		while (pc < code.length) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case Program.CONST: {
+					double value = program.constants[code[pc++]];
+					stack[++sp] = this.cell(Program.CONST, Double.doubleToLongBits(value), null, null, null);
+					break;
+				}
+
+				case Program.LOAD: {
+					int slot = code[pc++];
+					stack[++sp] = slot < program.numLocals ? frame[slot]
+							: this.cell(Program.LOAD, 0, program.names[slot - program.numLocals], null, null);
+					break;
+				}
+
+				case Program.STORE:
+					// a let value is evaluated even if the variable is never used:
+					frame[code[pc++]] = stack[sp];
+					guard(guards, stack[sp--]);
+					break;
+
+				case Program.TEE:
+					frame[code[pc++]] = stack[sp];
+					guard(guards, stack[sp]);
+					break;
+
+				default:
+					sp--;
+					stack[sp] = this.cell(opcode, 0, null, stack[sp], stack[sp + 1]);
+					break;
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Add a cell to the guards of a formula, unless it is there already.
+	 * */
+	private static void guard(List<Cell> guards, Cell cell) {
+		if (!guards.contains(cell))
+			guards.add(cell);
+	}
+
+	/**
+	 * Make a cell notify a formula when it changes, and keep it while the formula exists.
+	 * */
+	private void attach(Cell cell, Formula formula) {
+		if (cell.formulas == null)
+			cell.formulas = new ArrayList<>(1);
+		cell.formulas.add(formula);
+		cell.references++;
+	}
+
+	/**
+	 * Undo {@link #attach(Cell, Formula)}.
+	 * */
+	private void detach(Cell cell, Formula formula) {
+		cell.formulas.remove(formula);
+		this.release(cell);
+	}
+
+	/**
+	 * @return the shared cell of a structure, created and computed if there is none
+	 * */
+	private Cell cell(int op, long constant, String name, Cell a, Cell b) {
+		Key key = new Key(op, constant, name, a, b);
+		Cell cell = cells.get(key);
+		if (cell != null)
+			return cell;
+
+		cell = new Cell(op, a, b, name, key);
+		if (a != null) {
+			a.dependents.add(cell);
+			a.references++;
+			b.dependents.add(cell);
+			b.references++;
+			this.compute(cell);
+		}
+		else if (op == Program.LOAD) {
+			this.assign(cell, bindings.get(name));
+		}
+		else {
+			double value = Double.longBitsToDouble(constant);
+			cell.value = value;
+			cell.exact = (long) value;
+		}
+
+		cells.put(key, cell);
+		return cell;
+	}
+
+	/**
+	 * Drop a reference to a cell; drop the cell and its operands' references if it was the last one.
+	 * */
+	private void release(Cell cell) {
+		if (--cell.references == 0)
+			this.drop(cell);
+	}
+
+	/**
+	 * Drop a cell without references, unless it is dropped already, and its operands' references.
+	 * */
+	private void drop(Cell cell) {
+		if (cells.get(cell.key) != cell)
+			return;
+
+		cells.remove(cell.key);
+		if (cell.a != null) {
+			cell.a.dependents.remove(cell);
+			this.release(cell.a);
+			cell.b.dependents.remove(cell);
+			this.release(cell.b);
+		}
+	}
+
+	/**
+	 * Give a variable cell a value.
+	 * @return whether its state or value changed
+	 * */
+	private boolean assign(Cell cell, Number value) {
+		int state = cell.state;
+		double old = cell.value;
+		long oldExact = cell.exact;
+
+		if (value == null) {
+			cell.state = UNDEFINED;
+		}
+		else if (exact) {
+			long v = value.longValue();
+			// the range analysis of the programs assumes int values:
+			cell.state = v == (int) v ? DEFINED : FAILED;
+			cell.exact = v;
+			cell.value = v;
+		}
+		else {
+			cell.state = DEFINED;
+			cell.value = value.doubleValue();
+		}
+
+		return changed(cell, state, old, oldExact);
+	}
+
+	/**
+	 * Compute an operation from its operands.
+	 * @return whether its state or value changed
+	 * */
+	private boolean compute(Cell cell) {
+		int state = cell.state;
+		double old = cell.value;
+		long oldExact = cell.exact;
+		computed++;
+
+		Cell a = cell.a;
+		Cell b = cell.b;
+		if (a.state != DEFINED || b.state != DEFINED) {
+			cell.state = Math.max(a.state, b.state);
+		}
+		else if (!exact) {
+			cell.state = DEFINED;
+			switch (cell.op) {
+				case Program.ADD:
+					cell.value = a.value + b.value;
+					break;
+				case Program.SUB:
+					cell.value = a.value - b.value;
+					break;
+				case Program.MUL:
+					cell.value = a.value * b.value;
+					break;
+				default:
+					cell.value = a.value / b.value;
+					break;
+			}
+		}
+		else {
+			cell.state = DEFINED;
+			try {
+				switch (cell.op) {
+					case Program.ADD:
+						cell.exact = a.exact + b.exact;
+						break;
+					case Program.SUB:
+						cell.exact = a.exact - b.exact;
+						break;
+					case Program.MUL:
+						cell.exact = a.exact * b.exact;
+						break;
+					case Program.ADD_EXACT:
+						cell.exact = Math.addExact(a.exact, b.exact);
+						break;
+					case Program.SUB_EXACT:
+						cell.exact = Math.subtractExact(a.exact, b.exact);
+						break;
+					case Program.MUL_EXACT:
+						cell.exact = Math.multiplyExact(a.exact, b.exact);
+						break;
+					default:
+						// DIV and DIV_EXACT:
+						if (b.exact == 0 || b.exact == -1 && a.exact == Long.MIN_VALUE)
+							throw new ArithmeticException();
+						cell.exact = a.exact / b.exact;
+						break;
+				}
+			}
+			catch (ArithmeticException ex) {
+				cell.state = FAILED;
+			}
+		}
+
+		return changed(cell, state, old, oldExact);
+	}
+
+	private boolean changed(Cell cell, int state, double old, long oldExact) {
+		if (cell.state != state)
+			return true;
+		if (cell.state != DEFINED)
+			return false;
+		return exact ? cell.exact != oldExact : Double.compare(cell.value, old) != 0;
+	}
+
+	/**
+	 * Schedule the dependents of a changed cell.
+	 * */
+	private void invalidate(Cell cell) {
+		if (cell.formulas != null)
+			touched.addAll(cell.formulas);
+
+		for (Cell dependent : cell.dependents) {
+			if (dependent.dirty)
+				continue;
+
+			dependent.dirty = true;
+			while (dirty.size() <= dependent.level)
+				dirty.add(new ArrayList<Cell>());
+			dirty.get(dependent.level).add(dependent);
+		}
+	}
+
+	/**
+	 * @return the result of a formula, converted to int; null if it or one of its guards is not defined
+	 * */
+	private Integer result(Formula formula) {
+		for (Cell guard : formula.guards)
+			if (guard.state != DEFINED)
+				return null;
+
+		Cell cell = formula.root;
+		if (cell.state != DEFINED)
+			return null;
+		if (!exact)
+			return (int) cell.value;
+
+		// as Program.evaluate(), the long result must fit in an int:
+		return cell.exact == (int) cell.exact ? Integer.valueOf((int) cell.exact) : null;
+	}
+}
@@ -0,0 +1,771 @@
+package calculator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Cursor based lexer for calculator expressions.
+ * The input is scanned once, char by char, and each token is classified as it is read:
+ * operators and integers are reported as an id/value without creating a substring for them.
+ * Delimiters are the same as in {@link Calculator#tokenize(String)}: whitespace, comma, and parentheses.
+ */
+abstract class Lexer {
+
+	/* Token types */
+	/**
+	 * no more tokens
+	 * */
+	static final int EOF     = 0;
+
+	/**
+	 * {@value calculator.Calculator#OP_LET} operator
+	 * */
+	static final int LET     = 1;
+
+	/**
+	 * {@value calculator.Calculator#OP_ADD} operator
+	 * */
+	static final int ADD     = 2;
+
+	/**
+	 * {@value calculator.Calculator#OP_SUB} operator
+	 * */
+	static final int SUB     = 3;
+
+	/**
+	 * {@value calculator.Calculator#OP_MUL} operator
+	 * */
+	static final int MUL     = 4;
+
+	/**
+	 * {@value calculator.Calculator#OP_DIV} operator
+	 * */
+	static final int DIV     = 5;
+
+	/**
+	 * variable name (/[a-zA-Z]+/)
+	 * */
+	static final int IDENT   = 6;
+
+	/**
+	 * integer in [Integer.MIN_VALUE, Integer.MAX_VALUE]
+	 * */
+	static final int INT     = 7;
+
+	/**
+	 * anything else
+	 * */
+	static final int UNKNOWN = 8;
+
+	/**
+	 * integer out of [Integer.MIN_VALUE, Integer.MAX_VALUE]: optional sign followed by digits
+	 * */
+	static final int OVERFLOW = 9;
+
+
+	/**
+	 * chars read from a {@link Reader} at a time
+	 * */
+	static final int CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * names interned at most by a lexer of a stream, whose distinct names are not bounded by anything in memory
+	 * */
+	static final int MAX_NAMES = 1 << 12;
+
+	/**
+	 * Type of the current token
+	 * */
+	protected int type = EOF;
+
+	/**
+	 * Value of the current token if it is an {@link #INT}
+	 * */
+	protected int intValue;
+
+	/**
+	 * Create a lexer over a char sequence.
+	 * @param input the expression
+	 * @return lexer positioned before the first token
+	 * */
+	static Lexer of(CharSequence input) {
+		return new CharSequenceLexer(input);
+	}
+
+	/**
+	 * Create a lexer over already split tokens. Each array element is one token.
+	 * @param tokens the tokens
+	 * @return lexer positioned before the first token
+	 * */
+	static Lexer of(String[] tokens) {
+		return new ArrayLexer(tokens);
+	}
+
+	/**
+	 * Create a lexer reading the input in chunks of {@value #CHUNK_SIZE} chars. Only the current token and at most {@value #MAX_NAMES}
+	 * interned names are kept, so memory does not grow with the input.
+	 * Offsets and token indexes past the int range are reported as -1.
+	 * @param in the expression; not closed
+	 * @return lexer positioned before the first token; next() throws an {@link UncheckedIOException} if reading fails
+	 * */
+	static Lexer of(Reader in) {
+		return new ReaderLexer(in, CHUNK_SIZE);
+	}
+
+	/**
+	 * @see #of(Reader)
+	 * @param chunkSize chars read at a time
+	 * */
+	static Lexer of(Reader in, int chunkSize) {
+		return new ReaderLexer(in, chunkSize);
+	}
+
+	/**
+	 * Create a lexer over a range of a mapped file. The bytes are classified as they are, without decoding: operators, names,
+	 * integers and delimiters are ASCII, and other bytes are never part of a valid token. Offsets are bytes from start;
+	 * offsets and token indexes past the int range are reported as -1. As over a reader, at most {@value #MAX_NAMES} names are interned.
+	 * @param file the mapped file
+	 * @param start position of the first byte of the expression
+	 * @param end position after the last byte of the expression
+	 * @return lexer positioned before the first token
+	 * */
+	static Lexer of(MappedFile file, long start, long end) {
+		return new MappedLexer(file, start, end);
+	}
+
+	/**
+	 * Check if a character is a token delimiter: whitespace (as in regex \s), comma, or a parenthesis.
+	 * @param c the character to check
+	 * @return whether or not c is a delimiter
+	 * */
+	static boolean isDelimiter(char c) {
+		switch (c) {
+			case ' ':
+			case '\t':
+			case '\n':
+			case '\u000B':
+			case '\f':
+			case '\r':
+			case ',':
+			case '(':
+			case ')':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Move to the next token.
+	 * @return type of the new current token
+	 * */
+	abstract int next();
+
+	/**
+	 * @return type of the current token
+	 * */
+	int type() {
+		return type;
+	}
+
+	/**
+	 * @return value of the current token if it is an {@link #INT}
+	 * */
+	int intValue() {
+		return intValue;
+	}
+
+	/**
+	 * Name of the current token if it is an {@link #IDENT}. Repeated names usually return the same String instance,
+	 * but lexers of streams forget the names when there are too many, so names must be compared with equals().
+	 * @return the variable name
+	 * */
+	abstract String identifier();
+
+	/**
+	 * @return 0-based index of the current token; the number of tokens at {@link #EOF}
+	 * */
+	abstract int tokenIndex();
+
+	/**
+	 * @return character offset of the current token in the input; the input length at {@link #EOF}; -1 if the input was given as tokens
+	 * */
+	abstract int offset();
+
+	/**
+	 * Text of the current token. Used for error messages; allocates.
+	 * @return the current token as a string
+	 * */
+	abstract String text();
+
+	/**
+	 * Classify the characters [start, end) of a sequence and set type and intValue accordingly.
+	 * @param s the sequence containing the token
+	 * @param start first character of the token
+	 * @param end one past the last character of the token
+	 * */
+	protected void classify(CharSequence s, int start, int end) {
+		long token = scan(s, start, end);
+		type     = (int) (token >>> 32);
+		intValue = (int) token;
+	}
+
+	/**
+	 * Classify a whole token.
+	 * @param token the token; null and empty strings are {@link #UNKNOWN}
+	 * @return the token type
+	 * */
+	static int typeOf(CharSequence token) {
+		if (token == null || token.length() == 0)
+			return UNKNOWN;
+
+		return (int) (scan(token, 0, token.length()) >>> 32);
+	}
+
+	/**
+	 * Classify and, if it is an integer, parse the characters [start, end) of a sequence in one pass,
+	 * without exceptions or allocation.
+	 * @param s the sequence containing the token
+	 * @param start first character of the token
+	 * @param end one past the last character of the token; greater than start
+	 * @return the token type in the high 32 bits and, for an {@link #INT}, its value in the low 32 bits
+	 * */
+	static long scan(CharSequence s, int start, int end) {
+		int len = end - start;
+		char c = s.charAt(start);
+
+		// operators are lower case letters:
+		if (c >= 'a' && c <= 'z') {
+			int op = operator(s, start, len);
+			if (op != UNKNOWN)
+				return token(op, 0);
+		}
+
+		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+			// variable name: letters only
+			for (int i = start + 1; i < end; i++) {
+				char d = s.charAt(i);
+				if (!((d >= 'a' && d <= 'z') || (d >= 'A' && d <= 'Z')))
+					return token(UNKNOWN, 0);
+			}
+			return token(IDENT, 0);
+		}
+
+		// integer: optional sign followed by digits, accumulated as a negative number (same range check as Integer.parseInt)
+		int i = start;
+		boolean negative = false;
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+			if (i == end)
+				return token(UNKNOWN, 0);
+		}
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int multMin = limit / 10;
+		int result = 0;
+		boolean overflow = false;
+		for (; i < end; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return token(UNKNOWN, 0);
+
+			// once out of range, the remaining characters only decide between OVERFLOW and UNKNOWN:
+			if (overflow)
+				continue;
+
+			if (result < multMin || result * 10 < limit + digit)
+				overflow = true;
+			else
+				result = result * 10 - digit;
+		}
+
+		if (overflow)
+			return token(OVERFLOW, 0);
+		return token(INT, negative ? result : -result);
+	}
+
+	private static long token(int type, int value) {
+		return ((long) type << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Match an operator name.
+	 * @return the operator token type or {@link #UNKNOWN}
+	 * */
+	private static int operator(CharSequence s, int start, int len) {
+		if (len == 3) {
+			char a = s.charAt(start), b = s.charAt(start + 1), c = s.charAt(start + 2);
+			if (a == 'l' && b == 'e' && c == 't') return LET;
+			if (a == 'a' && b == 'd' && c == 'd') return ADD;
+			if (a == 's' && b == 'u' && c == 'b') return SUB;
+			if (a == 'd' && b == 'i' && c == 'v') return DIV;
+		}
+		else if (len == 4) {
+			if (s.charAt(start) == 'm' && s.charAt(start + 1) == 'u' && s.charAt(start + 2) == 'l' && s.charAt(start + 3) == 't')
+				return MUL;
+		}
+		return UNKNOWN;
+	}
+
+
+	/**
+	 * @return number of names interned by this lexer, for tests
+	 * */
+	int internedNames() {
+		return 0;
+	}
+
+	/**
+	 * Small open addressing table of identifiers seen so far, so a repeated name costs no substring.
+	 * */
+	private static final class Names {
+
+		private String[] names = new String[16];
+
+		private int numNames;
+
+		/**
+		 * the table is emptied when it reaches this many names
+		 * */
+		private final int maxNames;
+
+		/**
+		 * Table of all names; for inputs already in memory, which hold more than their names.
+		 * */
+		Names() {
+			this(Integer.MAX_VALUE);
+		}
+
+		Names(int maxNames) {
+			this.maxNames = maxNames;
+		}
+
+		/**
+		 * @return the name of the characters [start, end) of s; the same instance for the same characters until the table is emptied
+		 * */
+		String get(CharSequence s, int start, int end) {
+			int len = end - start;
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + s.charAt(i);
+
+			int mask = names.length - 1;
+			for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+				String name = names[slot];
+				if (name == null) {
+					name = s.subSequence(start, end).toString();
+					names[slot] = name;
+					if (++numNames == maxNames) {
+						// many distinct names, e.g. generated ones: start again rather than keep them all
+						Arrays.fill(names, null);
+						numNames = 0;
+					}
+					else if (numNames * 2 > names.length) {
+						grow();
+					}
+					return name;
+				}
+				if (name.length() == len && matches(name, s, start))
+					return name;
+			}
+		}
+
+		int size() {
+			return numNames;
+		}
+
+		private static boolean matches(String name, CharSequence s, int start) {
+			for (int i = 0; i < name.length(); i++) {
+				if (name.charAt(i) != s.charAt(start + i))
+					return false;
+			}
+			return true;
+		}
+
+		private void grow() {
+			String[] old = names;
+			names = new String[old.length * 2];
+			int mask = names.length - 1;
+			for (String name : old) {
+				if (name == null)
+					continue;
+				int slot = name.hashCode() & mask;
+				while (names[slot] != null)
+					slot = (slot + 1) & mask;
+				names[slot] = name;
+			}
+		}
+	}
+
+
+	/**
+	 * Lexer scanning a char sequence.
+	 * */
+	private static final class CharSequenceLexer extends Lexer {
+
+		private final CharSequence input;
+
+		private final int length;
+
+		/**
+		 * scan position
+		 * */
+		private int pos;
+
+		/**
+		 * span of the current token
+		 * */
+		private int start, end;
+
+		/**
+		 * index of the current token
+		 * */
+		private int index = -1;
+
+		/**
+		 * identifiers seen so far
+		 * */
+		private final Names names = new Names();
+
+		CharSequenceLexer(CharSequence input) {
+			this.input  = input;
+			this.length = input == null ? 0 : input.length();
+		}
+
+		@Override
+		int next() {
+			if (type != EOF || index < 0)
+				index++;
+
+			int i = pos;
+
+			// skip delimiters
+			while (i < length && isDelimiter(input.charAt(i)))
+				i++;
+
+			if (i == length) {
+				pos   = i;
+				start = end = i;
+				type  = EOF;
+				return type;
+			}
+
+			start = i;
+			while (i < length && !isDelimiter(input.charAt(i)))
+				i++;
+			end = i;
+			pos = i;
+
+			classify(input, start, end);
+			return type;
+		}
+
+		@Override
+		String identifier() {
+			return names.get(input, start, end);
+		}
+
+		@Override
+		int tokenIndex() {
+			return index;
+		}
+
+		@Override
+		int offset() {
+			return start;
+		}
+
+		@Override
+		String text() {
+			return type == EOF ? "" : input.subSequence(start, end).toString();
+		}
+	}
+
+
+	/**
+	 * Lexer over an array of tokens.
+	 * */
+	private static final class ArrayLexer extends Lexer {
+
+		private final String[] tokens;
+
+		private int index = -1;
+
+		ArrayLexer(String[] tokens) {
+			this.tokens = tokens;
+		}
+
+		@Override
+		int next() {
+			if (index < tokens.length)
+				index++;
+
+			if (index == tokens.length) {
+				type = EOF;
+				return type;
+			}
+
+			String token = tokens[index];
+			if (token == null || token.isEmpty())
+				type = UNKNOWN;
+			else
+				classify(token, 0, token.length());
+
+			return type;
+		}
+
+		@Override
+		String identifier() {
+			return tokens[index];
+		}
+
+		@Override
+		int tokenIndex() {
+			return index;
+		}
+
+		@Override
+		int offset() {
+			return -1;
+		}
+
+		@Override
+		String text() {
+			return type == EOF ? "" : tokens[index];
+		}
+	}
+
+
+	/**
+	 * Lexer reading chunks from a reader. A token may span chunks; its chars are collected in a buffer reused for every token.
+	 * */
+	private static final class ReaderLexer extends Lexer {
+
+		private final Reader in;
+
+		private final char[] buffer;
+
+		/**
+		 * read position in the buffer and number of chars in it
+		 * */
+		private int pos, limit;
+
+		/**
+		 * chars consumed from the input
+		 * */
+		private long consumed;
+
+		/**
+		 * offset of the current token
+		 * */
+		private long start;
+
+		/**
+		 * index of the current token
+		 * */
+		private long index = -1;
+
+		/**
+		 * chars of the current token
+		 * */
+		private final StringBuilder token = new StringBuilder();
+
+		/**
+		 * identifiers seen so far
+		 * */
+		private final Names names = new Names(MAX_NAMES);
+
+		ReaderLexer(Reader in, int chunkSize) {
+			this.in     = in;
+			this.buffer = new char[chunkSize];
+		}
+
+		/**
+		 * @return the next char of the input, or -1 at its end
+		 * */
+		private int read() {
+			if (pos == limit) {
+				try {
+					int n;
+					do {
+						n = in.read(buffer, 0, buffer.length);
+					} while (n == 0);
+
+					if (n < 0)
+						return -1;
+					pos   = 0;
+					limit = n;
+				}
+				catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}
+
+			consumed++;
+			return buffer[pos++];
+		}
+
+		@Override
+		int next() {
+			if (type != EOF || index < 0)
+				index++;
+
+			token.setLength(0);
+
+			// skip delimiters
+			int c;
+			while ((c = read()) >= 0 && isDelimiter((char) c))
+				;
+
+			if (c < 0) {
+				start = consumed;
+				type  = EOF;
+				return type;
+			}
+
+			start = consumed - 1;
+			do {
+				token.append((char) c);
+			} while ((c = read()) >= 0 && !isDelimiter((char) c));
+
+			// the delimiter ending the token, if any, is consumed; it is not part of any token
+
+			classify(token, 0, token.length());
+			return type;
+		}
+
+		@Override
+		String identifier() {
+			return names.get(token, 0, token.length());
+		}
+
+		@Override
+		int internedNames() {
+			return names.size();
+		}
+
+		@Override
+		int tokenIndex() {
+			return index <= Integer.MAX_VALUE ? (int) index : -1;
+		}
+
+		@Override
+		int offset() {
+			return start <= Integer.MAX_VALUE ? (int) start : -1;
+		}
+
+		@Override
+		String text() {
+			return token.toString();
+		}
+	}
+
+
+	/**
+	 * Lexer over the bytes of a mapped file. The current token is classified through a view of its bytes, so nothing is copied.
+	 * */
+	private static final class MappedLexer extends Lexer {
+
+		private final MappedFile file;
+
+		/**
+		 * start and end of the input in the file
+		 * */
+		private final long base, limit;
+
+		/**
+		 * scan position in the file
+		 * */
+		private long pos;
+
+		/**
+		 * span of the current token in the file
+		 * */
+		private long start, end;
+
+		/**
+		 * index of the current token
+		 * */
+		private long index = -1;
+
+		/**
+		 * the current token
+		 * */
+		private final MappedFile.Slice token;
+
+		/**
+		 * identifiers seen so far
+		 * */
+		private final Names names = new Names(MAX_NAMES);
+
+		MappedLexer(MappedFile file, long start, long end) {
+			this.file  = file;
+			this.base  = start;
+			this.limit = end;
+			this.pos   = start;
+			this.token = new MappedFile.Slice(file);
+		}
+
+		@Override
+		int next() {
+			if (type != EOF || index < 0)
+				index++;
+
+			long i = pos;
+
+			// skip delimiters
+			while (i < limit && isDelimiter(file.charAt(i)))
+				i++;
+
+			if (i == limit) {
+				pos   = i;
+				start = end = i;
+				type  = EOF;
+				token.set(i, 0);
+				return type;
+			}
+
+			start = i;
+			while (i < limit && !isDelimiter(file.charAt(i)))
+				i++;
+			end = i;
+			pos = i;
+
+			// a token of more than 2G bytes is nothing valid; its first bytes say if it is an integer that overflows:
+			int length = (int) Math.min(end - start, Integer.MAX_VALUE);
+			token.set(start, length);
+			classify(token, 0, length);
+			if (length < end - start && type != OVERFLOW)
+				type = UNKNOWN;
+			return type;
+		}
+
+		@Override
+		String identifier() {
+			return names.get(token, 0, token.length());
+		}
+
+		@Override
+		int internedNames() {
+			return names.size();
+		}
+
+		@Override
+		int tokenIndex() {
+			return index <= Integer.MAX_VALUE ? (int) index : -1;
+		}
+
+		@Override
+		int offset() {
+			long offset = start - base;
+			return offset <= Integer.MAX_VALUE ? (int) offset : -1;
+		}
+
+		@Override
+		String text() {
+			return token.toString();
+		}
+	}
+}
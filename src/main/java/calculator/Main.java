@@ -2,7 +2,18 @@ package calculator;
 
 import calculator.Calculator.BadInputException;
 
-import java.util.logging.Logger;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Main class to execute <b>Calculator</b> application.
@@ -10,6 +21,110 @@ import java.util.logging.Logger;
  */
 public class Main {
 
+	/**
+	 * switch for batch mode: expressions are read line by line from a file or stdin
+	 * */
+	static final String BATCH_SWITCH = "-b";
+
+	/**
+	 * switch for stream mode: one expression, possibly larger than memory, is read from a file or stdin as it is evaluated
+	 * */
+	static final String STREAM_SWITCH = "-f";
+
+	/**
+	 * switch for server mode: expressions are evaluated over HTTP until the process is stopped
+	 * */
+	static final String SERVER_SWITCH = "-http";
+
+	/**
+	 * switch for session mode: expressions and variable definitions are read line by line from stdin or from connections to a loopback port
+	 * */
+	static final String SESSION_SWITCH = "-i";
+
+	/**
+	 * switch for the largest request body accepted in server mode, in bytes
+	 * */
+	static final String LIMIT_SWITCH = "-l";
+
+	/**
+	 * switch for compiling the lines of a file (or stdin) into an archive of compiled expressions
+	 * */
+	static final String PRECOMPILE_SWITCH = "-c";
+
+	/**
+	 * switch for evaluating the expressions of an archive written with {@link #PRECOMPILE_SWITCH}, as batch mode does for its source
+	 * */
+	static final String ARCHIVE_SWITCH = "-r";
+
+	/**
+	 * switch for reading the file of batch or stream mode mapped into memory instead of through a reader
+	 * */
+	static final String MAP_SWITCH = "-m";
+
+	/**
+	 * switch for the number of threads evaluating a batch
+	 * */
+	static final String PARALLEL_SWITCH = "-p";
+
+	/**
+	 * switch for sharing common subexpressions in batch mode
+	 * */
+	static final String SHARE_SWITCH = "-s";
+
+	/**
+	 * switch for the verbose level
+	 * */
+	static final String VERBOSE_SWITCH = "-v";
+
+	/**
+	 * size of the input and output buffers in batch mode
+	 * */
+	private static final int BATCH_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * number of compiled expressions cached in batch mode, so repeated lines are not parsed again
+	 * */
+	private static final int BATCH_CACHE_SIZE = 1024;
+
+	/**
+	 * number of lines evaluated by one task in a parallel batch
+	 * */
+	private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+	/**
+	 * chunks read ahead per thread in a parallel batch
+	 * */
+	private static final int PARALLEL_CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * port of server mode if none is given
+	 * */
+	private static final int SERVER_PORT = 8080;
+
+	/**
+	 * number of compiled expressions cached in server mode
+	 * */
+	private static final int SERVER_CACHE_SIZE = 4096;
+
+	/**
+	 * largest request body accepted in server mode if no limit is given
+	 * */
+	private static final int SERVER_REQUEST_LIMIT = 1 << 20;
+
+	/**
+	 * threads handling requests in server mode if the JDK has no virtual threads and no number is given
+	 * */
+	private static final int SERVER_THREADS = 64;
+
+	/**
+	 * log records buffered in server mode, so requests do not wait for the log file
+	 * */
+	private static final int SERVER_LOG_BUFFER = 8192;
+
+	/**
+	 * how long a stopping server waits for requests being handled. Short, as HttpServer of JDKs before 21 waits this long even if idle.
+	 * */
+	private static final int SERVER_SHUTDOWN_SECONDS = 2;
 
 	/**
 	 * prints the usage of this application in System.err:
@@ -19,6 +134,423 @@ public class Main {
 		System.err.println("calculator.Main \"expression\" [-v OFF|DEBUG|INFO|ERROR]");
 		System.err.println("OR");
 		System.err.println("calculator.Main -v OFF|DEBUG|INFO|ERROR \"expression\"");
+		System.err.println("OR, to evaluate one expression per line of a file (or of stdin if the file is - or missing):");
+		System.err.println("calculator.Main -b [file] [-p threads] [-s] [-v OFF|DEBUG|INFO|ERROR]");
+		System.err.println("calculator.Main -b file -m [-v OFF|DEBUG|INFO|ERROR]  (file mapped into memory)");
+		System.err.println("OR, to compile one expression per line of a file (or of stdin if the file is -) into an archive, and to evaluate an archive:");
+		System.err.println("calculator.Main -c file archive [-s] [-v OFF|DEBUG|INFO|ERROR]");
+		System.err.println("calculator.Main -r archive [-v OFF|DEBUG|INFO|ERROR]");
+		System.err.println("OR, to evaluate one expression of any size read from a file (or from stdin if the file is - or missing):");
+		System.err.println("calculator.Main -f [file] [-v OFF|DEBUG|INFO|ERROR]");
+		System.err.println("calculator.Main -f file -m [-v OFF|DEBUG|INFO|ERROR]  (file mapped into memory)");
+		System.err.println("OR, for a session with variables (name = expression) on stdin, or on each connection to a loopback port:");
+		System.err.println("calculator.Main -i [port] [-p threads] [-s] [-v OFF|DEBUG|INFO|ERROR]");
+		System.err.println("OR, to serve POST /evaluate and POST /batch over HTTP:");
+		System.err.println("calculator.Main -http [port] [-p threads] [-l max request bytes] [-s] [-v OFF|DEBUG|INFO|ERROR]");
+	}
+
+	/**
+	 * Set the verbose level given on the command line; log and print the usage if it is wrong.
+	 * @param verboseLevel the level
+	 * */
+	static void setVerboseLevel(String verboseLevel) {
+		if(AppLogger.setLevel(verboseLevel)) {
+			AppLogger.info("Log level was set to %s", verboseLevel);
+		}
+		else {
+			AppLogger.error("Wrong log level: %s", verboseLevel);
+			AppLogger.debug("Default level of AppLogger.logger not affected due to wrong log level in the command line.");
+			AppLogger.info("Continuing with expression evaluation despite Wrong log level.");
+
+			printUsage();
+		}
+	}
+
+	/**
+	 * Batch mode: evaluate each line of a file (or stdin) and print one result line per input line.
+	 * @param args the command line arguments; args[0] is the batch switch
+	 * */
+	static void runBatch(String[] args) {
+		String file = null;
+		int threads = 1;
+		boolean share = false;
+		boolean map = false;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (args[i].equals(PARALLEL_SWITCH) && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,3}")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals(SHARE_SWITCH)) {
+				share = true;
+			}
+			else if (args[i].equals(MAP_SWITCH)) {
+				map = true;
+			}
+			else if (file == null && !args[i].equals(VERBOSE_SWITCH) && !args[i].equals(PARALLEL_SWITCH)) {
+				file = args[i];
+			}
+			else {
+				AppLogger.error("Wrong command line arguments");
+				printUsage();
+				return;
+			}
+		}
+
+		// only a file can be mapped:
+		if (map && (file == null || file.equals("-"))) {
+			AppLogger.error("Wrong command line arguments: %s needs a file", MAP_SWITCH);
+			printUsage();
+			return;
+		}
+
+		Calculator calc = new Calculator();
+		calc.enableCache(BATCH_CACHE_SIZE);
+		calc.setSharingEnabled(share);
+
+		// errors are reported by message and position only; their stack traces would not be used:
+		BadInputException.setStackTraceCapture(false);
+
+		if (map) {
+			if (threads > 1)
+				AppLogger.info("A mapped file is evaluated on one thread");
+
+			try {
+				Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BATCH_BUFFER_SIZE);
+				new BatchEvaluator(calc).run(MappedFile.map(Paths.get(file)), out);
+				out.flush();
+			}
+			catch (IOException ex) {
+				AppLogger.error("Batch failed: %s", ex.getMessage());
+
+				System.err.println("Error occurred. Please check stacktrace below:");
+				ex.printStackTrace();
+			}
+			return;
+		}
+
+		ForkJoinPool pool = null;
+		BatchEvaluator evaluator;
+		if (threads > 1) {
+			pool = new ForkJoinPool(threads);
+			evaluator = new ParallelBatchEvaluator(calc, pool, PARALLEL_CHUNK_SIZE, threads * PARALLEL_CHUNKS_PER_THREAD);
+		}
+		else {
+			evaluator = new BatchEvaluator(calc);
+		}
+
+		try (InputStream input = (file == null || file.equals("-")) ? System.in : new FileInputStream(file)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(input), BATCH_BUFFER_SIZE);
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BATCH_BUFFER_SIZE);
+
+			evaluator.run(in, out);
+			out.flush();
+		}
+		catch (IOException ex) {
+			AppLogger.error("Batch failed: %s", ex.getMessage());
+
+			System.err.println("Error occurred. Please check stacktrace below:");
+			ex.printStackTrace();
+		}
+		finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	/**
+	 * Precompile mode: compile each line of a file (or stdin) and save the compiled expressions, or their errors, in an archive.
+	 * @param args the command line arguments; args[0] is the precompile switch
+	 * */
+	static void runPrecompile(String[] args) {
+		String file = null;
+		String archive = null;
+		boolean share = false;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (args[i].equals(SHARE_SWITCH)) {
+				share = true;
+			}
+			else if (file == null && !args[i].equals(VERBOSE_SWITCH)) {
+				file = args[i];
+			}
+			else if (archive == null && !args[i].equals(VERBOSE_SWITCH)) {
+				archive = args[i];
+			}
+			else {
+				archive = null;
+				break;
+			}
+		}
+
+		if (archive == null) {
+			AppLogger.error("Wrong command line arguments");
+			printUsage();
+			return;
+		}
+
+		Calculator calc = new Calculator();
+		calc.setSharingEnabled(share);
+		BadInputException.setStackTraceCapture(false);
+
+		try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(input), BATCH_BUFFER_SIZE);
+			long errors = ExpressionArchive.precompile(calc, in, new FileOutputStream(archive));
+			System.err.println("Wrote " + archive + (errors > 0 ? ", " + errors + " expressions failed to compile" : ""));
+		}
+		catch (IOException ex) {
+			AppLogger.error("Precompiling failed: %s", ex.getMessage());
+
+			System.err.println("Error occurred. Please check stacktrace below:");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Archive mode: evaluate each expression of an archive and print one result line per expression.
+	 * @param args the command line arguments; args[0] is the archive switch
+	 * */
+	static void runArchive(String[] args) {
+		String archive = null;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (archive == null && !args[i].equals(VERBOSE_SWITCH)) {
+				archive = args[i];
+			}
+			else {
+				archive = null;
+				break;
+			}
+		}
+
+		if (archive == null) {
+			AppLogger.error("Wrong command line arguments");
+			printUsage();
+			return;
+		}
+
+		BadInputException.setStackTraceCapture(false);
+
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BATCH_BUFFER_SIZE);
+			new BatchEvaluator(new Calculator()).run(ExpressionArchive.load(Paths.get(archive)), out);
+			out.flush();
+		}
+		catch (IOException ex) {
+			AppLogger.error("Archive failed: %s", ex.getMessage());
+
+			System.err.println("Error occurred. Please check stacktrace below:");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stream mode: evaluate one expression read from a file (or stdin) while it is read, and print its result.
+	 * @param args the command line arguments; args[0] is the stream switch
+	 * */
+	static void runStream(String[] args) {
+		String file = null;
+		boolean map = false;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (args[i].equals(MAP_SWITCH)) {
+				map = true;
+			}
+			else if (file == null && !args[i].equals(VERBOSE_SWITCH)) {
+				file = args[i];
+			}
+			else {
+				AppLogger.error("Wrong command line arguments");
+				printUsage();
+				return;
+			}
+		}
+
+		// only a file can be mapped:
+		if (map && (file == null || file.equals("-"))) {
+			AppLogger.error("Wrong command line arguments: %s needs a file", MAP_SWITCH);
+			printUsage();
+			return;
+		}
+
+		Calculator calc = new Calculator();
+
+		try {
+			int result;
+			if (map) {
+				result = calc.evaluateFile(Paths.get(file));
+			}
+			else {
+				try (InputStream input = (file == null || file.equals("-")) ? System.in : new FileInputStream(file)) {
+					result = calc.evaluateStream(input);
+				}
+			}
+			System.out.println(result);
+			AppLogger.info("Expression of %s evaluated to %d", file == null ? "stdin" : file, result);
+		}
+		catch (BadInputException ex) {
+			AppLogger.error("Exception %s occurred: %s", ex.getClass().getName(), ex.getMessage());
+			System.err.println(BatchEvaluator.ERROR_PREFIX + ex.getMessage() + (ex.getOffset() >= 0 ? " (offset " + ex.getOffset() + ")" : ""));
+		}
+		catch (IOException ex) {
+			AppLogger.error("Reading the expression failed: %s", ex.getMessage());
+
+			System.err.println("Error occurred. Please check stacktrace below:");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Server mode: evaluate expressions sent over HTTP until the process is stopped.
+	 * @param args the command line arguments; args[0] is the server switch
+	 * @return the running server, or null if the arguments are wrong or it could not start
+	 * */
+	static EvaluationServer runServer(String[] args) {
+		int port = SERVER_PORT;
+		int threads = SERVER_THREADS;
+		int limit = SERVER_REQUEST_LIMIT;
+		boolean share = false;
+		boolean portGiven = false;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (args[i].equals(PARALLEL_SWITCH) && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,3}")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals(LIMIT_SWITCH) && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,8}")) {
+				limit = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals(SHARE_SWITCH)) {
+				share = true;
+			}
+			else if (!portGiven && args[i].matches("[0-9]{1,5}") && Integer.parseInt(args[i]) <= 65535) {
+				port = Integer.parseInt(args[i]);
+				portGiven = true;
+			}
+			else {
+				AppLogger.error("Wrong command line arguments");
+				printUsage();
+				return null;
+			}
+		}
+
+		Calculator calc = new Calculator();
+		calc.enableCache(SERVER_CACHE_SIZE);
+		calc.setSharingEnabled(share);
+		BadInputException.setStackTraceCapture(false);
+		AppLogger.setAsync(SERVER_LOG_BUFFER, AsyncLogHandler.OverflowPolicy.SAMPLE);
+
+		// answers are small; do not let them wait for the acknowledgement of the previous segment:
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		final EvaluationServer server = new EvaluationServer(calc, limit);
+		try {
+			server.start(new InetSocketAddress(port), threads);
+		}
+		catch (IOException ex) {
+			AppLogger.error("Server failed to start: %s", ex.getMessage());
+			System.err.println("Server failed to start: " + ex.getMessage());
+			AppLogger.closeHandlers();
+			return null;
+		}
+
+		// stopped by a signal (or System.exit): finish the requests being handled and flush the log
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop(SERVER_SHUTDOWN_SECONDS);
+			}
+		}, "calculator-http-shutdown"));
+
+		System.err.println("Listening on port " + server.getPort());
+		return server;
+	}
+
+	/**
+	 * Session mode: run a session on stdin, or serve sessions on a loopback port until the process is stopped.
+	 * @param args the command line arguments; args[0] is the session switch
+	 * @return the running server, or null if the session ran on stdin, the arguments are wrong, or the server could not start
+	 * */
+	static ReplServer runSession(String[] args) {
+		int port = -1;
+		int threads = SERVER_THREADS;
+		boolean share = false;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(VERBOSE_SWITCH) && i + 1 < args.length) {
+				setVerboseLevel(args[++i]);
+			}
+			else if (args[i].equals(PARALLEL_SWITCH) && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,3}")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals(SHARE_SWITCH)) {
+				share = true;
+			}
+			else if (port < 0 && args[i].matches("[0-9]{1,5}") && Integer.parseInt(args[i]) <= 65535) {
+				port = Integer.parseInt(args[i]);
+			}
+			else {
+				AppLogger.error("Wrong command line arguments");
+				printUsage();
+				AppLogger.closeHandlers();
+				return null;
+			}
+		}
+
+		Calculator calc = new Calculator();
+		calc.enableCache(SERVER_CACHE_SIZE);
+		calc.setSharingEnabled(share);
+		BadInputException.setStackTraceCapture(false);
+
+		if (port < 0) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+				Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+				new ReplSession(calc).run(in, out, System.console() != null);
+			}
+			catch (IOException ex) {
+				AppLogger.error("Session failed: %s", ex.getMessage());
+			}
+
+			AppLogger.closeHandlers();
+			return null;
+		}
+
+		final ReplServer server = new ReplServer(calc);
+		try {
+			server.start(port, threads);
+		}
+		catch (IOException ex) {
+			AppLogger.error("Session server failed to start: %s", ex.getMessage());
+			System.err.println("Session server failed to start: " + ex.getMessage());
+			AppLogger.closeHandlers();
+			return null;
+		}
+
+		// stopped by a signal (or System.exit): end the sessions and flush the log
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop(SERVER_SHUTDOWN_SECONDS);
+			}
+		}, "calculator-repl-shutdown"));
+
+		System.err.println("Listening on port " + server.getPort());
+		return server;
 	}
 
 	/**
@@ -26,8 +558,52 @@ public class Main {
 	 */
 	public static void main(String[] args) {
 
+		if (args.length > 0 && args[0].equals(SESSION_SWITCH)) {
+			// a session on stdin closes log handlers itself; a server closes them when it stops
+			runSession(args);
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals(SERVER_SWITCH)) {
+			// the server threads keep running; log handlers are closed when it stops
+			runServer(args);
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals(PRECOMPILE_SWITCH)) {
+			runPrecompile(args);
+
+			// close logger handlers
+			AppLogger.closeHandlers();
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals(ARCHIVE_SWITCH)) {
+			runArchive(args);
+
+			// close logger handlers
+			AppLogger.closeHandlers();
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals(STREAM_SWITCH)) {
+			runStream(args);
+
+			// close logger handlers
+			AppLogger.closeHandlers();
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals(BATCH_SWITCH)) {
+			runBatch(args);
+
+			// close logger handlers
+			AppLogger.closeHandlers();
+			return;
+		}
+
 		String expression    = null;
-		String verboseSwitch = "-v";
+		String verboseSwitch = VERBOSE_SWITCH;
 		String verboseLevel  = null;
 
 		boolean argInError = false;
@@ -79,16 +655,7 @@ public class Main {
 		else {
 
 			if(verboseLevel != null) {
-				if(AppLogger.setLevel(verboseLevel)) {
-					AppLogger.info("Log level was set to " + verboseLevel);
-				}
-				else {
-					AppLogger.error("Wrong log level: " + verboseLevel);
-					AppLogger.debug("Default level of AppLogger.logger not affected due to wrong log level in the command line.");
-					AppLogger.info("Continuing with expression evaluation despite Wrong log level.");
-
-					printUsage();
-				}
+				setVerboseLevel(verboseLevel);
 			}
 
 			// an expression should be available here:
@@ -97,10 +664,10 @@ public class Main {
 			try {
 				int result = calc.evaluate(expression);
 				System.out.println(result);
-				AppLogger.info("Expression " + expression + " evaluated to " + result);
+				AppLogger.info("Expression %s evaluated to %d", expression, result);
 			}
 			catch(BadInputException ex) {
-				AppLogger.error("Exception " + ex.getClass().getName() + " occurred: " + ex.getMessage());
+				AppLogger.error("Exception %s occurred: %s", ex.getClass().getName(), ex.getMessage());
 
 				System.err.println("Error occurred. Please check stacktrace below:");
 				ex.printStackTrace();
@@ -0,0 +1,127 @@
+package calculator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file mapped into memory, so its bytes are read without copying them into a heap buffer or decoding them to chars.
+ * A mapping can not exceed 2 GB, so the file is mapped in regions of {@value #REGION_SIZE} bytes, and addressed with long positions.
+ * The pages are read by the operating system when they are first touched; the mapping is released when this object is collected.
+ */
+final class MappedFile {
+
+	/**
+	 * bits of a position within a region
+	 * */
+	static final int REGION_BITS = 30;
+
+	/**
+	 * bytes per mapped region; a power of 2, so the region of a position is its high bits
+	 * */
+	static final int REGION_SIZE = 1 << REGION_BITS;
+
+	private final MappedByteBuffer[] regions;
+
+	private final long size;
+
+	private MappedFile(MappedByteBuffer[] regions, long size) {
+		this.regions = regions;
+		this.size    = size;
+	}
+
+	/**
+	 * Map a whole file. The file should not change while it is mapped.
+	 * @param path the file
+	 * @return the mapped file
+	 * @throws IOException if the file can not be opened or mapped
+	 * */
+	static MappedFile map(Path path) throws IOException {
+		// the mappings stay valid after the channel is closed:
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) >>> REGION_BITS)];
+			for (int i = 0; i < regions.length; i++) {
+				long start = (long) i << REGION_BITS;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+			}
+			return new MappedFile(regions, size);
+		}
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 * */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @param pos position in [0, size)
+	 * @return the byte at pos
+	 * */
+	byte get(long pos) {
+		return regions[(int) (pos >>> REGION_BITS)].get((int) pos & (REGION_SIZE - 1));
+	}
+
+	/**
+	 * @param pos position in [0, size)
+	 * @return the byte at pos as a char, i.e., ISO 8859-1; the same as UTF-8 for ASCII
+	 * */
+	char charAt(long pos) {
+		return (char) (get(pos) & 0xFF);
+	}
+
+	/**
+	 * A range of the file as chars, for the classification of tokens; nothing is copied.
+	 * */
+	static final class Slice implements CharSequence {
+
+		private final MappedFile file;
+
+		private long base;
+
+		private int length;
+
+		Slice(MappedFile file) {
+			this.file = file;
+		}
+
+		/**
+		 * Move the slice to another range.
+		 * @param base position of the first byte
+		 * @param length number of bytes
+		 * */
+		void set(long base, int length) {
+			this.base   = base;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return file.charAt(base + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			Slice slice = new Slice(file);
+			slice.set(base + start, end - start);
+			return slice;
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++)
+				chars[i] = file.charAt(base + i);
+			return new String(chars);
+		}
+	}
+}
@@ -25,6 +25,12 @@ class Node {
 	 * */
 	private String varName;
 
+	/**
+	 * If this node is a variable, its frame slot, resolved while the tree is built:
+	 * the let nesting level (0 for the outermost let) for a let variable, or ~i for the i-th free variable.
+	 * */
+	private int slot;
+
 	/**
 	 * If this node is a numeric literal, the corresponding value. Null otherwise.
 	 * */
@@ -40,6 +46,16 @@ class Node {
 	 * */
 	private Node parent;
 
+	/**
+	 * 0-based index of the token this node was parsed from; -1 if unknown
+	 * */
+	private int tokenIndex = -1;
+
+	/**
+	 * character offset of the token this node was parsed from; -1 if unknown
+	 * */
+	private int offset = -1;
+
 	/**
 	 * @return the opName
 	 */
@@ -68,6 +84,43 @@ class Node {
 		this.value = value;
 	}
 
+	/**
+	 * @return the slot
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 * @param slot the slot to set
+	 */
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
+
+	/**
+	 * @return the tokenIndex
+	 */
+	public int getTokenIndex() {
+		return tokenIndex;
+	}
+
+	/**
+	 * @return the offset
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @param tokenIndex 0-based index of the token this node was parsed from
+	 * @param offset character offset of the token this node was parsed from
+	 */
+	public void setPosition(int tokenIndex, int offset) {
+		this.tokenIndex = tokenIndex;
+		this.offset     = offset;
+	}
+
 	/**
 	 * @return the varName
 	 */
@@ -0,0 +1,123 @@
+package calculator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash-consing of token tree nodes: structurally identical subtrees are replaced by one shared node, turning the tree into a DAG.
+ * Nodes must be interned bottom-up, i.e., after their children, so that children can be compared by identity.
+ * A variable is identified by its slot and its binding, the (interned) value of the let defining it,
+ * so two uses of a variable are shared only if they certainly have the same value.
+ */
+final class NodeInterner {
+
+	/**
+	 * Structure of a node. Two nodes with equal keys compute the same value.
+	 * */
+	private static final class Key {
+		final String opName;
+		final double value;
+		final int slot;
+		final Node binding;
+		final Node a;
+		final Node b;
+		final int hash;
+
+		Key(String opName, double value, int slot, Node binding, Node a, Node b) {
+			this.opName  = opName;
+			this.value   = value;
+			this.slot    = slot;
+			this.binding = binding;
+			this.a       = a;
+			this.b       = b;
+
+			int h = opName.hashCode();
+			h = 31 * h + Double.hashCode(value);
+			h = 31 * h + slot;
+			h = 31 * h + System.identityHashCode(binding);
+			h = 31 * h + System.identityHashCode(a);
+			h = 31 * h + System.identityHashCode(b);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return hash == other.hash && opName.equals(other.opName)
+					&& Double.compare(value, other.value) == 0 && slot == other.slot
+					&& binding == other.binding && a == other.a && b == other.b;
+		}
+	}
+
+	/**
+	 * the shared node of each structure
+	 * */
+	private final Map<Key, Node> nodes = new HashMap<>();
+
+	/**
+	 * number of nodes interned, shared or not
+	 * */
+	private long interned;
+
+	/**
+	 * Find the shared node with the structure of n, making n the shared node if there is none.
+	 * @param n a complete node whose children are interned
+	 * @param binding for a let variable, the value of its let; null otherwise
+	 * @return the shared node
+	 * */
+	Node intern(Node n, Node binding) {
+		interned++;
+
+		Key key;
+		List<Node> children = n.getChildren();
+
+		switch (n.getOpName()) {
+			case Calculator.OP_INT:
+				key = new Key(Calculator.OP_INT, n.getValue(), 0, null, null, null);
+				break;
+
+			case Calculator.OP_VAR:
+				key = new Key(Calculator.OP_VAR, 0, n.getSlot(), binding, null, null);
+				break;
+
+			case Calculator.OP_LET:
+				// the defined variable is identified by its slot; its uses in the body are identified by slot and value:
+				key = new Key(Calculator.OP_LET, 0, children.get(0).getSlot(), null, children.get(1), children.get(2));
+				break;
+
+			default:
+				key = new Key(n.getOpName(), 0, 0, null, children.get(0), children.get(1));
+				break;
+		}
+
+		Node shared = nodes.get(key);
+		if (shared != null)
+			return shared;
+
+		nodes.put(key, n);
+		return n;
+	}
+
+	/**
+	 * @return number of nodes interned, i.e., the number of nodes of the tree
+	 * */
+	long getInterned() {
+		return interned;
+	}
+
+	/**
+	 * @return number of distinct nodes, i.e., the number of nodes of the DAG
+	 * */
+	long getShared() {
+		return nodes.size();
+	}
+}
@@ -0,0 +1,242 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Simplifies a token tree before it is lowered:
+ * <ul>
+ * <li>operations on two integers are replaced by their value (constant folding),</li>
+ * <li>add(x, 0), add(0, x), sub(x, 0), mult(x, 1), mult(1, x) and div(x, 1) are replaced by x,</li>
+ * <li>a let whose value is a constant is replaced by its body, with the constant in place of the variable.</li>
+ * </ul>
+ * Division by zero is never folded, so it behaves exactly as without the optimizer.
+ * For the long engine, division truncates as it does at run time, and values of 2^53 or more are not folded:
+ * they could not be kept exactly in a node, and they may overflow at run time.
+ * Operands are never dropped unless they are constants, so errors such as undefined variables are still reported.
+ * The tree is changed in place. In a DAG of shared subtrees, each shared node is optimized once.
+ */
+final class Optimizer {
+
+	private Optimizer() {
+	}
+
+	/**
+	 * Optimize a tree whose variables are resolved to slots.
+	 * The traversal keeps pending nodes on an explicit stack, so the nesting depth is only limited by the heap.
+	 * @param root root of the tree
+	 * @return the root of the optimized tree; the same node, possibly with other contents
+	 * */
+	static Node optimize(Node root) {
+		return optimize(root, false, Calculator.Engine.DOUBLE);
+	}
+
+	/**
+	 * Optimize a tree or a DAG whose variables are resolved to slots.
+	 * @param root root of the tree
+	 * @param shared whether some nodes have more than one parent
+	 * @param engine arithmetic the tree will be evaluated with
+	 * @return the root of the optimized tree; the same node, possibly with other contents
+	 * */
+	static Node optimize(Node root, boolean shared, Calculator.Engine engine) {
+		boolean exact = engine == Calculator.Engine.LONG;
+
+		// operation nodes optimized already; only needed for a DAG:
+		Set<Node> done = shared ? Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>()) : null;
+
+		// nodes being visited and the index of the child to visit next:
+		Node[] nodes = new Node[16];
+		int[]  next  = new int[16];
+		int top = 0;
+		nodes[0] = root;
+
+		// values of the let slots bound to constants in the current scope:
+		double[]  values   = new double[16];
+		boolean[] constant = new boolean[16];
+
+		while (top >= 0) {
+			Node node = nodes[top];
+			String opName = node.getOpName();
+			List<Node> children = node.getChildren();
+			int index = next[top];
+
+			// child to visit next, if any:
+			Node child = null;
+
+			// a shared operation reached again:
+			if (done != null && index == 0 && children != null && !done.add(node)) {
+				top--;
+				continue;
+			}
+
+			switch (opName) {
+				case Calculator.OP_INT:
+					top--;
+					break;
+
+				case Calculator.OP_VAR: {
+					// use of a let variable bound to a constant:
+					int slot = node.getSlot();
+					if (slot >= 0 && slot < constant.length && constant[slot])
+						toConstant(node, values[slot]);
+					top--;
+					break;
+				}
+
+				case Calculator.OP_LET: {
+					Node value = children.get(1);
+
+					if (index == 0) {
+						child = value;
+						next[top] = 2;
+					}
+					else if (index == 2) {
+						// the body sees the variable, possibly as a constant:
+						int slot = children.get(0).getSlot();
+						if (slot >= constant.length) {
+							int length = Math.max(slot + 1, constant.length * 2);
+							values   = Arrays.copyOf(values, length);
+							constant = Arrays.copyOf(constant, length);
+						}
+						constant[slot] = isConstant(value);
+						values[slot]   = constant[slot] ? value.getValue() : 0;
+
+						child = children.get(2);
+						next[top] = 3;
+					}
+					else {
+						// every use of a constant variable is replaced; the let is not needed anymore:
+						if (isConstant(value))
+							become(node, children.get(2));
+						top--;
+					}
+					break;
+				}
+
+				default:
+					if (index < 2) {
+						child = children.get(index);
+						next[top] = index + 1;
+					}
+					else {
+						simplify(node, exact);
+						top--;
+					}
+					break;
+			}
+
+			if (child != null) {
+				if (++top == nodes.length) {
+					nodes = Arrays.copyOf(nodes, top * 2);
+					next  = Arrays.copyOf(next, top * 2);
+				}
+				nodes[top] = child;
+				next[top]  = 0;
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Fold or drop an arithmetic operation whose operands are optimized already.
+	 * */
+	private static void simplify(Node node, boolean exact) {
+		String opName = node.getOpName();
+		Node a = node.getChildren().get(0);
+		Node b = node.getChildren().get(1);
+
+		if (isConstant(a) && isConstant(b)) {
+			double x = a.getValue();
+			double y = b.getValue();
+
+			switch (opName) {
+				case Calculator.OP_ADD:
+					fold(node, x + y, exact);
+					break;
+				case Calculator.OP_SUB:
+					fold(node, x - y, exact);
+					break;
+				case Calculator.OP_MUL:
+					fold(node, x * y, exact);
+					break;
+				default:
+					// division by zero is left for the evaluation
+					if (y != 0)
+						fold(node, exact ? (double) ((long) x / (long) y) : x / y, exact);
+					break;
+			}
+			return;
+		}
+
+		// identities:
+		switch (opName) {
+			case Calculator.OP_ADD:
+				if (isConstant(b, 0))
+					become(node, a);
+				else if (isConstant(a, 0))
+					become(node, b);
+				break;
+			case Calculator.OP_SUB:
+				if (isConstant(b, 0))
+					become(node, a);
+				break;
+			case Calculator.OP_MUL:
+				if (isConstant(b, 1))
+					become(node, a);
+				else if (isConstant(a, 1))
+					become(node, b);
+				break;
+			default:
+				if (isConstant(b, 1))
+					become(node, a);
+				break;
+		}
+	}
+
+	/**
+	 * Turn an operation into its value, unless the long engine could not represent it exactly.
+	 * */
+	private static void fold(Node n, double value, boolean exact) {
+		if (!exact || Math.abs(value) < 0x1p53)
+			toConstant(n, value);
+	}
+
+	private static boolean isConstant(Node n) {
+		return Calculator.OP_INT.equals(n.getOpName());
+	}
+
+	private static boolean isConstant(Node n, double value) {
+		return isConstant(n) && n.getValue() == value;
+	}
+
+	/**
+	 * Turn a node into a constant.
+	 * */
+	private static void toConstant(Node n, double value) {
+		n.setOpName(Calculator.OP_INT);
+		n.setValue(value);
+		n.setVarName(null);
+		n.setChildren(null);
+	}
+
+	/**
+	 * Replace the contents of a node by those of its descendant, so that the parent does not need to change.
+	 * */
+	private static void become(Node n, Node descendant) {
+		n.setOpName(descendant.getOpName());
+		n.setVarName(descendant.getVarName());
+		n.setSlot(descendant.getSlot());
+		n.setValue(descendant.getValue());
+		n.setChildren(descendant.getChildren());
+		n.setPosition(descendant.getTokenIndex(), descendant.getOffset());
+
+		if (n.getChildren() != null) {
+			for (Node child : n.getChildren())
+				child.setParent(n);
+		}
+	}
+}
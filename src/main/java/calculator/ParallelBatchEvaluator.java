@@ -0,0 +1,131 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Batch evaluator that evaluates chunks of lines on an executor, e.g., a ForkJoinPool.
+ * Expressions are independent of each other, so chunks run in parallel; results are written in input order.
+ * At most maxInFlight chunks are read ahead of the output, which bounds memory no matter how big the input is.
+ */
+class ParallelBatchEvaluator extends BatchEvaluator {
+
+	/**
+	 * Lines of one chunk and, after evaluation, their output lines.
+	 * */
+	private final class Chunk implements Callable<Chunk> {
+		final String[] lines;
+		final int size;
+		final long firstLineNumber;
+		long errors;
+
+		Chunk(String[] lines, int size, long firstLineNumber) {
+			this.lines = lines;
+			this.size  = size;
+			this.firstLineNumber = firstLineNumber;
+		}
+
+		@Override
+		public Chunk call() {
+			for (int i = 0; i < size; i++) {
+				String result = evaluateLine(lines[i], firstLineNumber + i);
+				if (result.startsWith(ERROR_PREFIX))
+					errors++;
+
+				// the output replaces the input line
+				lines[i] = result;
+			}
+			return this;
+		}
+	}
+
+	private final ExecutorService executor;
+
+	/**
+	 * number of lines evaluated by one task
+	 * */
+	private final int chunkSize;
+
+	/**
+	 * maximum number of chunks read but not yet written
+	 * */
+	private final int maxInFlight;
+
+	/**
+	 * @param calc calculator shared by all tasks
+	 * @param executor runs the chunks; not shut down by this class
+	 * @param chunkSize number of lines evaluated by one task
+	 * @param maxInFlight maximum number of chunks read but not yet written
+	 * */
+	ParallelBatchEvaluator(Calculator calc, ExecutorService executor, int chunkSize, int maxInFlight) {
+		super(calc);
+
+		if (chunkSize <= 0 || maxInFlight <= 0)
+			throw new IllegalArgumentException("Chunk size and chunks in flight must be positive");
+
+		this.executor    = executor;
+		this.chunkSize   = chunkSize;
+		this.maxInFlight = maxInFlight;
+	}
+
+	@Override
+	long run(BufferedReader in, Writer out) throws IOException {
+		ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+		long lineNumber = 0;
+		long errors = 0;
+		boolean eof = false;
+
+		try {
+			while (!eof || !inFlight.isEmpty()) {
+				// read ahead until the window is full
+				while (!eof && inFlight.size() < maxInFlight) {
+					String[] lines = new String[chunkSize];
+					int size = 0;
+					String line;
+
+					while (size < chunkSize && (line = in.readLine()) != null)
+						lines[size++] = line;
+
+					if (size < chunkSize)
+						eof = true;
+
+					if (size > 0) {
+						inFlight.add(executor.submit(new Chunk(lines, size, lineNumber + 1)));
+						lineNumber += size;
+					}
+				}
+
+				// write the oldest chunk; this waits for it if necessary
+				if (!inFlight.isEmpty()) {
+					Chunk chunk = inFlight.poll().get();
+					for (int i = 0; i < chunk.size; i++) {
+						out.write(chunk.lines[i]);
+						out.write('\n');
+					}
+					errors += chunk.errors;
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for results");
+		}
+		catch (ExecutionException ex) {
+			throw new IOException("Evaluation failed", ex.getCause());
+		}
+		finally {
+			for (Future<Chunk> future : inFlight)
+				future.cancel(true);
+		}
+
+		AppLogger.info("Batch of %d expressions evaluated in parallel, %d failed", lineNumber, errors);
+		return errors;
+	}
+}
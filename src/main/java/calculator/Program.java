@@ -0,0 +1,1141 @@
+package calculator;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Flat form of a token tree: an int[] opcode stream in post order plus a double[] constant pool,
+ * executed on an operand stack. Variables live in a double[] frame: one slot per let nesting level, resolved while the tree is built,
+ * followed by one slot per free variable, filled from the bindings before the program runs.
+ * A DAG of shared subtrees is lowered so that each shared subtree is computed once: its value is kept in a temporary slot
+ * after the let slots, and later occurrences load it.
+ * A program is immutable; evaluation uses per-thread scratch arrays, so it neither boxes nor allocates.
+ * <p>
+ * A program for {@link Calculator.Engine#LONG} runs on long values. While it is built, the range of every intermediate value is derived
+ * from the constants and the int range of the free variables; an operation is checked for overflow (and division by zero)
+ * only if its range does not prove that it is safe.
+ */
+final class Program {
+
+	/* Opcodes. CONST, LOAD, STORE and TEE are followed by one operand. */
+	/**
+	 * push constants[operand]
+	 * */
+	static final int CONST = 0;
+
+	/**
+	 * push the value of variable slot operand
+	 * */
+	static final int LOAD  = 1;
+
+	/**
+	 * pop a value into variable slot operand
+	 * */
+	static final int STORE = 2;
+
+	/**
+	 * pop b, pop a, push a + b
+	 * */
+	static final int ADD   = 3;
+
+	/**
+	 * pop b, pop a, push a - b
+	 * */
+	static final int SUB   = 4;
+
+	/**
+	 * pop b, pop a, push a * b
+	 * */
+	static final int MUL   = 5;
+
+	/**
+	 * pop b, pop a, push a / b
+	 * */
+	static final int DIV   = 6;
+
+	/**
+	 * copy the top of the stack into variable slot operand without popping it
+	 * */
+	static final int TEE   = 7;
+
+	/**
+	 * pop b, pop a, push a + b; overflow is an error (long engine)
+	 * */
+	static final int ADD_EXACT = 8;
+
+	/**
+	 * pop b, pop a, push a - b; overflow is an error (long engine)
+	 * */
+	static final int SUB_EXACT = 9;
+
+	/**
+	 * pop b, pop a, push a * b; overflow is an error (long engine)
+	 * */
+	static final int MUL_EXACT = 10;
+
+	/**
+	 * pop b, pop a, push a / b; division by zero and overflow are errors (long engine)
+	 * */
+	static final int DIV_EXACT = 11;
+
+
+	/**
+	 * Largest scratch array kept per thread. Programs needing more (very deep expressions) get arrays of their own.
+	 * */
+	private static final int MAX_SCRATCH = 4096;
+
+	/**
+	 * Arrays reused by evaluations on the same thread.
+	 * */
+	private static final class Scratch {
+		double[] stack = new double[16];
+		double[] frame = new double[16];
+		long[]   longStack = new long[16];
+		long[]   longFrame = new long[16];
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+
+	/**
+	 * opcodes and their operands
+	 * */
+	final int[] code;
+
+	/**
+	 * constant pool
+	 * */
+	final double[] constants;
+
+	/**
+	 * names of the free variables; free variable i is in slot numLocals + i
+	 * */
+	final String[] names;
+
+	/**
+	 * number of let and temporary slots, before the slots of the free variables
+	 * */
+	final int numLocals;
+
+	/**
+	 * deepest operand stack needed
+	 * */
+	final int maxStack;
+
+	/**
+	 * whether the program runs on long values ({@link Calculator.Engine#LONG}) instead of double
+	 * */
+	final boolean exact;
+
+	/**
+	 * token index and offset of the first use of each free variable, two ints per variable
+	 * */
+	private final int[] namePositions;
+
+	/**
+	 * pc, token index and offset of each operation that can fail, three ints per operation, by pc.
+	 * The result, which may not fit in int, has pc code.length.
+	 * */
+	private final int[] faultPositions;
+
+	private Program(int[] code, double[] constants, String[] names, int numLocals, int maxStack, boolean exact,
+			int[] namePositions, int[] faultPositions) {
+		this.code      = code;
+		this.constants = constants;
+		this.names     = names;
+		this.numLocals = numLocals;
+		this.maxStack  = maxStack;
+		this.exact     = exact;
+		this.namePositions  = namePositions;
+		this.faultPositions = faultPositions;
+	}
+
+	/**
+	 * @return an exception at the first use of free variable i
+	 * */
+	BadInputException nameError(String message, int i) {
+		return new BadInputException(message, namePositions[2 * i], namePositions[2 * i + 1]);
+	}
+
+	/**
+	 * @return an exception at the operation at pc
+	 * */
+	BadInputException fault(String message, int pc) {
+		for (int i = 0; i < faultPositions.length; i += 3) {
+			if (faultPositions[i] == pc)
+				return new BadInputException(message, faultPositions[i + 1], faultPositions[i + 2]);
+		}
+		return new BadInputException(message);
+	}
+
+	/**
+	 * Write the program in the binary form read by {@link #read(ByteBuffer)}: the engine, the frame and stack sizes,
+	 * then each array as its length followed by its elements. Names are ASCII letters, written one byte per char.
+	 * The opcodes are written as they are, so a change of their numbering needs a new {@link ExpressionArchive#VERSION}.
+	 * @param out where to write
+	 * @throws IOException if writing fails
+	 * */
+	void write(DataOutput out) throws IOException {
+		out.writeBoolean(exact);
+		out.writeInt(numLocals);
+		out.writeInt(maxStack);
+
+		out.writeInt(code.length);
+		for (int op : code)
+			out.writeInt(op);
+
+		out.writeInt(constants.length);
+		for (double constant : constants)
+			out.writeDouble(constant);
+
+		out.writeInt(names.length);
+		for (String name : names) {
+			out.writeInt(name.length());
+			out.writeBytes(name);
+		}
+		for (int position : namePositions)
+			out.writeInt(position);
+
+		out.writeInt(faultPositions.length / 3);
+		for (int position : faultPositions)
+			out.writeInt(position);
+	}
+
+	/**
+	 * Read a program written by {@link #write(DataOutput)}. The arrays are copied out of the buffer in bulk.
+	 * The code is checked before it is accepted, so a damaged program is refused instead of failing when it runs.
+	 * @param in buffer positioned at the program; on return, positioned after it
+	 * @return the program
+	 * @throws StreamCorruptedException if the buffer does not hold a valid program
+	 * */
+	static Program read(ByteBuffer in) throws StreamCorruptedException {
+		try {
+			boolean exact = in.get() != 0;
+			int numLocals = in.getInt();
+			int maxStack  = in.getInt();
+
+			int[] code = new int[length(in, 4)];
+			in.asIntBuffer().get(code);
+			in.position(in.position() + 4 * code.length);
+
+			double[] constants = new double[length(in, 8)];
+			in.asDoubleBuffer().get(constants);
+			in.position(in.position() + 8 * constants.length);
+
+			String[] names = new String[length(in, 5)];
+			for (int i = 0; i < names.length; i++) {
+				byte[] name = new byte[length(in, 1)];
+				in.get(name);
+				names[i] = new String(name, StandardCharsets.ISO_8859_1);
+			}
+			int[] namePositions = new int[2 * names.length];
+			in.asIntBuffer().get(namePositions);
+			in.position(in.position() + 4 * namePositions.length);
+
+			int[] faultPositions = new int[3 * length(in, 12)];
+			in.asIntBuffer().get(faultPositions);
+			in.position(in.position() + 4 * faultPositions.length);
+
+			Program program = new Program(code, constants, names, numLocals, maxStack, exact, namePositions, faultPositions);
+			program.verify();
+			return program;
+		}
+		catch (BufferUnderflowException ex) {
+			throw new StreamCorruptedException("Truncated program");
+		}
+	}
+
+	/**
+	 * Read the length of an array.
+	 * @param elementSize bytes per element, at least
+	 * @throws StreamCorruptedException if the rest of the buffer can not hold so many elements
+	 * */
+	private static int length(ByteBuffer in, int elementSize) throws StreamCorruptedException {
+		int length = in.getInt();
+		if (length < 0 || (long) length * elementSize > in.remaining())
+			throw new StreamCorruptedException("Bad array length: " + length);
+		return length;
+	}
+
+	/**
+	 * Check that the code only uses known opcodes, constants and slots, that the operand stack stays within maxStack,
+	 * and that it leaves one value.
+	 * @throws StreamCorruptedException if it does not
+	 * */
+	private void verify() throws StreamCorruptedException {
+		int frameSize = numLocals + names.length;
+		if (numLocals < 0 || maxStack < 1)
+			throw new StreamCorruptedException("Bad frame or stack size");
+
+		int sp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case CONST:
+				case LOAD:
+				case STORE:
+				case TEE: {
+					if (pc == code.length)
+						throw new StreamCorruptedException("Missing operand at " + pc);
+					int operand = code[pc++];
+					int bound = opcode == CONST ? constants.length : opcode == LOAD ? frameSize : numLocals;
+					if (operand < 0 || operand >= bound)
+						throw new StreamCorruptedException("Bad operand " + operand + " at " + (pc - 1));
+
+					if (opcode == CONST || opcode == LOAD)
+						sp++;
+					else if (opcode == STORE)
+						sp--;
+					else if (sp < 1)
+						sp = -1;
+					break;
+				}
+
+				case ADD:
+				case SUB:
+				case MUL:
+				case DIV:
+				case ADD_EXACT:
+				case SUB_EXACT:
+				case MUL_EXACT:
+				case DIV_EXACT:
+					// an operation takes two values and pushes one:
+					sp = sp < 2 ? -1 : sp - 1;
+					break;
+
+				default:
+					throw new StreamCorruptedException("Bad opcode " + opcode + " at " + (pc - 1));
+			}
+
+			if (sp < 0 || sp > maxStack)
+				throw new StreamCorruptedException("Bad stack depth at " + pc);
+		}
+
+		if (sp != 1)
+			throw new StreamCorruptedException("Code leaves " + sp + " values");
+	}
+
+	/**
+	 * Evaluate the program with the engine it was built for and convert the result to int.
+	 * @param bindings values of the free variables
+	 * @return the result
+	 * @throws BadInputException if a free variable has no value or, with the long engine, on overflow or division by zero
+	 * */
+	int evaluate(Map<String, ? extends Number> bindings) throws BadInputException {
+		if (!exact)
+			return (int) run(bindings);
+
+		return toInt(runExact(bindings));
+	}
+
+	/**
+	 * Evaluate the program with the engine it was built for and convert the result to int.
+	 * @param values values of the free variables, in the order of {@link #names}
+	 * @return the result
+	 * @throws BadInputException with the long engine, if a value is out of int range, on overflow or division by zero
+	 * */
+	int evaluate(double[] values) throws BadInputException {
+		if (!exact)
+			return (int) run(values);
+
+		return toInt(runExact(values));
+	}
+
+	/**
+	 * Evaluate the program with its generated code and convert the result to int.
+	 * Errors of the long engine are reported by running the interpreter, which knows where they happen.
+	 * @param evaluator code generated for this program
+	 * @param values values of the free variables, in the order of {@link #names}
+	 * @return the result
+	 * @throws BadInputException with the long engine, if a value is out of int range, on overflow or division by zero
+	 * */
+	int evaluate(ClassGenerator.Evaluator evaluator, double[] values) throws BadInputException {
+		checkValues(values);
+		if (!exact)
+			return (int) evaluator.evaluate(values);
+
+		for (int i = 0; i < values.length; i++)
+			checkInt((long) values[i], i);
+
+		try {
+			double result = evaluator.evaluate(values);
+			if (result == (int) result)
+				return (int) result;
+		}
+		catch (ArithmeticException ex) {
+			// reported below
+		}
+		return evaluate(values);
+	}
+
+	/**
+	 * @param bindings values of the free variables
+	 * @return their values in the order of {@link #names}
+	 * @throws BadInputException if a free variable has no value
+	 * */
+	double[] values(Map<String, ? extends Number> bindings) throws BadInputException {
+		double[] values = new double[names.length];
+		for (int i = 0; i < names.length; i++) {
+			Number value = bindings.get(names[i]);
+			if (value == null)
+				throw nameError(Calculator.UNDEFINED_VARIABLE + ": " + names[i], i);
+			values[i] = exact ? value.longValue() : value.doubleValue();
+		}
+		return values;
+	}
+
+	/**
+	 * @return the result of the long engine as an int
+	 * @throws BadInputException if it does not fit in an int
+	 * */
+	private int toInt(long result) throws BadInputException {
+		if (result != (int) result)
+			throw fault(Calculator.INTEGER_OVERFLOW + ": " + result, code.length);
+		return (int) result;
+	}
+
+	/**
+	 * @return the per-thread scratch arrays, big enough for this program, or new arrays for a very big program
+	 * */
+	private Scratch scratch() {
+		int frameSize = numLocals + names.length;
+		Scratch scratch = maxStack <= MAX_SCRATCH && frameSize <= MAX_SCRATCH ? SCRATCH.get() : new Scratch();
+
+		if (exact) {
+			if (scratch.longStack.length < maxStack)
+				scratch.longStack = new long[maxStack];
+			if (scratch.longFrame.length < frameSize)
+				scratch.longFrame = new long[frameSize];
+		}
+		else {
+			if (scratch.stack.length < maxStack)
+				scratch.stack = new double[maxStack];
+			if (scratch.frame.length < frameSize)
+				scratch.frame = new double[frameSize];
+		}
+		return scratch;
+	}
+
+	/**
+	 * @throws IllegalArgumentException unless there is one value per free variable
+	 * */
+	void checkValues(double[] values) {
+		if (values.length != names.length)
+			throw new IllegalArgumentException("Expected " + names.length + " values, got " + values.length);
+	}
+
+	/**
+	 * Evaluate the program.
+	 * @param bindings values of the free variables, i.e., variables not defined by an enclosing let
+	 * @return the result
+	 * @throws BadInputException if a free variable has no value
+	 * */
+	double run(Map<String, ? extends Number> bindings) throws BadInputException {
+		Scratch scratch = scratch();
+		double[] frame = scratch.frame;
+
+		// let slots are always stored before they are loaded; only free variables need values:
+		for (int i = 0; i < names.length; i++) {
+			Number value = bindings.get(names[i]);
+			if (value == null)
+				throw nameError(Calculator.UNDEFINED_VARIABLE + ": " + names[i], i);
+			frame[numLocals + i] = value.doubleValue();
+		}
+
+		return execute(scratch.stack, frame);
+	}
+
+	/**
+	 * Evaluate the program.
+	 * @param values values of the free variables, in the order of {@link #names}
+	 * @return the result
+	 * */
+	double run(double[] values) throws BadInputException {
+		checkValues(values);
+
+		Scratch scratch = scratch();
+		System.arraycopy(values, 0, scratch.frame, numLocals, names.length);
+		return execute(scratch.stack, scratch.frame);
+	}
+
+	/**
+	 * Run the code on a frame holding the values of the free variables.
+	 * */
+	private double execute(double[] stack, double[] frame) throws BadInputException {
+		int[]    code      = this.code;
+		double[] constants = this.constants;
+		int sp = -1;
+		int pc = 0;
+
+		while (pc < code.length) {
+			switch (code[pc++]) {
+				case CONST:
+					stack[++sp] = constants[code[pc++]];
+					break;
+
+				case LOAD:
+					stack[++sp] = frame[code[pc++]];
+					break;
+
+				case STORE:
+					frame[code[pc++]] = stack[sp--];
+					break;
+
+				case TEE:
+					frame[code[pc++]] = stack[sp];
+					break;
+
+				case ADD:
+					sp--;
+					stack[sp] = stack[sp] + stack[sp + 1];
+					break;
+
+				case SUB:
+					sp--;
+					stack[sp] = stack[sp] - stack[sp + 1];
+					break;
+
+				case MUL:
+					sp--;
+					stack[sp] = stack[sp] * stack[sp + 1];
+					break;
+
+				case DIV:
+					sp--;
+					stack[sp] = stack[sp] / stack[sp + 1];
+					break;
+
+				default:
+					throw new BadInputException(Calculator.UNREACHABLE_CODE_REACHED);
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Evaluate a program built for the long engine.
+	 * @param bindings values of the free variables; they must be in int range
+	 * @return the result
+	 * @throws BadInputException if a free variable has no value or is out of int range, on overflow, or on division by zero
+	 * */
+	long runExact(Map<String, ? extends Number> bindings) throws BadInputException {
+		Scratch scratch = scratch();
+		long[] frame = scratch.longFrame;
+
+		for (int i = 0; i < names.length; i++) {
+			Number value = bindings.get(names[i]);
+			if (value == null)
+				throw nameError(Calculator.UNDEFINED_VARIABLE + ": " + names[i], i);
+			frame[numLocals + i] = checkInt(value.longValue(), i);
+		}
+
+		return executeExact(scratch.longStack, frame);
+	}
+
+	/**
+	 * Evaluate a program built for the long engine.
+	 * @param values values of the free variables, in the order of {@link #names}; they are truncated and must be in int range
+	 * @return the result
+	 * @throws BadInputException if a value is out of int range, on overflow, or on division by zero
+	 * */
+	long runExact(double[] values) throws BadInputException {
+		checkValues(values);
+
+		Scratch scratch = scratch();
+		long[] frame = scratch.longFrame;
+		for (int i = 0; i < names.length; i++)
+			frame[numLocals + i] = checkInt((long) values[i], i);
+
+		return executeExact(scratch.longStack, frame);
+	}
+
+	/**
+	 * The ranges the checks were left out for assume int values.
+	 * @param v value of free variable i
+	 * @return v
+	 * @throws BadInputException if v is out of int range
+	 * */
+	long checkInt(long v, int i) throws BadInputException {
+		if (v != (int) v)
+			throw nameError(Calculator.INTEGER_OVERFLOW + ": " + names[i] + " = " + v, i);
+		return v;
+	}
+
+	/**
+	 * Run the code of the long engine on a frame holding the values of the free variables.
+	 * */
+	private long executeExact(long[] stack, long[] frame) throws BadInputException {
+		int[]    code      = this.code;
+		double[] constants = this.constants;
+		int sp = -1;
+		int pc = 0;
+
+		try {
+			while (pc < code.length) {
+				switch (code[pc++]) {
+					case CONST:
+						stack[++sp] = (long) constants[code[pc++]];
+						break;
+
+					case LOAD:
+						stack[++sp] = frame[code[pc++]];
+						break;
+
+					case STORE:
+						frame[code[pc++]] = stack[sp--];
+						break;
+
+					case TEE:
+						frame[code[pc++]] = stack[sp];
+						break;
+
+					case ADD:
+						sp--;
+						stack[sp] = stack[sp] + stack[sp + 1];
+						break;
+
+					case SUB:
+						sp--;
+						stack[sp] = stack[sp] - stack[sp + 1];
+						break;
+
+					case MUL:
+						sp--;
+						stack[sp] = stack[sp] * stack[sp + 1];
+						break;
+
+					case DIV:
+						sp--;
+						stack[sp] = stack[sp] / stack[sp + 1];
+						break;
+
+					case ADD_EXACT:
+						sp--;
+						stack[sp] = Math.addExact(stack[sp], stack[sp + 1]);
+						break;
+
+					case SUB_EXACT:
+						sp--;
+						stack[sp] = Math.subtractExact(stack[sp], stack[sp + 1]);
+						break;
+
+					case MUL_EXACT:
+						sp--;
+						stack[sp] = Math.multiplyExact(stack[sp], stack[sp + 1]);
+						break;
+
+					case DIV_EXACT: {
+						sp--;
+						long b = stack[sp + 1];
+						if (b == 0)
+							throw fault(Calculator.DIVISION_BY_ZERO, pc - 1);
+						if (b == -1 && stack[sp] == Long.MIN_VALUE)
+							throw new ArithmeticException();
+						stack[sp] = stack[sp] / b;
+						break;
+					}
+
+					default:
+						throw new BadInputException(Calculator.UNREACHABLE_CODE_REACHED);
+				}
+			}
+		}
+		catch (ArithmeticException ex) {
+			// pc is past the failed operation, which has no operand:
+			throw fault(Calculator.INTEGER_OVERFLOW, pc - 1);
+		}
+
+		return stack[0];
+	}
+
+
+	/**
+	 * Lower a parsed token tree.
+	 * @param root root of the tree
+	 * @return the program
+	 * @throws BadInputException if a let does not start with a variable
+	 * */
+	static Program compile(Node root) throws BadInputException {
+		return compile(root, false, Calculator.Engine.DOUBLE);
+	}
+
+	/**
+	 * Lower a parsed token tree or DAG.
+	 * @param root root of the tree
+	 * @param shared whether some nodes have more than one parent; each of them is then computed once
+	 * @param engine arithmetic of the program
+	 * @return the program
+	 * @throws BadInputException if a let does not start with a variable
+	 * */
+	static Program compile(Node root, boolean shared, Calculator.Engine engine) throws BadInputException {
+		Builder builder = new Builder(engine == Calculator.Engine.LONG);
+		if (shared)
+			builder.findShared(root);
+		builder.emit(root);
+		return builder.build(root);
+	}
+
+	/**
+	 * Emits code for a tree in post order.
+	 * */
+	private static final class Builder {
+
+		/**
+		 * Ranges within this bound are far enough from the long range that computing them in double can not hide an overflow.
+		 * */
+		private static final double SAFE = 0x1p62;
+
+		/**
+		 * bound of the range of a value that is only known to be a long
+		 * */
+		private static final double UNBOUNDED = 0x1p63;
+
+		/**
+		 * whether to build for the long engine, with range analysis
+		 * */
+		private final boolean exact;
+
+		/**
+		 * long engine: lower and upper bound of the values on the operand stack, by position
+		 * */
+		private double[] low  = new double[16];
+		private double[] high = new double[16];
+
+		/**
+		 * long engine: lower and upper bound of the values in the let and temporary slots
+		 * */
+		private double[] slotLow  = new double[16];
+		private double[] slotHigh = new double[16];
+
+		private int[] code = new int[32];
+
+		private int length;
+
+		private final List<Double> constants = new ArrayList<>();
+
+		private final Map<Double, Integer> constantIndex = new HashMap<>();
+
+		/**
+		 * names of the free variables in order of first use
+		 * */
+		private final List<String> names = new ArrayList<>();
+
+		private final Map<String, Integer> freeIndex = new HashMap<>();
+
+		/**
+		 * token index and offset of the first use of each free variable
+		 * */
+		private int[] namePositions = new int[8];
+
+		/**
+		 * pc, token index and offset of each operation that can fail
+		 * */
+		private int[] faultPositions = new int[12];
+
+		private int numFaults;
+
+		/**
+		 * number of let slots used
+		 * */
+		private int numLocals;
+
+		/**
+		 * For a DAG: operations with more than one parent, mapped to their temporary slot once computed, -1 before. Null for a tree.
+		 * */
+		private Map<Node, Integer> temps;
+
+		/**
+		 * first temporary slot, after the let slots
+		 * */
+		private int firstTemp;
+
+		/**
+		 * number of temporary slots used
+		 * */
+		private int numTemps;
+
+		private int depth;
+
+		private int maxStack;
+
+		Builder(boolean exact) {
+			this.exact = exact;
+		}
+
+		/**
+		 * Find the operations with more than one parent and the let slots used, before code for a DAG is emitted.
+		 * */
+		private void findShared(Node root) {
+			temps = new IdentityHashMap<>();
+			Map<Node, Boolean> seen = new IdentityHashMap<>();
+
+			Node[] pending = new Node[16];
+			int top = 0;
+			pending[0] = root;
+
+			while (top >= 0) {
+				Node node = pending[top--];
+				List<Node> children = node.getChildren();
+
+				// leaves are cheap to compute again:
+				if (children == null)
+					continue;
+
+				if (seen.put(node, Boolean.TRUE) != null) {
+					temps.put(node, -1);
+					continue;
+				}
+
+				// operands of arithmetic; value and body of let:
+				int first = 0;
+				if (Calculator.OP_LET.equals(node.getOpName())) {
+					firstTemp = Math.max(firstTemp, children.get(0).getSlot() + 1);
+					first = 1;
+				}
+
+				for (int i = children.size() - 1; i >= first; i--) {
+					if (++top == pending.length)
+						pending = Arrays.copyOf(pending, top * 2);
+					pending[top] = children.get(i);
+				}
+			}
+		}
+
+		/**
+		 * After the code of node: keep its value in a temporary slot if it is shared.
+		 * */
+		private void computed(Node node) {
+			if (temps == null || !temps.containsKey(node))
+				return;
+
+			int temp = firstTemp + numTemps++;
+			temps.put(node, temp);
+			op(TEE, temp);
+			stored(temp);
+		}
+
+		/**
+		 * Emit code for the tree rooted at n. The post-order traversal keeps pending nodes on an explicit stack,
+		 * so the nesting depth is only limited by the heap.
+		 * */
+		private void emit(Node n) throws BadInputException {
+			// nodes being visited and the index of the child to visit next:
+			Node[] nodes = new Node[16];
+			int[]  next  = new int[16];
+			int top = 0;
+			nodes[0] = n;
+
+			while (top >= 0) {
+				Node node = nodes[top];
+				String opName = node.getOpName();
+				List<Node> children = node.getChildren();
+				int index = next[top];
+
+				// child to visit next, if any:
+				Node child = null;
+
+				// a shared operation computed already:
+				if (temps != null && index == 0) {
+					Integer temp = temps.get(node);
+					if (temp != null && temp >= 0) {
+						op(LOAD, temp);
+						push(temp);
+						top--;
+						continue;
+					}
+				}
+
+				switch (opName) {
+					case Calculator.OP_INT:
+						op(CONST, constant(node.getValue()));
+						push(node.getValue(), node.getValue());
+						top--;
+						break;
+
+					case Calculator.OP_VAR:
+						op(LOAD, slot(node));
+						push(node.getSlot());
+						top--;
+						break;
+
+					case Calculator.OP_LET: {
+						Node var = children.get(0);
+
+						if (index == 0) {
+							if (!var.getOpName().equals(Calculator.OP_VAR))
+								throw new BadInputException(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE, var.getTokenIndex(), var.getOffset());
+
+							// value of the variable:
+							child = children.get(1);
+							next[top] = 2;
+						}
+						else if (index == 2) {
+							op(STORE, slot(var));
+							stored(var.getSlot());
+							depth--;
+
+							// body:
+							child = children.get(2);
+							next[top] = 3;
+						}
+						else {
+							computed(node);
+							top--;
+						}
+						break;
+					}
+
+					default:
+						if (index < 2) {
+							child = children.get(index);
+							next[top] = index + 1;
+						}
+						else {
+							int opcode = exact ? exactArithmetic(opName) : arithmetic(opName);
+							if (opcode >= ADD_EXACT)
+								fallible(length, node);
+							op(opcode);
+							depth--;
+							computed(node);
+							top--;
+						}
+						break;
+				}
+
+				if (child != null) {
+					if (++top == nodes.length) {
+						nodes = Arrays.copyOf(nodes, top * 2);
+						next  = Arrays.copyOf(next, top * 2);
+					}
+					nodes[top] = child;
+					next[top]  = 0;
+				}
+			}
+		}
+
+		private static int arithmetic(String opName) {
+			switch (opName) {
+				case Calculator.OP_ADD: return ADD;
+				case Calculator.OP_SUB: return SUB;
+				case Calculator.OP_MUL: return MUL;
+				default:                return DIV;
+			}
+		}
+
+		/**
+		 * Choose the long engine opcode of an operation on the two values on top of the stack, and replace their ranges by the range of the result.
+		 * The operation is checked unless its range proves that it can not overflow or divide by zero.
+		 * */
+		private int exactArithmetic(String opName) {
+			double aLow  = low[depth - 2];
+			double aHigh = high[depth - 2];
+			double bLow  = low[depth - 1];
+			double bHigh = high[depth - 1];
+			double resultLow;
+			double resultHigh;
+			int unchecked;
+			int checked;
+
+			switch (opName) {
+				case Calculator.OP_ADD:
+					resultLow  = aLow + bLow;
+					resultHigh = aHigh + bHigh;
+					unchecked  = ADD;
+					checked    = ADD_EXACT;
+					break;
+
+				case Calculator.OP_SUB:
+					resultLow  = aLow - bHigh;
+					resultHigh = aHigh - bLow;
+					unchecked  = SUB;
+					checked    = SUB_EXACT;
+					break;
+
+				case Calculator.OP_MUL: {
+					double p1 = aLow * bLow;
+					double p2 = aLow * bHigh;
+					double p3 = aHigh * bLow;
+					double p4 = aHigh * bHigh;
+					resultLow  = Math.min(Math.min(p1, p2), Math.min(p3, p4));
+					resultHigh = Math.max(Math.max(p1, p2), Math.max(p3, p4));
+					unchecked  = MUL;
+					checked    = MUL_EXACT;
+					break;
+				}
+
+				default: {
+					// the quotient is not larger than the dividend:
+					double bound = Math.max(-aLow, aHigh);
+					low[depth - 2]  = -bound;
+					high[depth - 2] = bound;
+
+					// a zero divisor or Long.MIN_VALUE / -1 must be checked:
+					boolean nonZero = bLow > 0 || bHigh < 0;
+					boolean noOverflow = aLow >= -SAFE || bLow > -1 || bHigh < -1;
+					return nonZero && noOverflow ? DIV : DIV_EXACT;
+				}
+			}
+
+			boolean safe = resultLow >= -SAFE && resultHigh <= SAFE;
+			low[depth - 2]  = safe ? resultLow : -UNBOUNDED;
+			high[depth - 2] = safe ? resultHigh : UNBOUNDED;
+			return safe ? unchecked : checked;
+		}
+
+		private void push() {
+			if (++depth > maxStack)
+				maxStack = depth;
+		}
+
+		/**
+		 * Push a value in the range [lowBound, highBound].
+		 * */
+		private void push(double lowBound, double highBound) {
+			push();
+			if (!exact)
+				return;
+
+			if (depth > low.length) {
+				low  = Arrays.copyOf(low, depth * 2);
+				high = Arrays.copyOf(high, depth * 2);
+			}
+			low[depth - 1]  = lowBound;
+			high[depth - 1] = highBound;
+		}
+
+		/**
+		 * Push the value of a let or temporary slot, or of a free variable (slot &lt; 0), which is an int.
+		 * */
+		private void push(int slot) {
+			if (slot < 0)
+				push(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			else if (exact)
+				push(slotLow[slot], slotHigh[slot]);
+			else
+				push();
+		}
+
+		/**
+		 * The value on top of the stack is stored in a let or temporary slot; keep its range.
+		 * */
+		private void stored(int slot) {
+			if (!exact)
+				return;
+
+			if (slot >= slotLow.length) {
+				slotLow  = Arrays.copyOf(slotLow, Math.max(slot + 1, slotLow.length * 2));
+				slotHigh = Arrays.copyOf(slotHigh, slotLow.length);
+			}
+			slotLow[slot]  = low[depth - 1];
+			slotHigh[slot] = high[depth - 1];
+		}
+
+		private int constant(double value) {
+			Integer index = constantIndex.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantIndex.put(value, index);
+			}
+			return index;
+		}
+
+		/**
+		 * @param var a variable node
+		 * @return its let slot, or ~i if it is the i-th free variable of this program
+		 * */
+		private int slot(Node var) {
+			int slot = var.getSlot();
+			if (slot >= 0) {
+				if (slot >= numLocals)
+					numLocals = slot + 1;
+				return slot;
+			}
+
+			// free variables are numbered again, in case the tree lost some of them:
+			String name = var.getVarName();
+			Integer index = freeIndex.get(name);
+			if (index == null) {
+				index = names.size();
+				names.add(name);
+				freeIndex.put(name, index);
+
+				if (2 * index + 2 > namePositions.length)
+					namePositions = Arrays.copyOf(namePositions, namePositions.length * 2);
+				namePositions[2 * index]     = var.getTokenIndex();
+				namePositions[2 * index + 1] = var.getOffset();
+			}
+			return ~index;
+		}
+
+		/**
+		 * Keep the position of an operation that can fail at run time.
+		 * @param pc the operation
+		 * @param node its node
+		 * */
+		private void fallible(int pc, Node node) {
+			if (3 * numFaults + 3 > faultPositions.length)
+				faultPositions = Arrays.copyOf(faultPositions, faultPositions.length * 2);
+			faultPositions[3 * numFaults]     = pc;
+			faultPositions[3 * numFaults + 1] = node.getTokenIndex();
+			faultPositions[3 * numFaults + 2] = node.getOffset();
+			numFaults++;
+		}
+
+		private void op(int opcode) {
+			if (length == code.length)
+				code = Arrays.copyOf(code, length * 2);
+			code[length++] = opcode;
+		}
+
+		private void op(int opcode, int operand) {
+			op(opcode);
+			op(operand);
+		}
+
+		private Program build(Node root) {
+			double[] pool = new double[constants.size()];
+			for (int i = 0; i < pool.length; i++)
+				pool[i] = constants.get(i);
+
+			// temporaries follow the let slots:
+			if (numTemps > 0)
+				numLocals = firstTemp + numTemps;
+
+			// free variables follow the let and temporary slots:
+			for (int pc = 0; pc < length; pc++) {
+				int opcode = code[pc];
+				if (opcode == LOAD && code[pc + 1] < 0)
+					code[pc + 1] = numLocals + ~code[pc + 1];
+				if (opcode == CONST || opcode == LOAD || opcode == STORE || opcode == TEE)
+					pc++;
+			}
+
+			// the long result may not fit in int:
+			if (exact)
+				fallible(length, root);
+
+			return new Program(Arrays.copyOf(code, length), pool, names.toArray(new String[0]), numLocals, maxStack, exact,
+					Arrays.copyOf(namePositions, 2 * names.size()), Arrays.copyOf(faultPositions, 3 * numFaults));
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon that runs a {@link ReplSession} for each connection to a loopback TCP port, e.g., for scripts that would otherwise start a JVM per expression.
+ * Only local processes can connect. Every connection has its own session variables; all share one calculator, so its cache
+ * and the JIT-compiled code stay warm between connections.
+ */
+class ReplServer {
+
+	private final Calculator calc;
+
+	private ServerSocket socket;
+
+	private ExecutorService executor;
+
+	private Thread acceptor;
+
+	/**
+	 * connections of the sessions being served
+	 * */
+	private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	/**
+	 * @param calc calculator shared by all sessions; should have a cache enabled
+	 * */
+	ReplServer(Calculator calc) {
+		this.calc = calc;
+	}
+
+	/**
+	 * Start accepting connections on a background thread.
+	 * @param port loopback port to listen on; 0 picks a free port
+	 * @param threads size of the pool if the JDK has no virtual threads; also the number of sessions served at once.
+	 * Connections beyond those the pool can queue get an error line and are closed.
+	 * @throws IOException if the port can not be bound
+	 * */
+	synchronized void start(int port, int threads) throws IOException {
+		if (socket != null)
+			throw new IllegalStateException("Server already started");
+
+		socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		executor = EvaluationServer.newExecutor(threads);
+
+		final ServerSocket listening = socket;
+		final ExecutorService sessions = executor;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(listening, sessions);
+			}
+		}, "calculator-repl-acceptor");
+		acceptor.start();
+
+		AppLogger.info("Sessions served on %s", socket.getLocalSocketAddress());
+	}
+
+	/**
+	 * @return the port the server listens on
+	 * */
+	synchronized int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Stop accepting connections, wait for open sessions up to delaySeconds, and flush the log.
+	 * @param delaySeconds how long to wait for open sessions
+	 * */
+	synchronized void stop(int delaySeconds) {
+		if (socket == null)
+			return;
+
+		try {
+			socket.close();
+		}
+		catch (IOException ex) {
+			AppLogger.error("Closing the server socket failed: %s", ex.getMessage());
+		}
+
+		executor.shutdown();
+		try {
+			acceptor.join();
+			if (!executor.awaitTermination(delaySeconds, TimeUnit.SECONDS))
+				closeConnections();
+		}
+		catch (InterruptedException ex) {
+			closeConnections();
+			Thread.currentThread().interrupt();
+		}
+
+		socket = null;
+		AppLogger.info("Session server stopped");
+		AppLogger.closeHandlers();
+	}
+
+	/**
+	 * End the sessions still open; their threads are blocked reading, which interrupting does not end.
+	 * */
+	private void closeConnections() {
+		for (Socket connection : connections) {
+			try {
+				connection.close();
+			}
+			catch (IOException ex) {
+				// closing anyway
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Body of the acceptor thread: hand each connection to the executor until the socket is closed.
+	 * */
+	private void accept(ServerSocket listening, ExecutorService sessions) {
+		while (!listening.isClosed()) {
+			final Socket connection;
+			try {
+				connection = listening.accept();
+			}
+			catch (SocketException ex) {
+				// closed by stop()
+				break;
+			}
+			catch (IOException ex) {
+				AppLogger.error("Accepting a connection failed: %s", ex.getMessage());
+				continue;
+			}
+
+			try {
+				sessions.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(connection);
+					}
+				});
+			}
+			catch (RejectedExecutionException ex) {
+				refuse(connection);
+			}
+		}
+	}
+
+	/**
+	 * Tell a connection that no session can be served now, and close it. The line is short, so writing it does not block.
+	 * */
+	private void refuse(Socket connection) {
+		try (Socket open = connection) {
+			Writer out = new OutputStreamWriter(open.getOutputStream(), StandardCharsets.UTF_8);
+			out.write(BatchEvaluator.ERROR_PREFIX + "Too many sessions\n");
+			out.flush();
+		}
+		catch (IOException ex) {
+			// the client went away
+		}
+	}
+
+	/**
+	 * Run a session on a connection and close it.
+	 * */
+	private void serve(Socket connection) {
+		connections.add(connection);
+
+		try (Socket open = connection) {
+			open.setTcpNoDelay(true);
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(open.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(open.getOutputStream(), StandardCharsets.UTF_8));
+
+			long errors = new ReplSession(calc).run(in, out, false);
+			AppLogger.debug("Session of %s ended, %d errors", open.getRemoteSocketAddress(), errors);
+		}
+		catch (IOException ex) {
+			AppLogger.error("Session failed: %s", ex.getMessage());
+		}
+		finally {
+			connections.remove(connection);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Interactive session: evaluates one line at a time and keeps variables defined by earlier lines.
+ * A line is one of:
+ * <ul>
+ * <li>an expression, e.g. {@code add(x, 1)}: prints its value. Session variables are its free variables; a let inside the expression shadows them.</li>
+ * <li>{@code name = expression}: evaluates the expression and keeps its value as the session variable name; prints {@code name = value}.</li>
+ * <li>{@value #VARS_COMMAND}: prints each session variable as {@code name = value}, then an empty line.</li>
+ * <li>{@value #CLEAR_COMMAND}: forgets all session variables.</li>
+ * <li>{@value #QUIT_COMMAND}: ends the session.</li>
+ * </ul>
+ * Errors are printed as in batch mode and do not end the session. Expressions are compiled by the session's calculator,
+ * so with its cache enabled, a line seen before (by any session sharing the calculator) is not parsed again.
+ */
+class ReplSession {
+
+	static final String VARS_COMMAND  = ":vars";
+	static final String CLEAR_COMMAND = ":clear";
+	static final String QUIT_COMMAND  = ":quit";
+
+	/**
+	 * printed before reading a line in interactive use
+	 * */
+	static final String PROMPT = "> ";
+
+	private final Calculator calc;
+
+	/**
+	 * session variables, by name
+	 * */
+	private final Map<String, Integer> variables = new TreeMap<>();
+
+	/**
+	 * @param calc calculator of the session; may be shared with other sessions
+	 * */
+	ReplSession(Calculator calc) {
+		this.calc = calc;
+	}
+
+	/**
+	 * @return the session variables, by name
+	 * */
+	Map<String, Integer> getVariables() {
+		return Collections.unmodifiableMap(variables);
+	}
+
+	/**
+	 * Read and answer lines until the end of in or {@value #QUIT_COMMAND}. The output is flushed after each answer.
+	 * @param in lines of the session
+	 * @param out answers
+	 * @param prompt whether to print {@value #PROMPT} before each line
+	 * @return number of lines that failed
+	 * @throws IOException if reading or writing fails
+	 * */
+	long run(BufferedReader in, Writer out, boolean prompt) throws IOException {
+		long errors = 0;
+
+		while (true) {
+			if (prompt) {
+				out.write(PROMPT);
+				out.flush();
+			}
+
+			String line = in.readLine();
+			if (line == null || line.trim().equals(QUIT_COMMAND))
+				break;
+
+			String answer = this.evaluateLine(line);
+			if (answer.startsWith(BatchEvaluator.ERROR_PREFIX))
+				errors++;
+
+			out.write(answer);
+			out.write('\n');
+			out.flush();
+		}
+
+		return errors;
+	}
+
+	/**
+	 * Answer one line other than {@value #QUIT_COMMAND}.
+	 * @param line the line
+	 * @return the answer, without a line break; empty for an empty line
+	 * */
+	String evaluateLine(String line) {
+		String trimmed = line.trim();
+
+		if (trimmed.isEmpty())
+			return "";
+
+		if (trimmed.equals(VARS_COMMAND)) {
+			StringBuilder answer = new StringBuilder();
+			for (Map.Entry<String, Integer> variable : variables.entrySet())
+				answer.append(variable.getKey()).append(" = ").append(variable.getValue()).append('\n');
+			return answer.toString();
+		}
+
+		if (trimmed.equals(CLEAR_COMMAND)) {
+			variables.clear();
+			return "";
+		}
+
+		try {
+			int assign = trimmed.indexOf('=');
+			if (assign < 0)
+				return Integer.toString(calc.compile(trimmed).evaluate(variables));
+
+			String name = trimmed.substring(0, assign).trim();
+			if (Lexer.typeOf(name) != Lexer.IDENT)
+				throw new BadInputException(Calculator.INVALID_INPUT + " Not a variable name: " + name);
+
+			int value = calc.compile(trimmed.substring(assign + 1)).evaluate(variables);
+			variables.put(name, value);
+			return name + " = " + value;
+		}
+		catch (BadInputException ex) {
+			if (AppLogger.isErrorEnabled())
+				AppLogger.error("Session: %s", ex.getMessage());
+			return BatchEvaluator.ERROR_PREFIX + ex.getMessage();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Evaluates an expression in one pass over its tokens, without building a token tree.
+ * The prefix notation says what each token is as soon as it is read: an operator opens an operation, and a complete operand
+ * is folded into the innermost open operation right away. Only the open operations are kept, with their first operand and position,
+ * so memory grows with the nesting depth and the number of let variables in scope, not with the length of the expression.
+ * <p>
+ * Results and errors are those of the token tree: parse errors are thrown where they are found; an undefined variable
+ * and, with the long engine, an overflow or division by zero are kept until the whole expression is parsed, as the tree
+ * is complete before it is evaluated.
+ */
+final class StreamEvaluator {
+
+	private final Lexer tokens;
+
+	/**
+	 * whether to compute with the long engine
+	 * */
+	private final boolean exact;
+
+	/* open operations by depth: */
+	/**
+	 * operator token type
+	 * */
+	private int[] ops = new int[16];
+
+	/**
+	 * number of complete operands
+	 * */
+	private int[] operands = new int[16];
+
+	/**
+	 * value of the first operand; for a let, the value of its variable
+	 * */
+	private double[] values = new double[16];
+
+	private long[] exactValues = new long[16];
+
+	/**
+	 * position of the operator
+	 * */
+	private int[] tokenIndexes = new int[16];
+
+	private int[] offsets = new int[16];
+
+	/**
+	 * for a let: its variable, and the depth of the let its variable shadows (-1 if none)
+	 * */
+	private String[] letNames = new String[16];
+
+	private int[] shadowed = new int[16];
+
+	/**
+	 * depth of the innermost let defining each variable in scope
+	 * */
+	private final Map<String, Integer> scope = new HashMap<>();
+
+	/**
+	 * first undefined or, with the long engine, out of range free variable; thrown once the expression is parsed
+	 * */
+	private BadInputException nameError;
+
+	/**
+	 * first overflow or division by zero of the long engine; thrown once the expression is parsed
+	 * */
+	private BadInputException fault;
+
+	/**
+	 * @param tokens the expression, positioned before the first token
+	 * @param engine how to compute
+	 * */
+	StreamEvaluator(Lexer tokens, Calculator.Engine engine) {
+		this.tokens = tokens;
+		this.exact  = engine == Calculator.Engine.LONG;
+	}
+
+	/**
+	 * Read and evaluate the expression. Call once.
+	 * @param bindings values of the free variables, i.e., variables not defined by an enclosing let
+	 * @return the result, converted to int
+	 * @throws BadInputException as {@link CompiledExpression#evaluate(Map)}
+	 * */
+	int evaluate(Map<String, ? extends Number> bindings) throws BadInputException {
+		int depth = 0;
+		double value;
+		long exactValue;
+
+		// position of the operand completed last:
+		int operandIndex;
+		int operandOffset;
+
+		tokens.next();
+
+		while (true) {
+			int type = tokens.type();
+			operandIndex  = tokens.tokenIndex();
+			operandOffset = tokens.offset();
+			value      = 0;
+			exactValue = 0;
+
+			switch (type) {
+				case Lexer.EOF:
+					throw this.error(Calculator.BAD_EXPRESSION);
+
+				case Lexer.LET:
+				case Lexer.ADD:
+				case Lexer.SUB:
+				case Lexer.MUL:
+				case Lexer.DIV:
+					if (depth == ops.length)
+						this.grow();
+					ops[depth]          = type;
+					operands[depth]     = 0;
+					tokenIndexes[depth] = operandIndex;
+					offsets[depth]      = operandOffset;
+					depth++;
+
+					tokens.next();
+					continue;
+
+				case Lexer.IDENT: {
+					// a variable needs a parent:
+					if (depth == 0)
+						throw this.error(Calculator.WRONG_VARIABLE_POSITION);
+
+					String name = tokens.identifier();
+					int top = depth - 1;
+
+					// the variable of a let:
+					if (ops[top] == Lexer.LET && operands[top] == 0) {
+						letNames[top] = name;
+						operands[top] = 1;
+						tokens.next();
+						continue;
+					}
+
+					Integer let = scope.get(name);
+					if (let != null) {
+						value      = values[let];
+						exactValue = exactValues[let];
+					}
+					else {
+						Number bound = bindings.get(name);
+						if (bound == null) {
+							if (nameError == null)
+								nameError = this.error(Calculator.UNDEFINED_VARIABLE + ": " + name);
+						}
+						else if (exact) {
+							exactValue = bound.longValue();
+							if (exactValue != (int) exactValue && nameError == null)
+								nameError = this.error(Calculator.INTEGER_OVERFLOW + ": " + name + " = " + exactValue);
+						}
+						else {
+							value = bound.doubleValue();
+						}
+					}
+					break;
+				}
+
+				case Lexer.INT:
+					value      = tokens.intValue();
+					exactValue = tokens.intValue();
+					break;
+
+				// integer out of the int range:
+				case Lexer.OVERFLOW:
+					throw this.error(Calculator.INTEGER_OVERFLOW + ": " + tokens.text());
+
+				// others:
+				default:
+					throw this.error(Calculator.UNKNOWN_LITERAL_TYPE);
+			}
+
+			tokens.next();
+
+			// fold the complete operand into the open operations it completes:
+			while (depth > 0) {
+				int top = depth - 1;
+
+				if (ops[top] == Lexer.LET) {
+					if (operands[top] == 0)
+						throw new BadInputException(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE, operandIndex, operandOffset);
+
+					if (operands[top] == 1) {
+						// the value of the variable; the variable is in scope in the body only:
+						values[top]      = value;
+						exactValues[top] = exactValue;
+						Integer previous = scope.put(letNames[top], top);
+						shadowed[top] = previous == null ? -1 : previous;
+						operands[top] = 2;
+						break;
+					}
+
+					// the body is the value of the let:
+					if (shadowed[top] < 0)
+						scope.remove(letNames[top]);
+					else
+						scope.put(letNames[top], shadowed[top]);
+					letNames[top] = null;
+				}
+				else {
+					if (operands[top] == 0) {
+						values[top]      = value;
+						exactValues[top] = exactValue;
+						operands[top] = 1;
+						break;
+					}
+
+					if (exact)
+						exactValue = this.compute(top, exactValues[top], exactValue);
+					else
+						value = compute(ops[top], values[top], value);
+				}
+
+				operandIndex  = tokenIndexes[top];
+				operandOffset = offsets[top];
+				depth--;
+			}
+
+			if (depth == 0)
+				break;
+		}
+
+		if (tokens.type() != Lexer.EOF)
+			throw this.error(Calculator.BAD_EXPRESSION);
+
+		if (nameError != null)
+			throw nameError;
+		if (fault != null)
+			throw fault;
+
+		if (!exact)
+			return (int) value;
+
+		// as the long engine, the result must fit in an int; the root has the first token:
+		if (exactValue != (int) exactValue)
+			throw new BadInputException(Calculator.INTEGER_OVERFLOW + ": " + exactValue, operandIndex, operandOffset);
+		return (int) exactValue;
+	}
+
+	private static double compute(int op, double a, double b) {
+		switch (op) {
+			case Lexer.ADD: return a + b;
+			case Lexer.SUB: return a - b;
+			case Lexer.MUL: return a * b;
+			default:        return a / b;
+		}
+	}
+
+	/**
+	 * Compute the operation at depth top with the long engine, keeping the first fault.
+	 * @return the result, or 0 after a fault
+	 * */
+	private long compute(int top, long a, long b) {
+		try {
+			switch (ops[top]) {
+				case Lexer.ADD: return Math.addExact(a, b);
+				case Lexer.SUB: return Math.subtractExact(a, b);
+				case Lexer.MUL: return Math.multiplyExact(a, b);
+				default:
+					if (b == 0) {
+						this.fail(Calculator.DIVISION_BY_ZERO, top);
+						return 0;
+					}
+					if (b == -1 && a == Long.MIN_VALUE)
+						throw new ArithmeticException();
+					return a / b;
+			}
+		}
+		catch (ArithmeticException ex) {
+			this.fail(Calculator.INTEGER_OVERFLOW, top);
+			return 0;
+		}
+	}
+
+	private void fail(String message, int top) {
+		if (fault == null)
+			fault = new BadInputException(message, tokenIndexes[top], offsets[top]);
+	}
+
+	/**
+	 * @param message the error message
+	 * @return an exception at the position of the current token
+	 * */
+	private BadInputException error(String message) {
+		return new BadInputException(message, tokens.tokenIndex(), tokens.offset());
+	}
+
+	/**
+	 * Make room for deeper nesting.
+	 * */
+	private void grow() {
+		int size = ops.length * 2;
+		ops          = Arrays.copyOf(ops, size);
+		operands     = Arrays.copyOf(operands, size);
+		values       = Arrays.copyOf(values, size);
+		exactValues  = Arrays.copyOf(exactValues, size);
+		tokenIndexes = Arrays.copyOf(tokenIndexes, size);
+		offsets      = Arrays.copyOf(offsets, size);
+		letNames     = Arrays.copyOf(letNames, size);
+		shadowed     = Arrays.copyOf(shadowed, size);
+	}
+}
@@ -0,0 +1,159 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test AppLogger class
+ * */
+public class AppLoggerTest {
+
+	/**
+	 * Collects published records.
+	 * */
+	private static class RecordingHandler extends Handler {
+		final List<LogRecord> records = new ArrayList<>();
+
+		@Override
+		public void publish(LogRecord record) {
+			records.add(record);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private RecordingHandler recorder;
+
+	@Before
+	public void setUp() {
+		AppLogger.LogToConsoleOnly(true);
+		recorder = new RecordingHandler();
+		AppLogger.getAppLogger().addHandler(recorder);
+	}
+
+	@After
+	public void tearDown() {
+		AppLogger.getAppLogger().removeHandler(recorder);
+		AppLogger.setLevel("info");
+		AppLogger.closeHandlers();
+		AppLogger.LogToConsoleOnly(false);
+	}
+
+	/**
+	 * Handlers are created once, not per log call.
+	 * */
+	@Test
+	public void testHandlersAreReused() {
+		Logger logger = AppLogger.getAppLogger();
+		Handler[] handlers = logger.getHandlers();
+
+		AppLogger.info("first");
+		AppLogger.error("second");
+
+		assertSame(logger, AppLogger.getAppLogger());
+		assertSame(handlers[0], AppLogger.getAppLogger().getHandlers()[0]);
+		assertSame(handlers[0], AppLogger.getAppLogger("some.other.Logger").getHandlers()[0]);
+		assertEquals(2, recorder.records.size());
+	}
+
+	/**
+	 * Closing the handlers makes the next log call open a new one.
+	 * */
+	@Test
+	public void testCloseHandlers() {
+		Handler before = AppLogger.getAppLogger().getHandlers()[0];
+
+		AppLogger.closeHandlers();
+
+		Handler[] after = AppLogger.getAppLogger().getHandlers();
+		assertEquals(1, after.length);
+		assertNotSame(before, after[0]);
+	}
+
+	/**
+	 * Messages below the level are not published.
+	 * */
+	@Test
+	public void testLevel() {
+		AppLogger.setLevel("info");
+		AppLogger.debug("hidden");
+		assertEquals(0, recorder.records.size());
+		assertFalse(AppLogger.isDebugEnabled());
+		assertTrue(AppLogger.isErrorEnabled());
+
+		AppLogger.setLevel("debug");
+		AppLogger.debug("shown");
+		assertEquals(1, recorder.records.size());
+		assertTrue(AppLogger.isDebugEnabled());
+
+		AppLogger.setLevel("off");
+		AppLogger.error("hidden");
+		assertEquals(1, recorder.records.size());
+		assertFalse(AppLogger.isErrorEnabled());
+	}
+
+	/**
+	 * Suppliers and format arguments are not used when the level is disabled.
+	 * */
+	@Test
+	public void testLazyMessages() {
+		final int[] calls = {0};
+		Supplier<String> message = new Supplier<String>() {
+			@Override
+			public String get() {
+				calls[0]++;
+				return "message";
+			}
+		};
+
+		AppLogger.setLevel("info");
+		AppLogger.debug(message);
+		AppLogger.debug("%s", message);
+		assertEquals(0, calls[0]);
+		assertEquals(0, recorder.records.size());
+
+		AppLogger.info(message);
+		assertEquals(1, calls[0]);
+		AppLogger.info("value %d", 42);
+		assertTrue(recorder.records.get(1).getMessage().endsWith("value 42"));
+	}
+
+	/**
+	 * Messages start with the issuer unless issuer info is turned off.
+	 * */
+	@Test
+	public void testIssuerInfo() {
+		try {
+			AppLogger.info("with issuer");
+			String msg = recorder.records.get(0).getMessage();
+			assertTrue(msg, msg.startsWith(AppLoggerTest.class.getName() + ".testIssuerInfo():"));
+
+			AppLogger.setIssuerInfo(false);
+			AppLogger.info("without issuer");
+			assertEquals("without issuer", recorder.records.get(1).getMessage());
+		}
+		finally {
+			AppLogger.setIssuerInfo(true);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+/**
+ * Test AsyncLogHandler class
+ * */
+public class AsyncLogHandlerTest {
+
+	/**
+	 * Writes the message and a newline.
+	 * */
+	private static class LineFormatter extends Formatter {
+		@Override
+		public String format(LogRecord record) {
+			return record.getMessage() + "\n";
+		}
+	}
+
+	/**
+	 * Writer that blocks until released.
+	 * */
+	private static class GatedWriter extends Writer {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final StringWriter out = new StringWriter();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			try {
+				gate.await();
+			}
+			catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			out.write(cbuf, off, len);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Records from several threads are all written, in order per thread, by the time close() returns.
+	 * */
+	@Test
+	public void testCloseWritesEverything() throws InterruptedException {
+		StringWriter out = new StringWriter();
+		final AsyncLogHandler handler = new AsyncLogHandler(out, true, 64, AsyncLogHandler.OverflowPolicy.BLOCK);
+		handler.setFormatter(new LineFormatter());
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++)
+						handler.publish(new LogRecord(Level.INFO, id + ":" + i));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		handler.close();
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(4000, lines.length);
+		assertEquals(0, handler.getDropped());
+
+		int[] next = new int[threads.length];
+		for (String line : lines) {
+			String[] parts = line.split(":");
+			int id = Integer.parseInt(parts[0]);
+			assertEquals(next[id]++, Integer.parseInt(parts[1]));
+		}
+	}
+
+	/**
+	 * With the DROP policy a full buffer drops records instead of blocking.
+	 * */
+	@Test
+	public void testDropWhenFull() {
+		GatedWriter out = new GatedWriter();
+		AsyncLogHandler handler = new AsyncLogHandler(out, true, 4, AsyncLogHandler.OverflowPolicy.DROP);
+		handler.setFormatter(new LineFormatter());
+
+		for (int i = 0; i < 100; i++)
+			handler.publish(new LogRecord(Level.INFO, "record " + i));
+
+		assertTrue(handler.getDropped() > 0);
+
+		out.gate.countDown();
+		handler.close();
+
+		assertEquals(100 - handler.getDropped(), out.out.toString().split("\n").length);
+	}
+
+	/**
+	 * flush() waits for the records published so far.
+	 * */
+	@Test
+	public void testFlush() {
+		StringWriter out = new StringWriter();
+		AsyncLogHandler handler = new AsyncLogHandler(out, true, 16, AsyncLogHandler.OverflowPolicy.BLOCK);
+		handler.setFormatter(new LineFormatter());
+
+		handler.publish(new LogRecord(Level.INFO, "one"));
+		handler.flush();
+		assertEquals("one\n", out.toString());
+
+		handler.close();
+	}
+}
@@ -0,0 +1,108 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test the positions and stack traces of BadInputException
+ * */
+public class BadInputExceptionTest {
+
+	private Calculator calc;
+
+	@Before
+	public void setUp() {
+		calc = new Calculator();
+	}
+
+	/**
+	 * @return the exception thrown by evaluating expr
+	 * */
+	private BadInputException error(String expr) {
+		try {
+			calc.evaluate(expr);
+		}
+		catch (BadInputException ex) {
+			return ex;
+		}
+		fail("No exception for " + expr);
+		return null;
+	}
+
+	private void assertPosition(int tokenIndex, int offset, BadInputException ex) {
+		assertEquals(ex.getMessage(), tokenIndex, ex.getTokenIndex());
+		assertEquals(ex.getMessage(), offset, ex.getOffset());
+	}
+
+	/**
+	 * Parse errors point at the token at fault.
+	 * */
+	@Test
+	public void testParseErrors() {
+		// an operand too many:
+		assertPosition(3, 9, error("add(1, x y)"));
+		// the expression ends too early:
+		assertPosition(2, 5, error("add(1"));
+		// trailing token:
+		assertPosition(3, 10, error("add(1, 2) 3"));
+		// unknown literal:
+		assertPosition(1, 4, error("add(1$, 2)"));
+	}
+
+	/**
+	 * Evaluation errors point at the operation or variable at fault.
+	 * */
+	@Test
+	public void testEvaluationErrors() throws BadInputException {
+		assertPosition(2, 7, error("add(1, x)"));
+		assertPosition(1, 4, error("let(1, 2, 3)"));
+
+		calc.setEngine(Calculator.Engine.LONG);
+		assertPosition(2, 7, error("add(1, div(2, sub(2, 2)))"));
+
+		CompiledExpression expr = calc.compile("add(1, div(x, sub(x, x)))");
+		try {
+			expr.evaluate(Collections.singletonMap("x", 2));
+			fail();
+		}
+		catch (BadInputException ex) {
+			assertEquals(Calculator.DIVISION_BY_ZERO, ex.getMessage());
+			assertPosition(2, 7, ex);
+		}
+
+		try {
+			expr.evaluate(Collections.<String, Integer>emptyMap());
+			fail();
+		}
+		catch (BadInputException ex) {
+			assertPosition(3, 11, ex);
+		}
+	}
+
+	/**
+	 * Stack traces can be turned off.
+	 * */
+	@Test
+	public void testStackTraceCapture() {
+		assertTrue(BadInputException.isStackTraceCapture());
+		assertTrue(error("add(1)").getStackTrace().length > 0);
+
+		BadInputException.setStackTraceCapture(false);
+		try {
+			BadInputException ex = error("add(1)");
+			assertEquals(0, ex.getStackTrace().length);
+			assertEquals(Calculator.BAD_EXPRESSION, ex.getMessage());
+		}
+		finally {
+			BadInputException.setStackTraceCapture(true);
+		}
+	}
+}
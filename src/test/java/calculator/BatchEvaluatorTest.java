@@ -0,0 +1,40 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Test BatchEvaluator class
+ * */
+public class BatchEvaluatorTest {
+
+	/**
+	 * Each input line gives one output line, in order; bad lines give error lines and do not stop the batch.
+	 * */
+	@Test
+	public void testBatch() throws IOException {
+		String input = "add(1, 2)\n"
+				+ "add(1)\n"
+				+ "\n"
+				+ "let(a, 5, add(a, a))\n"
+				+ "add(x, 1)\n"
+				+ "add(1, 2)";
+
+		StringWriter out = new StringWriter();
+		long errors = new BatchEvaluator(new Calculator()).run(new BufferedReader(new StringReader(input)), out);
+
+		assertEquals(3, errors);
+		assertEquals("3\n"
+				+ BatchEvaluator.ERROR_PREFIX + Calculator.BAD_EXPRESSION + "\n"
+				+ BatchEvaluator.ERROR_PREFIX + Calculator.BAD_EXPRESSION + "\n"
+				+ "10\n"
+				+ BatchEvaluator.ERROR_PREFIX + Calculator.UNDEFINED_VARIABLE + ": x\n"
+				+ "3\n", out.toString());
+	}
+}
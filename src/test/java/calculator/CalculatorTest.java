@@ -1,5 +1,6 @@
 package calculator;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 
@@ -35,6 +36,18 @@ public class CalculatorTest {
 		assertEquals("Tokenize should return 0-length array on null", tokens.length, 0);
 	}
 
+	/**
+	 * Test Calculator.tokenize() keeps the tokens of splitting on delimiters, including a leading empty token
+	 */
+	@Test
+	public void testTokenizeDelimiters() {
+		assertArrayEquals(new String[] { "add", "1", "2" }, calc.tokenize("add(1,2)"));
+		assertArrayEquals(new String[] { "", "add", "1", "2" }, calc.tokenize(" add(1,2)"));
+		assertArrayEquals(new String[] { "", "let", "a", "5", "a" }, calc.tokenize("(let(a, 5, a)) \n"));
+		assertArrayEquals(new String[0], calc.tokenize(" ,() "));
+		assertArrayEquals(new String[0], calc.tokenize(""));
+	}
+
 
 
 
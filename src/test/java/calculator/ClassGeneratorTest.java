@@ -0,0 +1,150 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test ClassGenerator class
+ * */
+public class ClassGeneratorTest {
+
+	private static final String[] EXPRESSIONS = {
+		"7",
+		"add(x, 1)",
+		"let(a, mult(x, y), add(a, div(a, add(mult(y, y), 1))))",
+		"sub(mult(x, x), let(b, 3, mult(b, y)))",
+		"add(mult(add(x, y), sub(x, y)), mult(add(x, y), sub(x, y)))",
+		"div(mult(mult(x, y), mult(x, y)), sub(y, 100000))",
+	};
+
+	private static Calculator calculator(Calculator.Engine engine, boolean share, boolean generate) {
+		Calculator calc = new Calculator();
+		calc.setEngine(engine);
+		calc.setSharingEnabled(share);
+		calc.setCodeGenerationEnabled(generate);
+		return calc;
+	}
+
+	/**
+	 * Generated classes compute what the interpreter computes.
+	 * */
+	@Test
+	public void testSameResults() throws BadInputException {
+		Random random = new Random(3);
+
+		for (Calculator.Engine engine : Calculator.Engine.values()) {
+			for (boolean share : new boolean[] {false, true}) {
+				for (String text : EXPRESSIONS) {
+					CompiledExpression generated = calculator(engine, share, true).compile(text);
+					CompiledExpression interpreted = calculator(engine, share, false).compile(text);
+					assertTrue(generated.isGenerated());
+					assertFalse(interpreted.isGenerated());
+
+					List<String> variables = generated.getVariables();
+					Map<String, Number> bindings = new HashMap<>();
+					double[] values = new double[variables.size()];
+
+					for (int row = 0; row < 200; row++) {
+						for (int i = 0; i < values.length; i++) {
+							values[i] = random.nextInt(2001) - 1000;
+							bindings.put(variables.get(i), values[i]);
+						}
+
+						int expected = interpreted.evaluate(bindings);
+						assertEquals(text, expected, generated.evaluate(bindings));
+						assertEquals(text, expected, generated.evaluate(values));
+						assertEquals(text, expected, interpreted.evaluate(values));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Errors of the long engine are the errors of the interpreter, with their positions.
+	 * */
+	@Test
+	public void testLongErrors() throws BadInputException {
+		Calculator calc = calculator(Calculator.Engine.LONG, false, true);
+
+		assertError(Calculator.DIVISION_BY_ZERO, 2, calc.compile("add(1, div(x, sub(x, x)))"), 5);
+		assertError(Calculator.INTEGER_OVERFLOW, 0, calc.compile("mult(mult(x, x), mult(x, x))"), Integer.MAX_VALUE);
+		assertError(Calculator.INTEGER_OVERFLOW + ": " + (1L << 32), 0, calc.compile("mult(x, x)"), 1 << 16);
+		assertError(Calculator.INTEGER_OVERFLOW + ": x = " + (1L << 40), 2, calc.compile("add(1, x)"), 1L << 40);
+
+		// Long.MIN_VALUE / -1:
+		CompiledExpression expr = calc.compile("div(mult(mult(mult(x, x), mult(x, x)), mult(y, 8)), y)");
+		assertTrue(expr.isGenerated());
+		try {
+			expr.evaluate(new double[] {-32768, -1});
+			fail();
+		}
+		catch (BadInputException ex) {
+			assertEquals(Calculator.INTEGER_OVERFLOW, ex.getMessage());
+		}
+	}
+
+	private static void assertError(String message, int tokenIndex, CompiledExpression expr, double value) {
+		assertTrue(expr.isGenerated());
+		try {
+			expr.evaluate(new double[] {value});
+			fail(message);
+		}
+		catch (BadInputException ex) {
+			assertEquals(message, ex.getMessage());
+			assertEquals(tokenIndex, ex.getTokenIndex());
+		}
+	}
+
+	/**
+	 * Programs too big for the JIT stay in the interpreter.
+	 * */
+	@Test
+	public void testFallback() throws BadInputException {
+		StringBuilder text = new StringBuilder("x");
+		for (int i = 0; i < 3000; i++)
+			text.insert(0, "add(").append(", ").append(i).append(')');
+
+		Calculator calc = calculator(Calculator.Engine.DOUBLE, false, true);
+		calc.setOptimizationEnabled(false);
+		CompiledExpression expr = calc.compile(text.toString());
+		assertFalse(expr.isGenerated());
+		assertEquals(3000 * 2999 / 2 + 1, expr.evaluate(new double[] {1}));
+
+		assertNull(ClassGenerator.generate(expr.getProgram()));
+	}
+
+	/**
+	 * A generated class is unloaded once its expression is unreachable.
+	 * */
+	@Test
+	public void testUnloading() throws BadInputException, InterruptedException {
+		WeakReference<Class<?>> generated = generatedClass();
+
+		for (int i = 0; i < 50 && generated.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(generated.get());
+	}
+
+	private static WeakReference<Class<?>> generatedClass() throws BadInputException {
+		Program program = calculator(Calculator.Engine.DOUBLE, false, false).compile("add(x, 1)").getProgram();
+		ClassGenerator.Evaluator evaluator = ClassGenerator.generate(program);
+		assertEquals(3, evaluator.evaluate(new double[] {2}), 0);
+		return new WeakReference<Class<?>>(evaluator.getClass());
+	}
+}
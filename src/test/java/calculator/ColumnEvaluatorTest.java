@@ -0,0 +1,181 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test ColumnEvaluator class through CompiledExpression
+ * */
+public class ColumnEvaluatorTest {
+
+	/**
+	 * rows of the tests; more than one block
+	 * */
+	private static final int ROWS = 1000;
+
+	private static final String[] EXPRESSIONS = {
+		"7",
+		"add(x, 1)",
+		"let(a, mult(x, y), add(a, div(a, add(mult(y, y), 1))))",
+		"sub(mult(x, x), let(b, 3, mult(b, y)))",
+		"add(mult(add(x, y), sub(x, y)), mult(add(x, y), sub(x, y)))",
+	};
+
+	private static Calculator calculator(Calculator.Engine engine, boolean share) {
+		Calculator calc = new Calculator();
+		calc.setEngine(engine);
+		calc.setSharingEnabled(share);
+		return calc;
+	}
+
+	/**
+	 * Every row has the result of a single evaluation.
+	 * */
+	@Test
+	public void testDoubleColumns() throws BadInputException {
+		Random random = new Random(17);
+
+		for (boolean share : new boolean[] {false, true}) {
+			for (String text : EXPRESSIONS) {
+				CompiledExpression expr = calculator(Calculator.Engine.DOUBLE, share).compile(text);
+				List<String> variables = expr.getVariables();
+
+				double[][] columns = new double[variables.size()][ROWS];
+				for (double[] column : columns) {
+					for (int i = 0; i < ROWS; i++)
+						column[i] = random.nextInt(2001) - 1000;
+				}
+
+				double[] results = new double[ROWS];
+				expr.evaluate(columns, results);
+
+				Map<String, Number> bindings = new HashMap<>();
+				for (int i = 0; i < ROWS; i++) {
+					for (int c = 0; c < columns.length; c++)
+						bindings.put(variables.get(c), columns[c][i]);
+					assertEquals(text, expr.evaluate(bindings), (int) results[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every row has the result of a single evaluation with the long engine.
+	 * */
+	@Test
+	public void testLongColumns() throws BadInputException {
+		Random random = new Random(42);
+
+		for (boolean share : new boolean[] {false, true}) {
+			for (String text : EXPRESSIONS) {
+				CompiledExpression expr = calculator(Calculator.Engine.LONG, share).compile(text);
+				List<String> variables = expr.getVariables();
+
+				long[][] columns = new long[variables.size()][ROWS];
+				for (long[] column : columns) {
+					for (int i = 0; i < ROWS; i++)
+						column[i] = random.nextInt(20001) - 10000;
+				}
+
+				long[] results = new long[ROWS];
+				expr.evaluate(columns, results);
+
+				Map<String, Number> bindings = new HashMap<>();
+				for (int i = 0; i < ROWS; i++) {
+					for (int c = 0; c < columns.length; c++)
+						bindings.put(variables.get(c), columns[c][i]);
+					assertEquals(text, expr.evaluate(bindings), results[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Errors name the first row at fault.
+	 * */
+	@Test
+	public void testLongErrors() throws BadInputException {
+		Calculator calc = calculator(Calculator.Engine.LONG, false);
+
+		long[] x = new long[ROWS];
+		long[] y = new long[ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			x[i] = i % 100 + 1;
+			y[i] = i % 100 + 1;
+		}
+
+		// division by zero:
+		y[700] = 0;
+		assertError(Calculator.DIVISION_BY_ZERO + " (row 700)", calc.compile("div(x, y)"), x, y);
+		y[700] = 1;
+
+		// the product of the first operation is large, but fits; the second overflows:
+		x[300] = Integer.MAX_VALUE;
+		y[300] = Integer.MAX_VALUE;
+		assertError(Calculator.INTEGER_OVERFLOW + " (row 300)", calc.compile("mult(mult(x, y), mult(x, y))"), x, y);
+
+		// overflow of the int result:
+		assertError(Calculator.INTEGER_OVERFLOW + ": " + (long) Integer.MAX_VALUE * Integer.MAX_VALUE + " (row 300)",
+				calc.compile("mult(x, y)"), x, y);
+
+		// variable values must be ints:
+		x[5] = 1L << 40;
+		assertError(Calculator.INTEGER_OVERFLOW + ": x = " + (1L << 40) + " (row 5)", calc.compile("add(x, y)"), x, y);
+	}
+
+	private static void assertError(String message, CompiledExpression expr, long[]... columns) {
+		try {
+			expr.evaluate(columns, new long[ROWS]);
+			fail(message);
+		}
+		catch (BadInputException ex) {
+			assertEquals(message, ex.getMessage());
+			assertTrue(ex.getOffset() >= 0);
+		}
+	}
+
+	/**
+	 * Columns must match the variables and the engine.
+	 * */
+	@Test
+	public void testShapes() throws BadInputException {
+		CompiledExpression expr = calculator(Calculator.Engine.DOUBLE, false).compile("add(x, y)");
+
+		try {
+			expr.evaluate(new double[][] {new double[10]}, new double[10]);
+			fail();
+		}
+		catch (IllegalArgumentException ex) {
+			// one column is missing
+		}
+
+		try {
+			expr.evaluate(new double[][] {new double[10], new double[9]}, new double[10]);
+			fail();
+		}
+		catch (IllegalArgumentException ex) {
+			// a column is too short
+		}
+
+		try {
+			expr.evaluate(new long[][] {new long[10], new long[10]}, new long[10]);
+			fail();
+		}
+		catch (IllegalArgumentException ex) {
+			// the expression is compiled for doubles
+		}
+
+		double[] results = new double[0];
+		expr.evaluate(new double[][] {new double[0], new double[0]}, results);
+	}
+}
@@ -0,0 +1,124 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test CompiledExpression class
+ * */
+public class CompiledExpressionTest {
+
+	private static Calculator calc;
+
+	@BeforeClass
+	public static void setUp () {
+		calc = new Calculator();
+	}
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+
+	/**
+	 * A compiled expression can be evaluated repeatedly.
+	 * */
+	@Test
+	public void testRepeatedEvaluation() throws Calculator.BadInputException {
+		CompiledExpression expr = calc.compile("let(a, 5, let(b, mult(a, 10), add(b, a)))");
+
+		for (int i = 0; i < 3; i++)
+			assertEquals(55, expr.evaluate());
+	}
+
+	/**
+	 * Variables not defined in the expression can be bound by the caller.
+	 * */
+	@Test
+	public void testBindings() throws Calculator.BadInputException {
+		CompiledExpression expr = calc.compile("add(x, mult(y, 2))");
+
+		Map<String, Integer> bindings = new HashMap<>();
+		bindings.put("x", 1);
+		bindings.put("y", 3);
+		assertEquals(7, expr.evaluate(bindings));
+
+		bindings.put("y", 10);
+		assertEquals(21, expr.evaluate(bindings));
+	}
+
+	/**
+	 * Only variables used outside the body of their let need bindings.
+	 * */
+	@Test
+	public void testVariables() throws Calculator.BadInputException {
+		CompiledExpression expr = calc.compile("add(y, let(a, x, add(a, y)))");
+		assertEquals(Arrays.asList("y", "x"), expr.getVariables());
+
+		assertEquals(Collections.emptyList(), calc.compile("let(a, 1, a)").getVariables());
+	}
+
+	/**
+	 * A missing binding is an undefined variable.
+	 * */
+	@Test
+	public void testMissingBinding() throws Calculator.BadInputException {
+		CompiledExpression expr = calc.compile("add(x, y)");
+
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.UNDEFINED_VARIABLE);
+		expr.evaluate(Collections.singletonMap("x", 1));
+	}
+
+	/**
+	 * Parse errors are reported by compile().
+	 * */
+	@Test
+	public void testCompileError() throws Calculator.BadInputException {
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.BAD_EXPRESSION);
+		calc.compile("add(1)");
+	}
+
+	/**
+	 * Threads evaluating the same expression with different bindings do not interfere.
+	 * */
+	@Test
+	public void testConcurrentEvaluation() throws Exception {
+		final CompiledExpression expr = calc.compile("let(a, mult(x, 2), add(a, x))");
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				final int x = i;
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return expr.evaluate(Collections.singletonMap("x", x));
+					}
+				}));
+			}
+
+			for (int i = 0; i < results.size(); i++)
+				assertEquals(3 * i, results.get(i).get().intValue());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test EvaluationServer class over a loopback connection
+ * */
+public class EvaluationServerTest {
+
+	private EvaluationServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		Calculator calc = new Calculator();
+		calc.enableCache(16);
+
+		server = new EvaluationServer(calc, 1024);
+		server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(1);
+	}
+
+	/**
+	 * Status, response headers, and body of one request.
+	 * */
+	private static final class Response {
+		int status;
+		String body;
+		HttpURLConnection connection;
+	}
+
+	private Response request(String method, String path, String body) throws IOException {
+		URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+
+		if (body != null) {
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		Response response = new Response();
+		response.status = connection.getResponseCode();
+		response.connection = connection;
+
+		InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (in != null) {
+			try (InputStream stream = in) {
+				byte[] buffer = new byte[1024];
+				int n;
+				while ((n = stream.read(buffer)) > 0)
+					bytes.write(buffer, 0, n);
+			}
+		}
+		response.body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		return response;
+	}
+
+	@Test
+	public void testEvaluate() throws IOException {
+		Response response = request("POST", "/evaluate", "let(a, 5, add(a, a))");
+		assertEquals(200, response.status);
+		assertEquals("10\n", response.body);
+
+		response = request("POST", "/evaluate", "add(1, x)");
+		assertEquals(400, response.status);
+		assertEquals(BatchEvaluator.ERROR_PREFIX + Calculator.UNDEFINED_VARIABLE + ": x\n", response.body);
+		assertEquals("7", response.connection.getHeaderField(EvaluationServer.OFFSET_HEADER));
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		Response response = request("POST", "/batch", "add(1, 2)\nmult(2, x)\n\nlet(a, 2, mult(a, a))\n");
+		assertEquals(200, response.status);
+		assertEquals("3\n" + BatchEvaluator.ERROR_PREFIX + Calculator.UNDEFINED_VARIABLE + ": x\n"
+				+ BatchEvaluator.ERROR_PREFIX + Calculator.BAD_EXPRESSION + "\n4\n", response.body);
+		assertEquals("2", response.connection.getHeaderField(EvaluationServer.ERRORS_HEADER));
+	}
+
+	@Test
+	public void testRefusedRequests() throws IOException {
+		StringBuilder large = new StringBuilder();
+		while (large.length() <= 1024)
+			large.append("add(1, 2)\n");
+		assertEquals(413, request("POST", "/batch", large.toString()).status);
+
+		assertEquals(405, request("GET", "/evaluate", null).status);
+		assertEquals(404, request("GET", "/nothing", null).status);
+		assertEquals("OK\n", request("GET", "/health", null).body);
+	}
+
+	/**
+	 * Requests the executor rejects are answered with 503 on the accepting thread, without being evaluated.
+	 * */
+	@Test
+	public void testBusy() throws IOException {
+		server.stop(0);
+
+		ExecutorService rejecting = Executors.newSingleThreadExecutor();
+		rejecting.shutdown();
+		server = new EvaluationServer(new Calculator(), 1024);
+		server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), rejecting);
+
+		Response response = request("POST", "/evaluate", "add(1, 2)");
+		assertEquals(503, response.status);
+		assertEquals(Integer.toString(EvaluationServer.RETRY_AFTER_SECONDS), response.connection.getHeaderField("Retry-After"));
+		assertEquals(503, request("GET", "/health", null).status);
+	}
+
+	/**
+	 * Concurrent clients get their own results.
+	 * */
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				final int value = i;
+				results.add(clients.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						return request("POST", "/evaluate", "mult(" + value + ", 3)").body;
+					}
+				}));
+			}
+
+			for (int i = 0; i < 200; i++)
+				assertEquals(i * 3 + "\n", results.get(i).get());
+		}
+		finally {
+			clients.shutdown();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test ExpressionArchive class
+ * */
+public class ExpressionArchiveTest {
+
+	private static final List<String> EXPRESSIONS = Arrays.asList(
+			"add(x, mult(y, let(x, 3, x)))",
+			"let(a, add(x, 1), add(mult(a, a), mult(a, a)))",
+			"div(mult(mult(mult(x, x), mult(x, x)), mult(y, 8)), y)",
+			"div(x, sub(y, y))",
+			"add(z, 1)",
+			"mult(add(2, 2), div(9, 3))");
+
+	/**
+	 * Loaded expressions give the results and errors of the saved ones, for both engines, with and without sharing.
+	 * */
+	@Test
+	public void testRoundTrip() throws IOException, BadInputException {
+		Map<String, Integer> bindings = new HashMap<>();
+		bindings.put("x", 40000);
+		bindings.put("y", -3);
+
+		for (Calculator.Engine engine : Calculator.Engine.values()) {
+			for (boolean share : new boolean[] { false, true }) {
+				Calculator calc = new Calculator();
+				calc.setEngine(engine);
+				calc.setSharingEnabled(share);
+
+				List<CompiledExpression> compiled = new ArrayList<>();
+				for (String expr : EXPRESSIONS)
+					compiled.add(calc.compile(expr));
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				ExpressionArchive.save(compiled, out);
+				ExpressionArchive archive = ExpressionArchive.load(ByteBuffer.wrap(out.toByteArray()));
+				assertEquals(compiled.size(), archive.size());
+
+				for (int i = 0; i < compiled.size(); i++) {
+					CompiledExpression loaded = archive.get(i);
+					assertEquals(compiled.get(i).getVariables(), loaded.getVariables());
+					assertEquals(compiled.get(i).getDedupRatio(), loaded.getDedupRatio(), 0);
+					assertEquals(engine + " " + EXPRESSIONS.get(i), result(compiled.get(i), bindings), result(loaded, bindings));
+				}
+			}
+		}
+	}
+
+	private static String result(CompiledExpression expr, Map<String, Integer> bindings) {
+		try {
+			return Integer.toString(expr.evaluate(bindings));
+		}
+		catch (BadInputException ex) {
+			return ex.getMessage() + " @" + ex.getTokenIndex() + "/" + ex.getOffset();
+		}
+	}
+
+	/**
+	 * An archive of a file of expressions, errors included, evaluates to the lines of the batch of that file.
+	 * */
+	@Test
+	public void testPrecompile() throws IOException {
+		String input = "add(1, 2)\n"
+				+ "add(1)\n"
+				+ "\n"
+				+ "let(a, 5, add(a, a))\n"
+				+ "add(x, 1)\n"
+				+ "div(1, 0)\n"
+				+ "add(1, 99999999999)\n";
+
+		StringWriter expected = new StringWriter();
+		long expectedErrors = new BatchEvaluator(new Calculator()).run(new BufferedReader(new StringReader(input)), expected);
+
+		Path file = Files.createTempFile("calculator", ".bin");
+		try {
+			long compileErrors = ExpressionArchive.precompile(new Calculator(), new BufferedReader(new StringReader(input)),
+					Files.newOutputStream(file));
+			assertEquals(3, compileErrors);
+
+			StringWriter out = new StringWriter();
+			long errors = new BatchEvaluator(new Calculator()).run(ExpressionArchive.load(file), out);
+
+			assertEquals(expected.toString(), out.toString());
+			assertEquals(expectedErrors, errors);
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Other files, other versions and damaged records are refused.
+	 * */
+	@Test
+	public void testDamaged() throws IOException, BadInputException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExpressionArchive.save(Arrays.asList(new Calculator().compile("add(1, x)")), out);
+		byte[] bytes = out.toByteArray();
+
+		ExpressionArchive archive = ExpressionArchive.load(ByteBuffer.wrap(bytes));
+		assertEquals(3, archive.get(0).evaluate(Collections.singletonMap("x", 2)));
+
+		// magic number:
+		byte[] damaged = bytes.clone();
+		damaged[0] = 'X';
+		assertRefused(damaged);
+
+		// version:
+		damaged = bytes.clone();
+		damaged[7] = (byte) (ExpressionArchive.VERSION + 1);
+		assertRefused(damaged);
+
+		// truncated:
+		assertRefused(Arrays.copyOf(bytes, bytes.length - 1));
+		assertRefused(Arrays.copyOf(bytes, 6));
+
+		// first opcode: header, record length, kind, dedup ratio, engine, numLocals, maxStack, code length
+		int opcode = 8 + 4 + 1 + 8 + 1 + 4 + 4 + 4;
+		damaged = bytes.clone();
+		damaged[opcode + 3] = 99;
+		try {
+			ExpressionArchive.load(ByteBuffer.wrap(damaged)).get(0);
+			fail("Expected a damaged program to be refused");
+		}
+		catch (StreamCorruptedException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith("Bad opcode 99"));
+		}
+	}
+
+	private static void assertRefused(byte[] bytes) {
+		try {
+			ExpressionArchive.load(ByteBuffer.wrap(bytes));
+			fail("Expected the archive to be refused");
+		}
+		catch (IOException ex) {
+			// refused
+		}
+	}
+}
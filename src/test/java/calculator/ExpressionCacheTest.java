@@ -0,0 +1,161 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test ExpressionCache through Calculator
+ * */
+public class ExpressionCacheTest {
+
+	private Calculator calc;
+
+	@Before
+	public void setUp () {
+		calc = new Calculator();
+		calc.enableCache(2);
+	}
+
+
+	/**
+	 * Repeated expressions are hits and return the same compiled expression.
+	 * */
+	@Test
+	public void testHitsAndMisses() throws Calculator.BadInputException {
+		assertEquals(3, calc.evaluate("add(1, 2)"));
+		assertEquals(3, calc.evaluate("add(1, 2)"));
+		CompiledExpression first = calc.compile("add(x, 2)");
+		assertSame(first, calc.compile("add(x, 2)"));
+
+		ExpressionCache cache = calc.getCache();
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+		assertEquals(2, cache.size());
+
+		assertEquals(5, first.evaluate(Collections.singletonMap("x", 3)));
+	}
+
+	/**
+	 * The least recently used expression is evicted.
+	 * */
+	@Test
+	public void testEviction() throws Calculator.BadInputException {
+		calc.evaluate("add(1, 1)");
+		calc.evaluate("add(2, 2)");
+		calc.evaluate("add(1, 1)");
+		calc.evaluate("add(3, 3)");
+
+		ExpressionCache cache = calc.getCache();
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.size());
+
+		// add(2, 2) was evicted, add(1, 1) was kept:
+		calc.evaluate("add(1, 1)");
+		assertEquals(2, cache.getHits());
+		calc.evaluate("add(2, 2)");
+		assertEquals(4, cache.getMisses());
+	}
+
+	/**
+	 * Invalid expressions are not cached and keep failing.
+	 * */
+	@Test
+	public void testErrorsAreNotCached() {
+		for (int i = 0; i < 2; i++) {
+			try {
+				calc.evaluate("add(1)");
+			}
+			catch (Calculator.BadInputException ex) {
+				assertEquals(Calculator.BAD_EXPRESSION, ex.getMessage());
+			}
+		}
+		assertEquals(0, calc.getCache().size());
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				calc.evaluate("add(a, 1)");
+			}
+			catch (Calculator.BadInputException ex) {
+				assertEquals(Calculator.UNDEFINED_VARIABLE + ": a", ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A large cache is split into segments whose capacities add up to its capacity.
+	 * */
+	@Test
+	public void testSegments() throws Calculator.BadInputException {
+		int capacity = ExpressionCache.MAX_SEGMENTS * ExpressionCache.MIN_SEGMENT_CAPACITY;
+		calc.enableCache(capacity);
+		ExpressionCache cache = calc.getCache();
+
+		int count = 3 * capacity;
+		for (int i = 0; i < count; i++)
+			assertEquals(i + 1, calc.evaluate("add(" + i + ", 1)"));
+
+		assertEquals(capacity, cache.size());
+		assertEquals(count, cache.getMisses());
+		assertEquals(count - capacity, cache.getEvictions());
+		assertTrue(cache.toString(), cache.toString().contains("segments=" + ExpressionCache.MAX_SEGMENTS));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Threads sharing the cache count every lookup and get the same entries.
+	 * */
+	@Test
+	public void testConcurrentLookups() throws InterruptedException {
+		calc.enableCache(1024);
+		final int threads = 4;
+		final int rounds = 2000;
+		final AtomicInteger failures = new AtomicInteger();
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < rounds; i++) {
+						try {
+							if (calc.evaluate("mult(" + (i % 100) + ", 2)") != i % 100 * 2)
+								failures.incrementAndGet();
+						}
+						catch (Calculator.BadInputException ex) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		ExpressionCache cache = calc.getCache();
+		assertEquals(0, failures.get());
+		assertEquals(threads * rounds, cache.getHits() + cache.getMisses());
+		assertEquals(100, cache.size());
+	}
+
+	/**
+	 * Disabling the cache removes it.
+	 * */
+	@Test
+	public void testDisable() throws Calculator.BadInputException {
+		calc.disableCache();
+		assertNull(calc.getCache());
+		assertEquals(2, calc.evaluate("add(1, 1)"));
+	}
+}
@@ -0,0 +1,220 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test IncrementalEvaluator class
+ * */
+public class IncrementalEvaluatorTest {
+
+	/**
+	 * Only formulas whose result changes are reported, with results equal to evaluating them again.
+	 * */
+	@Test
+	public void testChangedResults() throws BadInputException {
+		IncrementalEvaluator inc = new IncrementalEvaluator(new Calculator());
+		Map<String, Integer> values = new HashMap<>();
+		values.put("x", 2);
+		values.put("y", 3);
+		inc.set(values);
+
+		assertEquals(Integer.valueOf(5), inc.define("sum", "add(x, y)"));
+		assertEquals(Integer.valueOf(8), inc.define("prod", "let(a, add(x, 2), mult(a, 2))"));
+		assertEquals(Integer.valueOf(9), inc.define("sq", "mult(y, y)"));
+
+		Map<String, Integer> changed = inc.set("x", 4);
+		assertEquals(2, changed.size());
+		assertEquals(Integer.valueOf(7), changed.get("sum"));
+		assertEquals(Integer.valueOf(12), changed.get("prod"));
+		assertEquals(9, inc.get("sq"));
+
+		// same value: nothing changes
+		assertEquals(Collections.emptyMap(), inc.set("x", 4));
+
+		// the product is the same, so the propagation stops before the sum:
+		assertEquals(Integer.valueOf(12), inc.define("z", "add(mult(x, y), 0)"));
+		values.clear();
+		values.put("x", 6);
+		values.put("y", 2);
+		changed = inc.set(values);
+		assertEquals(Integer.valueOf(8), changed.get("sum"));
+		assertEquals(Integer.valueOf(16), changed.get("prod"));
+		assertEquals(Integer.valueOf(4), changed.get("sq"));
+		assertFalse(changed.containsKey("z"));
+	}
+
+	/**
+	 * Formulas share cells, and an update computes only the cells depending on the variables set.
+	 * */
+	@Test
+	public void testSharingAndDirtyPaths() throws BadInputException {
+		IncrementalEvaluator inc = new IncrementalEvaluator(new Calculator());
+		inc.set("x", 1);
+		inc.set("y", 1);
+
+		for (int i = 0; i < 1000; i++)
+			inc.define("f" + i, "add(mult(x, " + (i + 2) + "), mult(y, y))");
+
+		// x, y, mult(y, y), and per formula: a constant, mult(x, i + 2) and add
+		assertEquals(3 + 3 * 1000, inc.getCellCount());
+
+		long before = inc.getComputedCount();
+		Map<String, Integer> changed = inc.set("y", 2);
+		// mult(y, y) once, then each add:
+		assertEquals(1 + 1000, inc.getComputedCount() - before);
+		assertEquals(1000, changed.size());
+		assertEquals(Integer.valueOf(12 + 4), changed.get("f10"));
+
+		before = inc.getComputedCount();
+		changed = inc.set("x", 2);
+		assertEquals(1000, changed.size());
+		assertEquals(2 * 1000, inc.getComputedCount() - before);
+		assertEquals(Integer.valueOf(24 + 4), changed.get("f10"));
+	}
+
+	/**
+	 * Removing or redefining a formula drops the cells only it used.
+	 * */
+	@Test
+	public void testRemove() throws BadInputException {
+		IncrementalEvaluator inc = new IncrementalEvaluator(new Calculator());
+		inc.set("x", 3);
+
+		inc.define("a", "mult(x, x)");
+		int cells = inc.getCellCount();
+		inc.define("b", "add(mult(x, x), 1)");
+		inc.define("b", "add(mult(x, x), 1)");
+		inc.define("c", "let(unused, sub(x, 7), x)");
+		assertEquals(Collections.emptyMap(), inc.set("x", 3));
+		assertEquals(3, inc.get("c"));
+
+		assertTrue(inc.remove("b"));
+		assertTrue(inc.remove("c"));
+		assertFalse(inc.remove("c"));
+		assertEquals(cells, inc.getCellCount());
+
+		assertEquals(Collections.singletonMap("a", 16), inc.set("x", 4));
+		assertEquals(16, inc.get("a"));
+	}
+
+	/**
+	 * A formula without value is reported as null; get() explains why.
+	 * */
+	@Test
+	public void testUndefinedAndErrors() throws BadInputException {
+		Calculator calc = new Calculator();
+		calc.setEngine(Calculator.Engine.LONG);
+		IncrementalEvaluator inc = new IncrementalEvaluator(calc);
+
+		assertNull(inc.define("q", "div(x, y)"));
+		try {
+			inc.get("q");
+			fail("Expected an undefined variable");
+		}
+		catch (BadInputException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith(Calculator.UNDEFINED_VARIABLE));
+		}
+
+		Map<String, Integer> values = new HashMap<>();
+		values.put("x", 7);
+		values.put("y", 2);
+		assertEquals(Collections.singletonMap("q", 3), inc.set(values));
+
+		Map<String, Integer> changed = inc.set("y", 0);
+		assertTrue(changed.containsKey("q"));
+		assertNull(changed.get("q"));
+		try {
+			inc.get("q");
+			fail("Expected a division by zero");
+		}
+		catch (BadInputException ex) {
+			assertTrue(ex.getOffset() >= 0);
+		}
+
+		assertEquals(Collections.singletonMap("q", -7), inc.set("y", -1));
+
+		// undefined again:
+		changed = inc.set("y", null);
+		assertNull(changed.get("q"));
+		assertTrue(changed.containsKey("q"));
+	}
+
+	/**
+	 * Values of let variables are evaluated even if the variable is not used, and all free variables are needed, as in the interpreter.
+	 * */
+	@Test
+	public void testUnusedLetValues() throws BadInputException {
+		String[] expressions = {
+			"let(a, x, 5)",
+			"let(a, div(1, 0), 5)",
+			"let(a, div(y, x), let(b, 5, b))",
+			"add(let(a, mult(x, y), 1), x)",
+			"let(a, 7, 3)",
+		};
+
+		for (Calculator.Engine engine : Calculator.Engine.values()) {
+			Calculator calc = new Calculator();
+			calc.setEngine(engine);
+			IncrementalEvaluator inc = new IncrementalEvaluator(calc);
+
+			for (int i = 0; i < expressions.length; i++)
+				inc.define("f" + i, expressions[i]);
+
+			Map<String, Integer> values = new HashMap<>();
+			assertSameAsCompiled(calc, inc, expressions, values);
+
+			values.put("x", 0);
+			values.put("y", 6);
+			inc.set(values);
+			assertSameAsCompiled(calc, inc, expressions, values);
+
+			values.put("x", 3);
+			inc.set(values);
+			assertSameAsCompiled(calc, inc, expressions, values);
+
+			values.remove("y");
+			inc.set("y", null);
+			assertSameAsCompiled(calc, inc, expressions, values);
+		}
+	}
+
+	private static void assertSameAsCompiled(Calculator calc, IncrementalEvaluator inc, String[] expressions, Map<String, Integer> values)
+			throws BadInputException {
+		for (int i = 0; i < expressions.length; i++) {
+			String expected;
+			try {
+				expected = Integer.toString(calc.compile(expressions[i]).evaluate(values));
+			}
+			catch (BadInputException ex) {
+				expected = ex.getMessage();
+			}
+
+			String actual;
+			try {
+				actual = Integer.toString(inc.get("f" + i));
+			}
+			catch (BadInputException ex) {
+				actual = ex.getMessage();
+			}
+
+			assertEquals(calc.getEngine() + " " + expressions[i] + " " + values, expected, actual);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownFormula() throws BadInputException {
+		new IncrementalEvaluator(new Calculator()).get("nothing");
+	}
+}
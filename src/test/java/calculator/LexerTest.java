@@ -0,0 +1,163 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Test Lexer class
+ * */
+public class LexerTest {
+
+	/**
+	 * Tokens are classified while they are scanned.
+	 * */
+	@Test
+	public void testTokenTypes() {
+		Lexer lexer = Lexer.of("let(a, mult(-12, +3), div(sub(a, 00), Add))");
+
+		assertEquals(Lexer.LET, lexer.next());
+		assertEquals(Lexer.IDENT, lexer.next());
+		assertEquals("a", lexer.identifier());
+		assertEquals(Lexer.MUL, lexer.next());
+		assertEquals(Lexer.INT, lexer.next());
+		assertEquals(-12, lexer.intValue());
+		assertEquals(Lexer.INT, lexer.next());
+		assertEquals(3, lexer.intValue());
+		assertEquals(Lexer.DIV, lexer.next());
+		assertEquals(Lexer.SUB, lexer.next());
+		assertEquals(Lexer.IDENT, lexer.next());
+		assertEquals(Lexer.INT, lexer.next());
+		assertEquals(0, lexer.intValue());
+		assertEquals(Lexer.IDENT, lexer.next());
+		assertEquals("Add", lexer.identifier());
+		assertEquals(Lexer.EOF, lexer.next());
+		assertEquals(Lexer.EOF, lexer.next());
+	}
+
+	/**
+	 * Integers must fit in an int, larger ones are reported as overflow; anything else that is not a name is unknown.
+	 * */
+	@Test
+	public void testIntegerRange() {
+		Lexer lexer = Lexer.of("2147483647 -2147483648 2147483648 -2147483649 +99999999999999999999 - + 1a a_ [! 99999999999x");
+
+		assertEquals(Lexer.INT, lexer.next());
+		assertEquals(Integer.MAX_VALUE, lexer.intValue());
+		assertEquals(Lexer.INT, lexer.next());
+		assertEquals(Integer.MIN_VALUE, lexer.intValue());
+
+		for (int i = 0; i < 3; i++)
+			assertEquals(Lexer.OVERFLOW, lexer.next());
+
+		for (int i = 0; i < 6; i++)
+			assertEquals(Lexer.UNKNOWN, lexer.next());
+
+		assertEquals(Lexer.EOF, lexer.next());
+	}
+
+	/**
+	 * Repeated identifiers share one String instance.
+	 * */
+	@Test
+	public void testIdentifierReuse() {
+		Lexer lexer = Lexer.of("abc x abc");
+
+		lexer.next();
+		String first = lexer.identifier();
+		lexer.next();
+		lexer.next();
+		assertSame(first, lexer.identifier());
+	}
+
+	/**
+	 * Leading, trailing, and repeated delimiters produce no tokens.
+	 * */
+	@Test
+	public void testDelimitersOnly() {
+		assertEquals(Lexer.EOF, Lexer.of(" ,(\t)\n ").next());
+		assertEquals(Lexer.EOF, Lexer.of("").next());
+		assertEquals(Lexer.EOF, Lexer.of((String) null).next());
+	}
+
+	/**
+	 * Whole tokens are classified without a lexer.
+	 * */
+	@Test
+	public void testTypeOf() {
+		assertEquals(Lexer.INT, Lexer.typeOf("-42"));
+		assertEquals(Lexer.IDENT, Lexer.typeOf("abc"));
+		assertEquals(Lexer.LET, Lexer.typeOf("let"));
+		assertEquals(Lexer.OVERFLOW, Lexer.typeOf("4294967296"));
+		assertEquals(Lexer.UNKNOWN, Lexer.typeOf(" 1 "));
+		assertEquals(Lexer.UNKNOWN, Lexer.typeOf(""));
+		assertEquals(Lexer.UNKNOWN, Lexer.typeOf(null));
+	}
+
+	/**
+	 * A lexer over a reader sees the same tokens and positions as over the string, also for tokens spanning chunks.
+	 * */
+	@Test
+	public void testReader() {
+		String input = " let(abc, mult(-12, 2147483648), div(sub(abc, 00), Add)) ,x_ ";
+
+		for (int chunk = 1; chunk <= 8; chunk++) {
+			Lexer expected = Lexer.of(input);
+			Lexer lexer = Lexer.of(new StringReader(input), chunk);
+
+			do {
+				assertEquals(expected.next(), lexer.next());
+				assertEquals(expected.intValue(), lexer.intValue());
+				assertEquals(expected.tokenIndex(), lexer.tokenIndex());
+				assertEquals(expected.offset(), lexer.offset());
+				assertEquals(expected.text(), lexer.text());
+			} while (lexer.type() != Lexer.EOF);
+
+			assertEquals(Lexer.EOF, lexer.next());
+			assertEquals(expected.next(), lexer.next());
+			assertEquals(expected.tokenIndex(), lexer.tokenIndex());
+		}
+
+		Lexer lexer = Lexer.of(new StringReader("abc x abc"), 2);
+		lexer.next();
+		String first = lexer.identifier();
+		lexer.next();
+		lexer.next();
+		assertSame(first, lexer.identifier());
+	}
+
+	/**
+	 * A lexer over a reader keeps a bounded number of names, however many distinct names it reads.
+	 * */
+	@Test
+	public void testReaderNamesBounded() {
+		int count = 3 * Lexer.MAX_NAMES;
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			input.append(name(i)).append(' ');
+
+		Lexer lexer = Lexer.of(new StringReader(input.toString()), 64);
+		for (int i = 0; i < count; i++) {
+			assertEquals(Lexer.IDENT, lexer.next());
+			assertEquals(name(i), lexer.identifier());
+			assertTrue(lexer.internedNames() < Lexer.MAX_NAMES);
+		}
+		assertEquals(Lexer.EOF, lexer.next());
+	}
+
+	/**
+	 * @return a distinct name of letters for each i
+	 * */
+	static String name(int i) {
+		StringBuilder name = new StringBuilder("v");
+		do {
+			name.append((char) ('a' + i % 26));
+			i /= 26;
+		} while (i > 0);
+		return name.toString();
+	}
+}
@@ -0,0 +1,135 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test MappedFile class and its use by the lexer, the calculator and batches
+ * */
+public class MappedFileTest {
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("calculator", ".txt");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	private MappedFile map(String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		return MappedFile.map(file);
+	}
+
+	/**
+	 * The lexer sees the same tokens and positions in the bytes as in the string.
+	 * */
+	@Test
+	public void testLexer() throws IOException {
+		String input = "xx let(abc, mult(-12, 2147483648), div(sub(abc, 00), Add)) ,x_ \u00e9\n";
+		MappedFile mapped = map(input);
+		assertEquals(input.getBytes(StandardCharsets.UTF_8).length, mapped.size());
+
+		// from the 4th byte to the line break:
+		Lexer expected = Lexer.of(input.substring(3, input.length() - 1));
+		Lexer lexer = Lexer.of(mapped, 3, mapped.size() - 1);
+		do {
+			assertEquals(expected.next(), lexer.next());
+			assertEquals(expected.intValue(), lexer.intValue());
+			assertEquals(expected.tokenIndex(), lexer.tokenIndex());
+			if (lexer.type() == Lexer.IDENT)
+				assertEquals(expected.identifier(), lexer.identifier());
+			if (lexer.type() != Lexer.EOF)
+				assertEquals(expected.offset(), lexer.offset());
+		} while (lexer.type() != Lexer.EOF);
+
+		// offsets count bytes; the last token has two:
+		assertEquals(expected.offset() + 1, lexer.offset());
+	}
+
+	/**
+	 * The lexer keeps a bounded number of names, however many distinct names the file has.
+	 * */
+	@Test
+	public void testNamesBounded() throws IOException {
+		int count = 3 * Lexer.MAX_NAMES;
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			input.append(LexerTest.name(i)).append(' ');
+
+		MappedFile mapped = map(input.toString());
+		Lexer lexer = Lexer.of(mapped, 0, mapped.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(Lexer.IDENT, lexer.next());
+			assertEquals(LexerTest.name(i), lexer.identifier());
+			assertTrue(lexer.internedNames() < Lexer.MAX_NAMES);
+		}
+		assertEquals(Lexer.EOF, lexer.next());
+	}
+
+	/**
+	 * A single expression is evaluated from the mapped file.
+	 * */
+	@Test
+	public void testEvaluateFile() throws IOException, BadInputException {
+		map("let(a, 5,\n  let(b, mult(a, 10),\n    add(b, a)))\n");
+		assertEquals(55, new Calculator().evaluateFile(file));
+
+		map("");
+		try {
+			new Calculator().evaluateFile(file);
+			fail("Expected a bad expression");
+		}
+		catch (BadInputException ex) {
+			assertEquals(Calculator.BAD_EXPRESSION, ex.getMessage());
+			assertEquals(0, ex.getOffset());
+		}
+	}
+
+	/**
+	 * Batches of a mapped file give the lines of batches read through a reader, for every kind of line break.
+	 * */
+	@Test
+	public void testBatch() throws IOException {
+		String input = "add(1, 2)\n"
+				+ "add(1)\r\n"
+				+ "\n"
+				+ "let(a, 5, add(a, a))\r"
+				+ "add(x, 1)\r\n"
+				+ "\r\n"
+				+ "div(1, 0)\n"
+				+ "add(1, 2)";
+
+		for (String last : new String[] { "", "\n", "\r\n" }) {
+			MappedFile mapped = map(input + last);
+
+			StringWriter expected = new StringWriter();
+			long expectedErrors = new BatchEvaluator(new Calculator()).run(new BufferedReader(new StringReader(input + last)), expected);
+
+			StringWriter out = new StringWriter();
+			long errors = new BatchEvaluator(new Calculator()).run(mapped, out);
+
+			assertEquals(expected.toString(), out.toString());
+			assertEquals(expectedErrors, errors);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test NodeInterner class and the shared DAG mode
+ * */
+public class NodeInternerTest {
+
+	private static Calculator calc;
+
+	private static Calculator plain;
+
+	@BeforeClass
+	public static void setUp () {
+		calc = new Calculator();
+		calc.setSharingEnabled(true);
+		calc.setOptimizationEnabled(false);
+
+		plain = new Calculator();
+		plain.setOptimizationEnabled(false);
+	}
+
+	private static Node parse(String expr) throws Calculator.BadInputException {
+		return calc.new TokenTree(Lexer.of(expr), true).parse();
+	}
+
+	/**
+	 * Identical subtrees become one node.
+	 * */
+	@Test
+	public void testSharedSubtrees() throws Calculator.BadInputException {
+		Node root = parse("add(mult(x, 2), mult(x, 2))");
+		assertSame(root.getChildren().get(0), root.getChildren().get(1));
+
+		root = parse("add(mult(x, 2), mult(2, x))");
+		assertNotSame(root.getChildren().get(0), root.getChildren().get(1));
+	}
+
+	/**
+	 * Uses of variables bound to different values are not shared, even in the same slot.
+	 * */
+	@Test
+	public void testBindings() throws Calculator.BadInputException {
+		Node root = parse("add(let(a, 1, add(a, a)), let(a, 2, add(a, a)))");
+		assertNotSame(root.getChildren().get(0), root.getChildren().get(1));
+		assertEquals(6, calc.evaluate("add(let(a, 1, add(a, a)), let(a, 2, add(a, a)))"));
+
+		root = parse("add(let(a, x, mult(a, a)), let(b, x, mult(b, b)))");
+		assertSame(root.getChildren().get(0), root.getChildren().get(1));
+	}
+
+	/**
+	 * Each shared subtree is computed once, then loaded from its temporary slot.
+	 * */
+	@Test
+	public void testComputedOnce() throws Calculator.BadInputException {
+		CompiledExpression expr = calc.compile("add(mult(x, add(x, 1)), mult(x, add(x, 1)))");
+		Program program = expr.getProgram();
+
+		int tees = 0;
+		for (int pc = 0; pc < program.code.length; pc += program.code[pc] <= Program.STORE || program.code[pc] == Program.TEE ? 2 : 1) {
+			if (program.code[pc] == Program.TEE)
+				tees++;
+		}
+		assertEquals(1, tees);
+		assertEquals(13, program.code.length);
+		assertEquals(1, program.numLocals);
+		assertEquals(24, expr.evaluate(Collections.singletonMap("x", 3)));
+
+		// 11 nodes, 5 of them distinct:
+		assertEquals(11.0 / 5, expr.getDedupRatio(), 1e-9);
+		assertEquals(1, plain.compile("add(mult(x, add(x, 1)), mult(x, add(x, 1)))").getDedupRatio(), 0);
+	}
+
+	/**
+	 * Sharing does not change results.
+	 * */
+	@Test
+	public void testSameResults() throws Calculator.BadInputException {
+		Calculator optimized = new Calculator();
+		optimized.setSharingEnabled(true);
+
+		String[] expressions = {
+				"let(a, let(b, 10, add(b, b)), let(b, 20, add(a, b)))",
+				"let(a, 5, let(b, mult(a, 10), add(b, a)))",
+				"let(a, 1, add(let(a, 2, a), a))",
+				"add(let(a, 3, mult(a, a)), let(a, 3, mult(a, a)))",
+				"let(a, 2, add(let(b, a, mult(b, b)), let(c, a, mult(c, c))))",
+				"mult(add(2, 2), add(2, 2))",
+				"div(let(a, 7, a), let(a, 7, a))",
+		};
+
+		for (String expr : expressions) {
+			assertEquals(expr, plain.evaluate(expr), calc.evaluate(expr));
+			assertEquals(expr, plain.evaluate(expr), optimized.evaluate(expr));
+		}
+	}
+
+	/**
+	 * Repeated doubling: the tree grows exponentially, the DAG linearly.
+	 * */
+	@Test
+	public void testDoubling() throws Calculator.BadInputException {
+		String expr = "1";
+		for (int i = 0; i < 16; i++)
+			expr = "add(" + expr + ", " + expr + ")";
+
+		CompiledExpression compiled = calc.compile(expr);
+		assertEquals(1 << 16, compiled.evaluate());
+		assertTrue(compiled.getDedupRatio() > 1000);
+		assertTrue(compiled.getProgram().code.length < 100);
+	}
+}
@@ -0,0 +1,125 @@
+package calculator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test Optimizer class
+ * */
+public class OptimizerTest {
+
+	private static Calculator calc;
+
+	private static Calculator plain;
+
+	@BeforeClass
+	public static void setUp () {
+		calc = new Calculator();
+
+		plain = new Calculator();
+		plain.setOptimizationEnabled(false);
+	}
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private static Program lower(String expr) throws Calculator.BadInputException {
+		return calc.compile(expr).getProgram();
+	}
+
+	/**
+	 * Subtrees of integers are folded into one constant.
+	 * */
+	@Test
+	public void testConstantFolding() throws Calculator.BadInputException {
+		Program program = lower("add(mult(3, 4), sub(10, 2))");
+
+		assertArrayEquals(new int[] {Program.CONST, 0}, program.code);
+		assertArrayEquals(new double[] {20}, program.constants, 0);
+	}
+
+	/**
+	 * Identity operations are dropped.
+	 * */
+	@Test
+	public void testIdentities() throws Calculator.BadInputException {
+		for (String expr : new String[] {"add(x, 0)", "add(0, x)", "sub(x, 0)", "mult(x, 1)", "mult(1, x)", "div(x, 1)", "mult(add(x, sub(2, 2)), div(4, 4))"})
+			assertArrayEquals(expr, new int[] {Program.LOAD, 0}, lower(expr).code);
+
+		// not identities:
+		assertEquals(5, lower("sub(0, x)").code.length);
+		assertEquals(5, lower("div(1, x)").code.length);
+	}
+
+	/**
+	 * Let variables bound to constants are inlined; the let disappears.
+	 * */
+	@Test
+	public void testConstantLet() throws Calculator.BadInputException {
+		Program program = lower("let(a, add(2, 3), let(b, x, add(b, mult(a, 2))))");
+
+		// b keeps the slot of its nesting level:
+		assertArrayEquals(new int[] {
+				Program.LOAD, 2,
+				Program.STORE, 1,
+				Program.LOAD, 1,
+				Program.CONST, 0,
+				Program.ADD }, program.code);
+		assertArrayEquals(new double[] {10}, program.constants, 0);
+		assertEquals(13, calc.compile("let(a, add(2, 3), let(b, x, add(b, mult(a, 2))))").evaluate(Collections.singletonMap("x", 3)));
+
+		assertEquals(3, calc.evaluate("let(a, 1, add(let(a, 2, a), a))"));
+	}
+
+	/**
+	 * Division by zero is not folded and gives the same result as without the optimizer.
+	 * */
+	@Test
+	public void testDivisionByZero() throws Calculator.BadInputException {
+		for (String expr : new String[] {"div(1, 0)", "div(0, 0)", "div(sub(0, 5), sub(3, 3))", "let(z, 0, div(7, z))"}) {
+			assertEquals(expr, Program.DIV, lower(expr).code[lower(expr).code.length - 1]);
+			assertEquals(expr, plain.evaluate(expr), calc.evaluate(expr));
+		}
+	}
+
+	/**
+	 * Fractions are kept until the end, as without the optimizer.
+	 * */
+	@Test
+	public void testFractions() throws Calculator.BadInputException {
+		assertEquals(plain.evaluate("mult(div(7, 2), 2)"), calc.evaluate("mult(div(7, 2), 2)"));
+		assertEquals(7, calc.evaluate("mult(div(7, 2), 2)"));
+	}
+
+	/**
+	 * Variables in dropped constant lets are still checked.
+	 * */
+	@Test
+	public void testUndefinedVariable() throws Calculator.BadInputException {
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.UNDEFINED_VARIABLE + ": y");
+		calc.evaluate("let(a, 1, add(a, mult(y, 1)))");
+	}
+
+	/**
+	 * The optimizer can be turned off.
+	 * */
+	@Test
+	public void testSwitch() throws Calculator.BadInputException {
+		Calculator calc = new Calculator();
+		calc.enableCache(4);
+		assertEquals(2, calc.compile("add(1, 1)").getProgram().code.length);
+
+		calc.setOptimizationEnabled(false);
+		assertFalse(calc.isOptimizationEnabled());
+		assertEquals(5, calc.compile("add(1, 1)").getProgram().code.length);
+	}
+}
@@ -0,0 +1,66 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Test ParallelBatchEvaluator class
+ * */
+public class ParallelBatchEvaluatorTest {
+
+	/**
+	 * Output order matches input order across many small chunks, and errors are counted.
+	 * */
+	@Test
+	public void testOrder() throws IOException {
+		StringBuilder input = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			if (i % 100 == 7) {
+				input.append("add(").append(i).append(")\n");
+				expected.append(BatchEvaluator.ERROR_PREFIX).append(Calculator.BAD_EXPRESSION).append('\n');
+			}
+			else {
+				input.append("let(a, ").append(i).append(", mult(a, 2))\n");
+				expected.append(2 * i).append('\n');
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			StringWriter out = new StringWriter();
+			long errors = new ParallelBatchEvaluator(new Calculator(), pool, 7, 3)
+					.run(new BufferedReader(new StringReader(input.toString())), out);
+
+			assertEquals(100, errors);
+			assertEquals(expected.toString(), out.toString());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Empty input gives empty output.
+	 * */
+	@Test
+	public void testEmpty() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			StringWriter out = new StringWriter();
+			assertEquals(0, new ParallelBatchEvaluator(new Calculator(), pool, 4, 2)
+					.run(new BufferedReader(new StringReader("")), out));
+			assertEquals("", out.toString());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package calculator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test Program class
+ * */
+public class ProgramTest {
+
+	private static Calculator calc;
+
+	@BeforeClass
+	public static void setUp () {
+		calc = new Calculator();
+
+		// test the lowering of the trees as parsed:
+		calc.setOptimizationEnabled(false);
+	}
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private static Program lower(String expr) throws Calculator.BadInputException {
+		return calc.compile(expr).getProgram();
+	}
+
+	/**
+	 * The tree is lowered in post order with a shared constant pool.
+	 * */
+	@Test
+	public void testLowering() throws Calculator.BadInputException {
+		Program program = lower("let(a, 2, mult(add(a, 3), 2))");
+
+		assertArrayEquals(new int[] {
+				Program.CONST, 0,
+				Program.STORE, 0,
+				Program.LOAD, 0,
+				Program.CONST, 1,
+				Program.ADD,
+				Program.CONST, 0,
+				Program.MUL }, program.code);
+		assertArrayEquals(new double[] {2, 3}, program.constants, 0);
+		assertArrayEquals(new String[0], program.names);
+		assertEquals(1, program.numLocals);
+		assertEquals(2, program.maxStack);
+		assertEquals(10.0, program.run(Collections.<String, Number>emptyMap()), 0);
+	}
+
+	/**
+	 * Let variables get a slot per nesting level; free variables follow them.
+	 * */
+	@Test
+	public void testSlots() throws Calculator.BadInputException {
+		Program program = lower("add(x, let(a, 1, let(b, y, add(a, x))))");
+
+		assertArrayEquals(new int[] {
+				Program.LOAD, 2,
+				Program.CONST, 0,
+				Program.STORE, 0,
+				Program.LOAD, 3,
+				Program.STORE, 1,
+				Program.LOAD, 0,
+				Program.LOAD, 2,
+				Program.ADD,
+				Program.ADD }, program.code);
+		assertArrayEquals(new String[] {"x", "y"}, program.names);
+		assertEquals(2, program.numLocals);
+
+		Map<String, Integer> bindings = new HashMap<>();
+		bindings.put("x", 10);
+		bindings.put("y", 0);
+		assertEquals(21.0, program.run(bindings), 0);
+	}
+
+	/**
+	 * Division is done in double, the result is converted at the end.
+	 * */
+	@Test
+	public void testDivision() throws Calculator.BadInputException {
+		assertEquals(3.5, lower("div(7, 2)").run(Collections.<String, Number>emptyMap()), 0);
+		assertEquals(7, calc.evaluate("mult(div(7, 2), 2)"));
+		assertEquals(Integer.MAX_VALUE, calc.evaluate("div(1, 0)"));
+	}
+
+	/**
+	 * Let must start with a variable.
+	 * */
+	@Test
+	public void testLetWithoutVariable() throws Calculator.BadInputException {
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE);
+		lower("let(1, 2, 3)");
+	}
+
+	/**
+	 * Using a variable before it is assigned is an error.
+	 * */
+	@Test
+	public void testUndefinedVariable() throws Calculator.BadInputException {
+		Program program = lower("add(b, let(b, 1, b))");
+
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.UNDEFINED_VARIABLE + ": b");
+		program.run(Collections.<String, Number>emptyMap());
+	}
+
+	/**
+	 * Compile for the long engine, without the optimizer so that the operations are kept.
+	 * */
+	private static Calculator exact(boolean optimize) {
+		Calculator calc = new Calculator();
+		calc.setEngine(Calculator.Engine.LONG);
+		calc.setOptimizationEnabled(optimize);
+		return calc;
+	}
+
+	/**
+	 * The long engine keeps precision above 2^53 and truncates each division.
+	 * */
+	@Test
+	public void testLongEngine() throws Calculator.BadInputException {
+		for (boolean optimize : new boolean[] {false, true}) {
+			Calculator calc = exact(optimize);
+
+			assertEquals(2147483647, calc.evaluate("div(mult(2147483647, 2147483647), 2147483647)"));
+			assertEquals(1, calc.evaluate("sub(mult(94906267, 94906267), sub(mult(94906267, 94906267), 1))"));
+			assertEquals(3, calc.evaluate("div(7, 2)"));
+			assertEquals(-3, calc.evaluate("div(-7, 2)"));
+			assertEquals(6, calc.evaluate("mult(div(7, 2), 2)"));
+			assertEquals(55, calc.evaluate("let(a, 5, let(b, mult(a, 10), add(b, a)))"));
+		}
+	}
+
+	/**
+	 * Overflow of long and of the int result are errors with the long engine.
+	 * */
+	@Test
+	public void testLongOverflow() throws Calculator.BadInputException {
+		String[] expressions = {
+				"add(2147483647, 1)",
+				"mult(mult(mult(2147483647, 2147483647), 2147483647), 2147483647)",
+				"let(a, mult(2147483647, 2147483647), mult(a, 4))",
+		};
+
+		for (boolean optimize : new boolean[] {false, true}) {
+			for (String expr : expressions) {
+				try {
+					exact(optimize).evaluate(expr);
+					fail(expr);
+				}
+				catch (Calculator.BadInputException ex) {
+					assertTrue(ex.getMessage(), ex.getMessage().startsWith(Calculator.INTEGER_OVERFLOW));
+				}
+			}
+		}
+
+		// the double engine does not notice:
+		assertEquals(Integer.MAX_VALUE, calc.evaluate("add(2147483647, 1)"));
+	}
+
+	/**
+	 * Division by zero is an error with the long engine, also when the optimizer is on.
+	 * */
+	@Test
+	public void testLongDivisionByZero() throws Calculator.BadInputException {
+		for (boolean optimize : new boolean[] {false, true}) {
+			for (String expr : new String[] {"div(1, 0)", "let(z, sub(3, 3), div(7, z))"}) {
+				try {
+					exact(optimize).evaluate(expr);
+					fail(expr);
+				}
+				catch (Calculator.BadInputException ex) {
+					assertEquals(Calculator.DIVISION_BY_ZERO, ex.getMessage());
+				}
+			}
+		}
+
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.DIVISION_BY_ZERO);
+		exact(true).compile("div(x, sub(x, x))").evaluate(Collections.singletonMap("x", 5));
+	}
+
+	/**
+	 * Operations whose range can not overflow are not checked.
+	 * */
+	@Test
+	public void testRangeAnalysis() throws Calculator.BadInputException {
+		Calculator calc = exact(false);
+
+		assertArrayEquals(new int[] {Program.LOAD, 0, Program.CONST, 0, Program.ADD}, calc.compile("add(x, 1)").getProgram().code);
+		assertArrayEquals(new int[] {Program.LOAD, 0, Program.CONST, 0, Program.DIV}, calc.compile("div(x, 2)").getProgram().code);
+		assertArrayEquals(new int[] {Program.LOAD, 0, Program.LOAD, 1, Program.DIV_EXACT}, calc.compile("div(x, y)").getProgram().code);
+
+		// int * int fits, (int * int) * int may not:
+		assertArrayEquals(new int[] {
+				Program.LOAD, 0,
+				Program.LOAD, 1,
+				Program.LOAD, 2,
+				Program.MUL,
+				Program.MUL_EXACT }, calc.compile("mult(x, mult(y, z))").getProgram().code);
+
+		// the range of a let variable is the range of its value:
+		int[] code = calc.compile("let(a, mult(x, y), mult(a, 2))").getProgram().code;
+		assertEquals(Program.MUL_EXACT, code[code.length - 1]);
+		code = calc.compile("let(a, add(x, y), mult(a, 2))").getProgram().code;
+		assertEquals(Program.MUL, code[code.length - 1]);
+	}
+
+	/**
+	 * With the long engine, bindings must be ints.
+	 * */
+	@Test
+	public void testLongBindings() throws Calculator.BadInputException {
+		CompiledExpression expr = exact(true).compile("mult(x, x)");
+		assertEquals(1 << 30, expr.evaluate(Collections.singletonMap("x", 1 << 15)));
+
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.INTEGER_OVERFLOW);
+		expr.evaluate(Collections.singletonMap("x", 1L << 40));
+	}
+}
@@ -0,0 +1,69 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test ReplServer class over loopback connections
+ * */
+public class ReplServerTest {
+
+	private ReplServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		Calculator calc = new Calculator();
+		calc.enableCache(16);
+
+		server = new ReplServer(calc);
+		server.start(0, 4);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(1);
+	}
+
+	/**
+	 * Each connection has its own variables.
+	 * */
+	@Test
+	public void testSessions() throws IOException {
+		try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+				Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+			BufferedReader in1 = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8));
+			BufferedReader in2 = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8));
+			Writer out1 = new OutputStreamWriter(first.getOutputStream(), StandardCharsets.UTF_8);
+			Writer out2 = new OutputStreamWriter(second.getOutputStream(), StandardCharsets.UTF_8);
+
+			assertEquals("x = 3", send(out1, in1, "x = 3"));
+			assertEquals("x = 4", send(out2, in2, "x = 4"));
+			assertEquals("9", send(out1, in1, "mult(x, x)"));
+			assertEquals("16", send(out2, in2, "mult(x, x)"));
+
+			out1.write(ReplSession.QUIT_COMMAND + "\n");
+			out1.flush();
+			assertNull(in1.readLine());
+		}
+	}
+
+	private static String send(Writer out, BufferedReader in, String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+		out.flush();
+		return in.readLine();
+	}
+}
@@ -0,0 +1,67 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test ReplSession class
+ * */
+public class ReplSessionTest {
+
+	private ReplSession session;
+
+	@Before
+	public void setUp() {
+		Calculator calc = new Calculator();
+		calc.enableCache(16);
+		session = new ReplSession(calc);
+	}
+
+	/**
+	 * Session variables are bound as free variables; a let shadows them.
+	 * */
+	@Test
+	public void testVariables() {
+		assertEquals("x = 5", session.evaluateLine("x = add(2, 3)"));
+		assertEquals("25", session.evaluateLine("mult(x, x)"));
+		assertEquals("y = 30", session.evaluateLine(" y=add(x, 25) "));
+		assertEquals("3", session.evaluateLine("let(x, 1, sub(y, mult(x, 27)))"));
+
+		// redefined:
+		assertEquals("x = 6", session.evaluateLine("x = add(x, 1)"));
+		assertEquals("x = 6\ny = 30\n", session.evaluateLine(ReplSession.VARS_COMMAND));
+
+		assertEquals("", session.evaluateLine(ReplSession.CLEAR_COMMAND));
+		assertEquals(Collections.emptyMap(), session.getVariables());
+		assertEquals(BatchEvaluator.ERROR_PREFIX + Calculator.UNDEFINED_VARIABLE + ": x", session.evaluateLine("add(x, 0)"));
+	}
+
+	/**
+	 * Errors do not end the session and do not define variables.
+	 * */
+	@Test
+	public void testErrors() {
+		assertEquals(BatchEvaluator.ERROR_PREFIX + Calculator.INVALID_INPUT + " Not a variable name: add",
+				session.evaluateLine("add = 1"));
+		assertEquals(BatchEvaluator.ERROR_PREFIX + Calculator.BAD_EXPRESSION, session.evaluateLine("z = add(1"));
+		assertEquals(Collections.emptyMap(), session.getVariables());
+		assertEquals("", session.evaluateLine("   "));
+	}
+
+	@Test
+	public void testRun() throws IOException {
+		StringWriter out = new StringWriter();
+		long errors = session.run(new BufferedReader(new StringReader("a = 2\nmult(a, b)\nadd(a, a)\n:quit\nadd(1, 1)\n")), out, true);
+
+		assertEquals(1, errors);
+		assertEquals("> a = 2\n> " + BatchEvaluator.ERROR_PREFIX + Calculator.UNDEFINED_VARIABLE + ": b\n> 4\n> ", out.toString());
+	}
+}
@@ -0,0 +1,173 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import calculator.Calculator.BadInputException;
+
+/**
+ * Test StreamEvaluator class
+ * */
+public class StreamEvaluatorTest {
+
+	private static final String[] EXPRESSIONS = {
+		"let(a, let(b, 10, add(b, b)), let(b, 20, add(a, b)))",
+		"let(a, 5, let(b, mult(a, 10),add(b, a)))",
+		"mult(add(2, 2), div(9, 3))",
+		"let(a, 1, add(let(a, 2, a), a))",
+		"let(a,5,a)",
+		"div(7, -2)",
+		"div(1, 0)",
+		"add(x, mult(y, let(x, 3, x)))",
+		"mult(mult(mult(x, x), mult(x, x)), mult(y, y))",
+		"div(mult(mult(mult(x, x), mult(x, x)), mult(y, 8)), sub(y, y))",
+		"add(add(2147483647, 2147483647), 2147483647)",
+		"add(1, z)",
+		"add(x, y, 3)",
+		"add(1",
+		"let(add(1, 2), 3, 4)",
+		"x",
+		"add(1, 99999999999)",
+		"add(1, $)",
+		"",
+	};
+
+	/**
+	 * Results and errors, with their positions, are those of compiled expressions without the optimizer, for both engines.
+	 * */
+	@Test
+	public void testSameAsCompiled() throws IOException {
+		Map<String, Integer> bindings = new HashMap<>();
+		bindings.put("x", 40000);
+		bindings.put("y", -3);
+
+		for (Calculator.Engine engine : Calculator.Engine.values()) {
+			Calculator calc = new Calculator();
+			calc.setEngine(engine);
+			calc.setOptimizationEnabled(false);
+
+			for (String expr : EXPRESSIONS) {
+				String expected;
+				try {
+					expected = Integer.toString(calc.compile(expr).evaluate(bindings));
+				}
+				catch (BadInputException ex) {
+					expected = ex.getMessage() + " @" + ex.getTokenIndex() + "/" + ex.getOffset();
+				}
+
+				String actual;
+				try {
+					actual = Integer.toString(calc.evaluateStream(new StringReader(expr), bindings));
+				}
+				catch (BadInputException ex) {
+					actual = ex.getMessage() + " @" + ex.getTokenIndex() + "/" + ex.getOffset();
+				}
+
+				// the stream evaluator reports a let without variable as soon as it is found:
+				if (expr.startsWith("let(add"))
+					assertEquals(expr, Calculator.FIRST_LET_OPERAND_SHOULD_BE_VARIABLE + " @1/4", actual);
+				else
+					assertEquals(engine + " " + expr, expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * Streams and channels are decoded as UTF-8 and read like readers.
+	 * */
+	@Test
+	public void testInputStreamAndChannel() throws BadInputException, IOException {
+		Calculator calc = new Calculator();
+		byte[] expr = "let(size, 6, mult(size, 7))".getBytes(StandardCharsets.UTF_8);
+
+		assertEquals(42, calc.evaluateStream(new ByteArrayInputStream(expr)));
+		assertEquals(42, calc.evaluateStream(Channels.newChannel(new ByteArrayInputStream(expr))));
+	}
+
+	/**
+	 * Deep nesting, and an expression generated while it is read, larger than the chunks it is read in.
+	 * */
+	@Test
+	public void testLargeInput() throws BadInputException, IOException {
+		final int depth = 200000;
+		StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			nested.append("add(1, ");
+		nested.append('0');
+		for (int i = 0; i < depth; i++)
+			nested.append(')');
+		assertEquals(depth, new Calculator().evaluateStream(new StringReader(nested.toString())));
+
+		// add(add(... add(0 1) 1) 1), many chunks long:
+		final int terms = 100000;
+		Reader generated = new Reader() {
+			private final String open = "add(";
+			private final String close = " 1) ";
+			private long pos;
+			private final long openEnd = (long) terms * open.length();
+			private final long end = openEnd + 1 + (long) terms * close.length();
+
+			@Override
+			public int read(char[] cbuf, int off, int len) {
+				if (pos == end)
+					return -1;
+
+				int n = 0;
+				while (n < len && pos < end) {
+					char c;
+					if (pos < openEnd)
+						c = open.charAt((int) (pos % open.length()));
+					else if (pos == openEnd)
+						c = '0';
+					else
+						c = close.charAt((int) ((pos - openEnd - 1) % close.length()));
+					cbuf[off + n++] = c;
+					pos++;
+				}
+				return n;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		assertEquals(terms, new Calculator().evaluateStream(generated));
+	}
+
+	/**
+	 * Read failures are thrown as such.
+	 * */
+	@Test
+	public void testReadFailure() throws BadInputException {
+		Reader failing = new Reader() {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				throw new IOException("disk gone");
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		try {
+			new Calculator().evaluateStream(failing, Collections.<String, Number>emptyMap());
+			fail("Expected an IOException");
+		}
+		catch (IOException ex) {
+			assertEquals("disk gone", ex.getMessage());
+		}
+	}
+}
@@ -92,6 +92,16 @@ public class TokenTreeTest {
 		isValid = false;
 		assertEquals("According to specs, this is NOT a valid literal: " + str, tree.isLiteral(str), isValid);
 		System.out.println("Passed isLiteral() check for " + str);
+
+		str = "aBc";
+		isValid = true;
+		assertEquals("According to specs, this is a valid literal: " + str, tree.isLiteral(str), isValid);
+		System.out.println("Passed isLiteral() check for " + str);
+
+		str = "let";
+		isValid = true;
+		assertEquals("According to specs, this is a valid literal: " + str, tree.isLiteral(str), isValid);
+		System.out.println("Passed isLiteral() check for " + str);
 	}
 
 
@@ -141,4 +151,102 @@ public class TokenTreeTest {
 		System.out.println("Passed isNumeric() check for " + str);
 	}
 
+
+
+	/**
+	 * Nesting depth of the tree to build and evaluate without recursion.
+	 * */
+	private static final int DEEP = 1000000;
+
+	/**
+	 * add(1, add(1, ... add(1, 1)...)) with DEEP additions.
+	 * */
+	private static String deepAdd() {
+		StringBuilder sb = new StringBuilder(DEEP * 8);
+		for (int i = 0; i < DEEP; i++)
+			sb.append("add(1,");
+		sb.append('1');
+		for (int i = 0; i < DEEP; i++)
+			sb.append(')');
+		return sb.toString();
+	}
+
+	/**
+	 * Deeply nested expressions do not overflow the Java stack.
+	 * */
+	@Test
+	public void testDeepNesting() throws Calculator.BadInputException {
+		String expr = deepAdd();
+
+		TokenTree tree = calc.new TokenTree(Lexer.of(expr));
+		assertEquals(DEEP + 1, tree.evaluate(), 0);
+
+		assertEquals(DEEP + 1, calc.evaluate(expr));
+	}
+
+	/**
+	 * Deeply nested let operations do not overflow the Java stack.
+	 * */
+	@Test
+	public void testDeepLet() throws Calculator.BadInputException {
+		StringBuilder sb = new StringBuilder(DEEP * 16);
+		sb.append("let(a,0,");
+		for (int i = 0; i < DEEP; i++)
+			sb.append("let(a,add(a,1),");
+		sb.append('a');
+		for (int i = 0; i <= DEEP; i++)
+			sb.append(')');
+
+		assertEquals(DEEP, calc.evaluate(sb.toString()));
+	}
+
+	/**
+	 * A let variable is visible in the body of its let only, and an inner let shadows an outer one.
+	 * */
+	@Test
+	public void testLexicalScope() throws Calculator.BadInputException {
+		assertEquals(3, calc.evaluate("let(a, 1, add(let(a, 2, a), a))"));
+		assertEquals(6, calc.evaluate("let(a, 5, let(a, add(a, 1), a))"));
+		assertEquals(3, calc.evaluate("add(let(a, 1, a), let(a, 2, a))"));
+
+		TokenTree tree = calc.new TokenTree(Lexer.of("let(a, 1, add(let(a, 2, a), a))"));
+		assertEquals(3, tree.evaluate(), 0);
+	}
+
+	/**
+	 * Variables resolve to the slot of their nesting level.
+	 * */
+	@Test
+	public void testSlots() throws Calculator.BadInputException {
+		Node root = calc.new TokenTree(Lexer.of("let(a, 1, let(b, a, add(b, c)))")).parse();
+		Node inner = root.getChildren().get(2);
+		Node add = inner.getChildren().get(2);
+
+		assertEquals(0, root.getChildren().get(0).getSlot());
+		assertEquals(1, inner.getChildren().get(0).getSlot());
+		assertEquals(0, inner.getChildren().get(1).getSlot());
+		assertEquals(1, add.getChildren().get(0).getSlot());
+		assertEquals(~0, add.getChildren().get(1).getSlot());
+	}
+
+	/**
+	 * A let variable is not defined after its let.
+	 * */
+	@Test
+	public void testLetVariableOutOfScope() throws Calculator.BadInputException {
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.UNDEFINED_VARIABLE + ": a");
+		calc.evaluate("add(let(a, 1, a), a)");
+	}
+
+	/**
+	 * Integers out of the int range are reported as overflow.
+	 * */
+	@Test
+	public void testIntegerOverflow() throws Calculator.BadInputException {
+		thrown.expect(Calculator.BadInputException.class);
+		thrown.expectMessage(Calculator.INTEGER_OVERFLOW + ": 2147483648");
+		calc.evaluate("add(1, 2147483648)");
+	}
+
 }